@@ -1,14 +1,21 @@
 package org.zoe;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
 
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -21,12 +28,44 @@ import org.json.JSONObject;
 public class Agent extends Thread{
 	@SuppressWarnings("unused")
 	private String group = "default";
-	private Map<String, Resolver> resolvers = new HashMap<String, Resolver>();
+	private final ResolverRegistry resolvers = new ResolverRegistry();
 
-	private KafkaClient kafkaClient;
+	private Transport transport;
+	
+	private static final CompletableFuture<Boolean> IGNORED = CompletableFuture.completedFuture(false);
+	private static final CompletableFuture<Object> NOTHING = CompletableFuture.completedFuture(null);
+	private int workers = 1;
+	private int maxConcurrent = 0;
+	private int maxLocalSteps = 1;
+	private ForkJoinPool siblingPool = null;
+	private int maxPending = 500;
+	private long drainMillis = 5000;
+	private volatile boolean running = true;
+	private boolean spliceMode = false;
+	private boolean routing = false;
+	private boolean readFallback = false;
+	private IntentFilter subscribed = null;
+	private KeyExtractor keyExtractor = null;
+	private boolean binary = false;
+	private ClaimCheck claims = null;
+	private double traceSampling = -1;
+	private final boolean overridesOnSending = overrides("onSending", JSONObject.class);
+	private final AgentMetrics metrics = new AgentMetrics(() -> transport.lag());
+	private final ThreadLocal<IntentLocator> locators = ThreadLocal.withInitial(IntentLocator::new);
+	private ShapeCache shapes = null;
 
 	public Agent(String group){
-		kafkaClient = new KafkaClient(group);
+		this(group, new KafkaClient(group));
+	}
+	
+	/**
+	 * Creates an agent that uses the given transport, e.g. an <code>{@link InMemoryBus}</code>, or a <code>{@link KafkaClient}</code> built on mock consumers
+	 * and producers (see <code>{@link KafkaClient#KafkaClient(org.apache.kafka.clients.consumer.Consumer, org.apache.kafka.clients.producer.Producer, String)}</code>).
+	 * @param group Group of the agent
+	 * @param transport Transport used to receive and publish messages
+	 */
+	public Agent(String group, Transport transport){
+		this.transport = transport;
 		this.group = group;
 	}
 	
@@ -38,25 +77,524 @@ public class Agent extends Thread{
 	}
 	
 	public void run(){
-		while(true){
-			ConsumerRecords<String, byte[]> records = kafkaClient.consume();
-			for(ConsumerRecord<String, byte[]> record : records){
-				JSONObject incoming = Util.bytesToJSON(record.value());
-				onReception(record);
-				try{
-					this.send(intentResolver(incoming));
-					kafkaClient.commit(record);
-				}catch(NoResolverException | NotAnIntentException | ErrorMessageException ex){
-					kafkaClient.ignore(record);
+		PartitionExecutor executor = null;
+		VirtualThreadExecutor threads = null;
+		if(maxConcurrent > 0)
+			threads = new VirtualThreadExecutor(maxConcurrent, this::prepare, this::publish);
+		else if(workers > 1)
+			executor = new PartitionExecutor(workers, this::process);
+		PendingRecords pending = new PendingRecords(transport, maxPending);
+		transport.setRebalanceListener(new ConsumerRebalanceListener(){
+			@Override
+			public void onPartitionsRevoked(Collection<TopicPartition> partitions){
+				pending.release(partitions, drainMillis);
+			}
+			@Override
+			public void onPartitionsAssigned(Collection<TopicPartition> partitions){}
+		});
+		if(transport instanceof KafkaClient)
+			((KafkaClient)transport).setMetrics(metrics);
+		metrics.register(group);
+		try{
+			while(running){
+				if(routing)
+					subscribe();
+				long polling = System.nanoTime();
+				ConsumerRecords<String, byte[]> records = transport.consume();
+				Trace.polled(group, records.count(), polling);
+				metrics.polled(records.count());
+				for(ConsumerRecord<String, byte[]> record : records){
+					BooleanSupplier abandoned = pending.abandoned(record);
+					if(threads != null)
+						pending.add(record, threads.submit(record, abandoned));
+					else if(executor != null)
+						pending.add(record, executor.submit(record, abandoned));
+					else
+						pending.add(record, process(record, abandoned));
 				}
+				//Transactions are only committed between batches, once every record has finished
+				if(transport.isTransactional())
+					pending.await();
+				else
+					pending.drain();
+			}
+			pending.release(null, drainMillis);
+			pending.drain();
+			transport.close();
+		}catch(RuntimeException | Error ex){
+			if(transport.isTransactional())
+				transport.abortTransaction();
+			throw ex;
+		}finally{
+			if(executor != null)
+				executor.shutdown();
+			if(threads != null)
+				threads.shutdown();
+			metrics.unregister();
+		}
+	}
+	
+	/**
+	 * Subscribes to the topics of the registered resolvers, if they have changed since the last subscription.
+	 */
+	private void subscribe(){
+		IntentFilter filter = resolvers.filter();
+		if(filter == subscribed)
+			return;
+		Set<String> topics = new HashSet<String>();
+		for(String name : resolvers.names())
+			topics.add(KafkaClient.topicOf(name));
+		if(readFallback || topics.isEmpty())
+			topics.add(KafkaClient.getTopic());
+		transport.subscribe(topics);
+		subscribed = filter;
+	}
+	
+	/**
+	 * Parses a record, resolves its intent and publishes the result.
+	 * 
+	 * Unless the resolver of the intent is an <code>{@link AsyncResolver}</code>, all of this is done before returning.
+	 * @param record Record to process
+	 * @param abandoned Tells whether the record has been abandoned, in which case it is neither resolved nor published
+	 * @return Future telling whether the record has been resolved and sent (true), or it has to be ignored (false)
+	 */
+	private CompletableFuture<Boolean> process(ConsumerRecord<String, byte[]> record, BooleanSupplier abandoned){
+		return prepare(record, abandoned).thenApply(message -> !abandoned.getAsBoolean() && publish(message));
+	}
+	
+	/**
+	 * Parses a record and resolves its intent, without publishing it.
+	 * @param record Record to process
+	 * @param abandoned Tells whether the record has been abandoned, in which case it is not resolved
+	 * @return Future of the resolved message, either as a <code>{@link JSONObject}</code> or raw, or null if the record has to be ignored
+	 */
+	private CompletableFuture<Object> prepare(ConsumerRecord<String, byte[]> record, BooleanSupplier abandoned){
+		//Its partition may have been revoked while it was waiting for a worker
+		if(abandoned.getAsBoolean())
+			return NOTHING;
+		onReception(record);
+		Trace trace = Trace.start(record, group, traceSampling);
+		//Messages received as objects are neither filtered nor parsed
+		JSONObject shared = transport.message(record);
+		boolean binary = shared != null || BinaryCodec.isBinary(record);
+		//Most messages are meant for other agents, so they are discarded before parsing them when possible
+		long start = trace.now();
+		boolean accepted = binary || resolvers.filter().accepts(record.value());
+		trace.end(Trace.FILTER, start);
+		if(!accepted){
+			metrics.filtered();
+			return NOTHING;
+		}
+		if(spliceMode && !binary){
+			//Raw messages are tokenized while resolving them, so there are no parsing nor locating stages
+			long resolving = trace.now();
+			CompletableFuture<byte[]> raw;
+			try{
+				raw = resolveRaw(record.value(), true);
+			}catch(MalformedMessageException ex){
+				metrics.malformed();
+				onMalformed(record, ex);
+				return NOTHING;
+			}
+			return raw.thenCompose(resolved -> {
+				if(resolved == null)
+					return NOTHING;
+				return resolveLocally(resolved, 1).thenApply(message -> {
+					trace.end(Trace.RESOLVE, resolving);
+					return trace.wrap(message);
+				});
+			});
+		}
+		start = trace.now();
+		JSONObject incoming;
+		try{
+			incoming = shared != null ? shared : Util.parse(record.value());
+		}catch(MalformedMessageException ex){
+			metrics.malformed();
+			onMalformed(record, ex);
+			return NOTHING;
+		}
+		trace.end(Trace.PARSE, start);
+		metrics.parsed();
+		start = trace.now();
+		IntentLocator locator = locator();
+		int located = locator.locate(incoming);
+		trace.end(Trace.LOCATE, start);
+		if(located != IntentLocator.FOUND){
+			metrics.ignored(located);
+			return NOTHING;
+		}
+		trace.detail(locator.found().getString("intent"));
+		long resolving = trace.now();
+		return resolveStep(locator.found(), incoming).thenCompose(resolved -> {
+			if(!resolved){
+				metrics.ignored(IntentLocator.FOUND);
+				return NOTHING;
 			}
+			return resolveLocally(incoming, 1).thenApply(message -> {
+				trace.end(Trace.RESOLVE, resolving);
+				return trace.wrap(message);
+			});
+		});
+	}
+	
+	/**
+	 * Resolves the intent found in a message. If sibling intents are resolved in parallel, every other independent intent this agent can resolve is resolved along with it.
+	 * @param json The intent found
+	 * @param main The main message where the intent is
+	 * @return Future telling whether the intent has been resolved, which is false if there is no resolver for the intent
+	 */
+	private CompletableFuture<Boolean> resolveStep(JSONObject json, JSONObject main){
+		if(siblingPool == null || resolvers.get(json.getString("intent")) == null)
+			return resolveIntentAsync(json, main);
+		List<JSONObject> leaves = new ArrayList<JSONObject>();
+		List<Resolver> owners = new ArrayList<Resolver>();
+		collectLeaves(main, leaves, owners);
+		if(leaves.size() == 1)
+			return resolveIntentAsync(json, main);
+		List<CompletableFuture<JSONObject>> resolutions = new ArrayList<CompletableFuture<JSONObject>>(leaves.size());
+		List<JSONObject> errors = new ArrayList<JSONObject>(leaves.size());
+		for(int i = 0; i < leaves.size(); i++){
+			Resolver resolver = owners.get(i);
+			JSONObject leaf = leaves.get(i);
+			Intent intent = new Intent(leaf.getString("intent"), leaf, claims);
+			JSONObject error = new JSONObject();
+			errors.add(error);
+			//The main message is only read while resolving; resolutions are substituted once all of them have finished
+			resolutions.add(CompletableFuture.supplyAsync(() -> resolveAsync(resolver, intent, main, error), siblingPool).thenCompose(f -> f));
+		}
+		return CompletableFuture.allOf(resolutions.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			for(int i = 0; i < leaves.size(); i++){
+				substitute(leaves.get(i), resolutions.get(i).join());
+				if(errors.get(i).has("error"))
+					main.put("error", errors.get(i).get("error"));
+			}
+			return true;
+		});
+	}
+	
+	/**
+	 * Collects, in search order, the intents of a message that have no other intent nested in them and can be resolved by this agent.
+	 * Quoted keys are skipped, and the search stops at the first error key, as <code>{@link IntentLocator}</code> does, so no intent
+	 * past an error is resolved.
+	 * @param json Message, or part of it
+	 * @param leaves Intents found
+	 * @param owners Resolvers of the intents found
+	 * @return <code>{@link IntentLocator#ERROR}</code> if an error key has been reached, <code>{@link IntentLocator#FOUND}</code> if there is any intent
+	 * in the JSON given, or <code>{@link IntentLocator#NOT_AN_INTENT}</code> otherwise
+	 */
+	private int collectLeaves(JSONObject json, List<JSONObject> leaves, List<Resolver> owners){
+		boolean nested = false;
+		for(String key : Util.sortAlphabetically(json.keySet().toArray(new String[0]))){
+			if(key.equals("error"))
+				return IntentLocator.ERROR;
+			//Ignore quotations
+			if(key.endsWith("!"))
+				continue;
+			Object value = json.get(key);
+			if(value instanceof JSONArray){
+				JSONArray arr = (JSONArray)value;
+				for(int i = 0; i < arr.length(); i++){
+					if(arr.get(i) instanceof JSONObject){
+						int result = collectLeaves(arr.getJSONObject(i), leaves, owners);
+						if(result == IntentLocator.ERROR)
+							return result;
+						nested |= result == IntentLocator.FOUND;
+					}
+				}
+			}else if(value instanceof JSONObject){
+				int result = collectLeaves((JSONObject)value, leaves, owners);
+				if(result == IntentLocator.ERROR)
+					return result;
+				nested |= result == IntentLocator.FOUND;
+			}
+		}
+		if(!(json.opt("intent") instanceof String))
+			return nested ? IntentLocator.FOUND : IntentLocator.NOT_AN_INTENT;
+		if(!nested){
+			Resolver resolver = resolvers.get(json.getString("intent"));
+			if(resolver != null){
+				leaves.add(json);
+				owners.add(resolver);
+			}
+		}
+		return IntentLocator.FOUND;
+	}
+	
+	/**
+	 * Resolves in parallel every independent intent of a message that this agent can resolve, instead of just the first one. Intents are independent when
+	 * none of them is nested in another one. This only happens when the first intent of the message belongs to this agent; the resolutions are then substituted
+	 * into the message, which is published once. As usual, a failed resolution adds its error to the main message.
+	 * 
+	 * Resolvers may then be called concurrently, and must be thread safe. Raw messages (see <code>{@link #setSpliceMode(boolean)}</code>) are still resolved one intent at a time.
+	 * Must be called before the agent is started.
+	 * @param pool Pool where the intents are resolved, or null (the default) to resolve only the first intent
+	 */
+	public void setParallelSiblings(ForkJoinPool pool){
+		this.siblingPool = pool;
+	}
+	
+	/**
+	 * Keeps resolving a message as long as its next intent can be resolved by this agent, and the step limit has not been reached.
+	 * @param json Message whose first intent has already been resolved
+	 * @param steps Number of intents resolved so far
+	 * @return Future of the message, once it has to be published
+	 */
+	private CompletableFuture<JSONObject> resolveLocally(JSONObject json, int steps){
+		if(steps >= maxLocalSteps)
+			return CompletableFuture.completedFuture(json);
+		IntentLocator locator = locator();
+		if(locator.locate(json) != IntentLocator.FOUND)
+			return CompletableFuture.completedFuture(json);
+		return resolveStep(locator.found(), json).thenCompose(resolved -> {
+			if(!resolved)
+				return CompletableFuture.completedFuture(json);
+			return resolveLocally(json, steps+1);
+		});
+	}
+	
+	/**
+	 * Raw version of <code>{@link #resolveLocally(JSONObject, int)}</code>.
+	 * @param message Raw message whose first intent has already been resolved
+	 * @param steps Number of intents resolved so far
+	 * @return Future of the raw message, once it has to be published
+	 */
+	private CompletableFuture<byte[]> resolveLocally(byte[] message, int steps){
+		if(steps >= maxLocalSteps)
+			return CompletableFuture.completedFuture(message);
+		CompletableFuture<byte[]> raw;
+		try{
+			raw = resolveRaw(message, false);
+		}catch(MalformedMessageException ex){
+			//Not a message of this agent, so it is published as it is
+			return CompletableFuture.completedFuture(message);
+		}
+		return raw.thenCompose(resolved -> {
+			if(resolved == null)
+				return CompletableFuture.completedFuture(message);
+			return resolveLocally(resolved, steps+1);
+		});
+	}
+	
+	/**
+	 * Sets how many intents of a message this agent may resolve before publishing it. After resolving an intent, if the next intent of the message
+	 * can also be resolved by this agent, it is resolved right away, saving the trip through Kafka; until the limit is reached, the next intent
+	 * belongs to another agent, or the message is fully resolved.
+	 * 
+	 * Must be called before the agent is started.
+	 * @param maxLocalSteps Maximum number of intents resolved per received message, 1 by default
+	 */
+	public void setMaxLocalSteps(int maxLocalSteps){
+		if(maxLocalSteps < 1)
+			throw new IllegalArgumentException("The maximum number of local steps must be positive");
+		this.maxLocalSteps = maxLocalSteps;
+	}
+	
+	/**
+	 * Publishes a message resolved by <code>{@link #prepare(ConsumerRecord, BooleanSupplier)}</code>.
+	 * @param resolved Resolved message, or null if there is nothing to publish
+	 * @return Whether the message has been published
+	 */
+	private boolean publish(Object resolved){
+		if(resolved == null)
+			return false;
+		Trace trace = Trace.OFF;
+		if(resolved instanceof Trace){
+			trace = (Trace)resolved;
+			resolved = trace.message();
 		}
+		if(resolved instanceof byte[])
+			this.send((byte[])resolved, trace);
+		else
+			this.send((JSONObject)resolved, trace);
+		return true;
+	}
+	
+	/**
+	 * Runs every resolution on its own virtual thread, so that blocking resolvers do not hold the agent back. Records of all partitions are resolved concurrently,
+	 * but resolved messages are published, and their records committed, in the same order as with the sequential loop: partition by partition, in offset order.
+	 * Resolvers, as well as <code>{@link #onReception(ConsumerRecord)}</code> and <code>{@link #onSending(JSONObject)}</code>, must be thread safe.
+	 * 
+	 * This mode takes precedence over <code>{@link #setWorkers(int)}</code>. On runtimes without virtual threads (before Java 21), a fixed pool of <code>maxConcurrent</code> regular threads is used instead.
+	 * Must be called before the agent is started.
+	 * @param maxConcurrent Maximum number of resolutions running at the same time, or 0 (the default) to disable this mode
+	 */
+	public void setVirtualThreads(int maxConcurrent){
+		if(maxConcurrent < 0)
+			throw new IllegalArgumentException("The maximum number of concurrent resolutions cannot be negative");
+		this.maxConcurrent = maxConcurrent;
+	}
+	
+	/**
+	 * Sets the maximum number of records of a partition that may be pending at the same time, i.e., waiting for an <code>{@link AsyncResolver}</code>
+	 * or queued in a worker. Once reached, the agent stops fetching records from the partition until half of them have finished.
+	 * 
+	 * Must be called before the agent is started.
+	 * @param maxPending Maximum number of pending records per partition, 500 by default
+	 */
+	public void setMaxPending(int maxPending){
+		if(maxPending < 1)
+			throw new IllegalArgumentException("The maximum number of pending records must be positive");
+		this.maxPending = maxPending;
+	}
+	
+	/**
+	 * Sets how long the records in progress are given to finish when the agent is shut down (see <code>{@link #shutdown()}</code>), or when partitions are revoked
+	 * from it, e.g. because another agent of its group has started or stopped. Records finished in time are committed; the others are abandoned,
+	 * and will be processed again by the next owner of their partition.
+	 * 
+	 * Must be called before the agent is started.
+	 * @param millis Maximum time to wait for the records in progress, in milliseconds, 5000 by default
+	 */
+	public void setDrainTimeout(long millis){
+		if(millis < 0)
+			throw new IllegalArgumentException("The drain timeout cannot be negative");
+		this.drainMillis = millis;
+	}
+	
+	/**
+	 * Stops the agent: it stops receiving records, waits for the records in progress to finish (see <code>{@link #setDrainTimeout(long)}</code>),
+	 * commits them, publishes the messages waiting to be sent and closes its transport. This method returns right away; join the agent to wait until it has stopped.
+	 */
+	public void shutdown(){
+		running = false;
+		transport.wakeup();
+	}
+	
+	/**
+	 * Sets the number of worker threads used to process records. With a single worker (the default), records are processed one by one in the thread of the agent.
+	 * 
+	 * With more than one worker, records are spread across the workers by partition: records of the same partition are still processed in offset order,
+	 * and their offsets are committed only once every previous record of the partition has finished. Workers wait for <code>{@link AsyncResolver}</code>s before
+	 * taking the next record of the partition. Resolvers, as well as <code>{@link #onReception(ConsumerRecord)}</code> and <code>{@link #onSending(JSONObject)}</code>,
+	 * may then be called concurrently, and must be thread safe.
+	 * 
+	 * Must be called before the agent is started.
+	 * @param workers Number of worker threads
+	 */
+	public void setWorkers(int workers){
+		if(workers < 1)
+			throw new IllegalArgumentException("The number of workers must be positive");
+		this.workers = workers;
+	}
+	/**
+	 * Sets whether messages are resolved in their raw form, through <code>{@link #intentResolver(byte[])}</code>, instead of parsing them as a whole.
+	 * 
+	 * In this mode, <code>{@link #send(JSONObject)}</code> is bypassed: resolved messages are published directly as bytes, and are only parsed for
+	 * <code>{@link #onSending(JSONObject)}</code> if it has been overridden. Must be called before the agent is started.
+	 * @param spliceMode true to resolve raw messages, false (the default) to parse them
+	 */
+	public void setSpliceMode(boolean spliceMode){
+		this.spliceMode = spliceMode;
+	}
+	/**
+	 * Remembers where the intent is in the messages of the most common shapes, i.e., with the same keys and kinds of values, such as the messages built from the same template.
+	 * Messages of a known shape go straight to their intent instead of being searched as described in <code>{@link #intentResolver(JSONObject)}</code>;
+	 * the intent found is always the same. Raw messages resolved in their raw form (see <code>{@link #setSpliceMode(boolean)}</code>) are still searched.
+	 * Taking the shape of a message walks all of it, so this pays off for wide messages whose intent comes late in the search, which sorts the keys of every object it visits.
+	 * 
+	 * Must be called before the agent is started.
+	 * @param maxShapes Maximum number of shapes remembered, or 0 (the default) to search every message
+	 */
+	public void setShapeCache(int maxShapes){
+		if(maxShapes < 0)
+			throw new IllegalArgumentException("The maximum number of shapes cannot be negative");
+		this.shapes = maxShapes == 0 ? null : new ShapeCache(maxShapes);
+	}
+	/**
+	 * Sets whether messages are routed by intent. When routed, each message is published in the topic of its next unresolved intent
+	 * (see <code>{@link KafkaClient#topicOf(String)}</code>), and fully resolved messages, as well as messages with errors, in the default topic.
+	 * The agent then only reads the topics of its registered resolvers, following any change in them while running.
+	 * 
+	 * Every agent sharing the topics must route messages as well. Must be called before the agent is started.
+	 * @param routing true to route messages by intent, false (the default) to publish and read every message in the default topic
+	 * @param readFallback Whether the agent also reads the default topic, e.g., to receive fully resolved messages in <code>{@link #onReception(ConsumerRecord)}</code>.
+	 * The default topic is always read when there are no resolvers
+	 */
+	public void setRouting(boolean routing, boolean readFallback){
+		this.routing = routing;
+		this.readFallback = readFallback;
+	}
+	/**
+	 * Makes the agent resolve messages exactly once: the messages it publishes and the records it commits are committed together in Kafka transactions,
+	 * so that a crash never leaves a record resolved but not committed, or the other way round. Each transaction covers every batch of records polled
+	 * during the commit interval (see <code>{@link KafkaClient#setCommitInterval(long, int)}</code>). Records are still processed concurrently within
+	 * a batch, but the agent waits for the whole batch before polling the next one.
+	 * 
+	 * Every agent reads committed messages only. Must be called before the agent is started.
+	 * @param transactionalId Identifier of this agent instance, which must be unique and kept across restarts
+	 */
+	public void setTransactional(String transactionalId){
+		if(!(transport instanceof KafkaClient))
+			throw new IllegalStateException("Only agents using Kafka can be transactional");
+		((KafkaClient)transport).setTransactional(transactionalId);
+	}
+	/**
+	 * Sets whether messages are published in a compact binary format instead of JSON text. Binary messages are smaller and cheaper to parse,
+	 * and records holding them are marked with a header. Agents read both formats whatever this setting, so agents can switch to the binary format one by one.
+	 * Floats are published as doubles, so they are read back as doubles.
+	 * 
+	 * Raw messages resolved in splice mode (see <code>{@link #setSpliceMode(boolean)}</code>) keep their format. Must be called before the agent is started.
+	 * @param binary true to publish binary messages, false (the default) to publish JSON text
+	 */
+	public void setBinary(boolean binary){
+		this.binary = binary;
+	}
+	/**
+	 * Takes the large text fields, such as transcripts or attachments, out of the messages this agent publishes, and keeps them in a store instead.
+	 * Each field is replaced by a small reference to its content, so it is not carried through Kafka, nor parsed, on every step of the conversation.
+	 * Resolvers get the content of a field back through <code>{@link Intent#claim(String)}</code>; fields that are never claimed are never read again.
+	 * 
+	 * Every agent resolving the intents with large fields must use the same store. Raw messages resolved in splice mode
+	 * (see <code>{@link #setSpliceMode(boolean)}</code>) are published as they are. Must be called before the agent is started.
+	 * @param store Store of the fields, e.g. a <code>{@link MappedFileBlobStore}</code>, or null (the default) to keep every field in the messages
+	 * @param threshold Minimum size of the fields taken out, in UTF-8 bytes
+	 */
+	public void setClaimCheck(BlobStore store, int threshold){
+		if(threshold < 1)
+			throw new IllegalArgumentException("The size threshold must be positive");
+		this.claims = store == null ? null : new ClaimCheck(store, threshold);
+	}
+	/**
+	 * Sets how the keys of published messages are chosen, e.g., <code>KeyExtractor.path("conversation_id")</code> so that every step of a conversation
+	 * is placed in the same partition and read by the same agent. Must be called before the agent is started.
+	 * @param keyExtractor Extractor of the keys, or null (the default) to publish every message with a random key
+	 */
+	public void setKeyExtractor(KeyExtractor keyExtractor){
+		this.keyExtractor = keyExtractor;
+	}
+	/**
+	 * Sets whether messages carry a trace header, telling how long each agent has taken with them, and in which stage. A sample of the messages
+	 * received without the header starts a new trace; messages received with it are always traced, whatever the sampling, so every agent of the
+	 * conversation adds its hop to the trace. Traces are read with <code>{@link TraceReport}</code>.
+	 * 
+	 * Besides, the stages of every record are reported as Flight Recorder events (<code>org.zoe.Stage</code>) whenever a recording enables them.
+	 * Must be called before the agent is started.
+	 * @param sampling Probability that a message starts a new trace, between 0 and 1, e.g. 0.001; or a negative value (the default) to neither read nor write trace headers
+	 */
+	public void setTracing(double sampling){
+		if(sampling > 1 || Double.isNaN(sampling))
+			throw new IllegalArgumentException("The sampling probability cannot be greater than 1");
+		this.traceSampling = sampling;
 	}
 	/**
 	 * This method will be executed at the time a record is received. Override if necessary
+	 * 
+	 * Records carrying objects (see <code>{@link Transport#message(ConsumerRecord)}</code>) are resolved in place once this method returns,
+	 * so their value must only be read during this call.
 	 * @param record
 	 */
 	public void onReception(ConsumerRecord<String, byte[]> record){}
+	/**
+	 * This method will be executed when a record cannot be parsed, either because it is not a JSON object or because it is not valid UTF-8.
+	 * The record is then skipped. By default, the record is reported in the standard error output. Override if necessary, e.g. to publish
+	 * the record in a dead letter topic, or throw an exception to stop the agent.
+	 * @param record Malformed record
+	 * @param ex Parsing error
+	 */
+	public void onMalformed(ConsumerRecord<String, byte[]> record, MalformedMessageException ex){
+		System.err.println("Skipping malformed record "+record.topic()+"-"+record.partition()+"@"+record.offset()+": "+ex.getMessage());
+	}
 	/**
 	 * This method will be executed a the time a json is sent. Override if necessary
 	 * @param json
@@ -65,107 +603,256 @@ public class Agent extends Thread{
 	/**
 	 * This method resolves an intent and returns the resolution. The resolution is constructed by adding the data type of the resolver to the resolution. If an <code>{@link IntentErrorException}</code> has been thrown,
 	 * it will return the error object plus the error message,  and add that message to the main message.
+	 * @param resolver Resolver of the intent
 	 * @param intent Intent to resolve
 	 * @param main Main message where the intent is
 	 * @return Resolved intent
+	 */
+	private JSONObject resolve(Resolver resolver, Intent intent, JSONObject main){
+		return resolveAsync(resolver, intent, main, main).join();
+	}
+	
+	/**
+	 * Asynchronous version of <code>{@link #resolve(Resolver, Intent, JSONObject)}</code>. The resolver is called right away, unless it is an <code>{@link AsyncResolver}</code>.
+	 * If the resolver is cacheable, the resolution is taken from its cache when possible, and counted as a cache hit rather than timed as a resolution.
+	 * @param resolver Resolver of the intent
+	 * @param intent Intent to resolve
+	 * @param full Full message passed to the resolver
+	 * @param main Main message where the error is added, if the resolver fails
+	 * @return Future of the resolved intent
+	 */
+	private CompletableFuture<JSONObject> resolveAsync(Resolver resolver, Intent intent, JSONObject full, JSONObject main){
+		ResolutionCache cache = resolver.getCache();
+		long start = System.nanoTime();
+		if(cache != null){
+			//Only the resolutions actually made are timed, as they complete, while the hits are counted by the cache
+			return cache.get(intent, () -> AsyncResolver.resolve(resolver, intent, full).whenComplete((resolved, ex) ->
+					metrics.resolved(resolver.getName(), System.nanoTime()-start, unwrap(ex) instanceof IntentErrorException)), metrics.cacheHits(resolver.getName()))
+					.handle((resolved, ex) -> completeResolution(resolver, resolved, ex, main));
+		}
+		return AsyncResolver.resolve(resolver, intent, full).handle((resolved, ex) -> {
+			metrics.resolved(resolver.getName(), System.nanoTime()-start, unwrap(ex) instanceof IntentErrorException);
+			return completeResolution(resolver, resolved, ex, main);
+		});
+	}
+	
+	/**
+	 * Completes a resolution, replacing the error of a failed resolver with its error object, which is also added to the main message.
+	 * @param resolver Resolver of the intent
+	 * @param resolved Resolution, if the resolver did not fail
+	 * @param ex Error of the resolution, or null
+	 * @param main Main message where the error is added
+	 * @return Resolved intent
+	 */
+	private static JSONObject completeResolution(Resolver resolver, JSONObject resolved, Throwable ex, JSONObject main){
+		Throwable cause = unwrap(ex);
+		if(cause == null)
+			return resolved;
+		if(!(cause instanceof IntentErrorException))
+			throw ex instanceof CompletionException ? (CompletionException)ex : new CompletionException(ex);
+		JSONObject error = errorObject(resolver, (IntentErrorException)cause);
+		main.put("error", error.get("error"));
+		return error;
+	}
+	private static Throwable unwrap(Throwable ex){
+		return ex instanceof CompletionException ? ex.getCause() : ex;
+	}
+	
+	/**
+	 * Builds the resolution of an intent whose resolver has failed, making sure it contains an error key.
+	 * @param resolver Resolver that failed
+	 * @param ex Error thrown by the resolver
+	 * @return Error object
+	 */
+	private static JSONObject errorObject(Resolver resolver, IntentErrorException ex){
+		JSONObject error = resolver.getErrorObject(ex);
+		if(!error.has("error")) error.put("error", ex.getMessage());
+		return error;
+	}
+	
+	/**
+	 * Raw version of <code>{@link #intentResolver(JSONObject)}</code>. It searches for the same intent, in the same order, and produces the same resolution,
+	 * but the message is only tokenized: just the intent found is parsed, and its resolution is spliced into the original bytes.
+	 * 
+	 * Messages that cannot be handled in their raw form, and messages whose intent is resolved by a <code>{@link Resolver}</code> that uses the full message,
+	 * are parsed and resolved through <code>{@link #intentResolver(JSONObject)}</code> instead.
+	 * @param message The raw message to resolve
+	 * @return The raw message resolved
 	 * @throws NoResolverException
+	 * @throws NotAnIntentException
+	 * @throws ErrorMessageException
 	 */
-	private JSONObject resolve(Intent intent, JSONObject main) throws NoResolverException{
-		for(String r : resolvers.keySet()){
-			if(r.equals(intent.name)){
-				JSONObject resolved;
-				try{
-					resolved = resolvers.get(r).resolve(intent, main);
-				}catch(IntentErrorException ex){
-					ex.printStackTrace();
-					JSONObject error = resolvers.get(r).getErrorObject(ex);
-					if(!error.has("error")) error.put("error", ex.getMessage());
-					resolved = error;
-					main.put("error", error.get("error"));
-				}
-				return resolved;
-			}
-		}	
-		throw new NoResolverException();
+	public final byte[] intentResolver(byte[] message) throws NoResolverException, NotAnIntentException, ErrorMessageException{
+		RawMessage raw;
+		try{
+			raw = new RawMessage(message);
+		}catch(RawMessage.MalformedException ex){
+			return toBytes(intentResolver(Util.bytesToJSON(message)));
+		}
+		switch(raw.locate()){
+		case IntentLocator.ERROR:
+			throw new ErrorMessageException(raw.error());
+		case IntentLocator.NOT_AN_INTENT:
+			throw new NotAnIntentException();
+		default:
+			byte[] resolved = resolveRaw(raw, message, false).join();
+			if(resolved == null)
+				throw new NoResolverException();
+			return resolved;
+		}
+	}
+	
+	/**
+	 * Exception free, asynchronous version of <code>{@link #intentResolver(byte[])}</code>, used by the consumer loop.
+	 * @param message The raw message to resolve
+	 * @param received Whether the message is a received record, which is counted in the metrics, or the outcome of a previous step
+	 * @return Future of the raw message resolved, which is null if it cannot be resolved by this agent
+	 * @throws MalformedMessageException If the message cannot be parsed
+	 */
+	private CompletableFuture<byte[]> resolveRaw(byte[] message, boolean received) throws MalformedMessageException{
+		RawMessage raw;
+		try{
+			raw = new RawMessage(message);
+		}catch(RawMessage.MalformedException ex){
+			JSONObject json = Util.parse(message);
+			if(received)
+				metrics.parsed();
+			return resolveParsed(json, received);
+		}
+		if(received)
+			metrics.parsed();
+		int located = raw.locate();
+		if(located != IntentLocator.FOUND){
+			if(received)
+				metrics.ignored(located);
+			return CompletableFuture.completedFuture(null);
+		}
+		return resolveRaw(raw, message, received);
+	}
+	
+	/**
+	 * Resolves the intent located in a raw message.
+	 * @return Future of the raw message resolved, which is null if there is no resolver for the intent
+	 */
+	private CompletableFuture<byte[]> resolveRaw(RawMessage raw, byte[] message, boolean received){
+		JSONObject json = raw.intent();
+		String name = json.getString("intent");
+		Resolver resolver = resolvers.get(name);
+		if(resolver == null){
+			if(received)
+				metrics.ignored(IntentLocator.FOUND);
+			return CompletableFuture.completedFuture(null);
+		}
+		if(resolver.usesFullMessage())
+			return resolveParsed(Util.bytesToJSON(message), received);
+		JSONObject errors = new JSONObject();
+		return resolveAsync(resolver, new Intent(name, json, claims), null, errors).thenApply(resolved -> raw.splice(resolved, errors.opt("error")));
+	}
+	
+	/**
+	 * Resolves a raw message by parsing it, for the raw messages that cannot be resolved in their raw form.
+	 */
+	private CompletableFuture<byte[]> resolveParsed(JSONObject json, boolean received){
+		IntentLocator locator = locator();
+		int located = locator.locate(json);
+		if(located != IntentLocator.FOUND){
+			if(received)
+				metrics.ignored(located);
+			return CompletableFuture.completedFuture(null);
+		}
+		return resolveIntentAsync(locator.found(), json).thenApply(resolved -> {
+			if(!resolved && received)
+				metrics.ignored(IntentLocator.FOUND);
+			return resolved ? toBytes(json) : null;
+		});
+	}
+	
+	/**
+	 * @return The intent locator of the current thread, with the shape cache of the agent
+	 */
+	private IntentLocator locator(){
+		IntentLocator locator = locators.get();
+		locator.setShapes(shapes);
+		return locator;
 	}
 	
 	/**
 	 * This method will search for intents and resolve the appropriate one in the JSON json
+	 * 
+	 * The search is done recursively, from left to right, in depth, until it reaches a valid one, as described in <code>{@link IntentLocator}</code>.
 	 * @param json The message to resolve
 	 * @return Resolved message
 	 * @throws NotAnIntentException
 	 * @throws NoResolverException
 	 * @throws ErrorMessageException 
 	 */
-	public final JSONObject intentResolver(JSONObject json) throws NoResolverException, NotAnIntentException, ErrorMessageException{ return intentResolver(json, json); }
+	public final JSONObject intentResolver(JSONObject json) throws NoResolverException, NotAnIntentException, ErrorMessageException{
+		IntentLocator locator = locator();
+		switch(locator.locate(json)){
+		case IntentLocator.ERROR:
+			throw new ErrorMessageException(locator.error().toString());
+		case IntentLocator.NOT_AN_INTENT:
+			throw new NotAnIntentException();
+		default:
+			if(!resolveIntent(locator.found(), json))
+				throw new NoResolverException();
+			return json;
+		}
+	}
 	
 	/**
-	 * This method searches for an intent recursively, from left to right, in depth, until it reaches a valid one; and returns the main json with the intent resolved
+	 * Asynchronous version of <code>{@link #resolveIntent(JSONObject, JSONObject)}</code>, used by the consumer loop.
 	 * @param json The intent to resolve
 	 * @param main The main message where the intent is
-	 * @return The main message resolved
-	 * @throws NotAnIntentException
-	 * @throws NoResolverException
-	 * @throws ErrorMessageException 
-	 * @throws JSONException 
-	 */
-	private JSONObject intentResolver(JSONObject json, JSONObject main) throws NoResolverException, NotAnIntentException, ErrorMessageException{
-		String[] keys = new String[1];
-		keys = json.keySet().toArray(keys);
-		keys = Util.sortAlphabetically(keys);
-		
-		for(int i = 0; i < keys.length; i++){
-			String key = keys[i]; //Current key
-			if(key == null)
-				throw new NotAnIntentException();
-			if(key.equals("error"))
-				throw new ErrorMessageException(json.get(key).toString());
-			//Ignore quotations
-			if(key.substring(key.length()-1).equalsIgnoreCase("!"))
-				continue;
-			//If the element is an array, scan through the whole array for intents
-			if(json.get(key) instanceof JSONArray) {
-				JSONArray arr = json.getJSONArray(key);
-				Iterator<Object> it = arr.iterator();
-				while(it.hasNext()) {
-					Object current = it.next();
-					if(current instanceof JSONObject) {
-						try{
-							//If we find a JSONObject, we try to find there some Intents. If there are, they will be resolved
-							return intentResolver((JSONObject)current, main);					
-						}catch(NotAnIntentException ex){
-							//An exception will be thrown if we have reached and object with no more nested jsons, and that object is not an intent.
-							continue;
-						}
-					}
-				}
-			}
-			if(json.get(key) instanceof JSONObject){
-				try{
-					//If we find a JSONObject, we try to find there some Intents. If there are, they will be resolved
-					return intentResolver(json.getJSONObject(key), main);					
-				}catch(NotAnIntentException ex){
-					//An exception will be thrown if we have reached and object with no more nested jsons, and that object is not an intent.
-					continue;
-				}
-			}
-		}
-		
-		//We resolve the intent and substitute it with the resolution 		
-		JSONObject resolved;
-		Intent intent = new Intent(json);
-		resolved = resolve(intent, main);
-		String[] kk = new String[1];
-		kk = json.keySet().toArray(kk);
-		for(String k : kk){
-			json.remove(k);
-		}
-		kk = new String[1];
-		kk = resolved.keySet().toArray(kk);
-		for(String k : kk){
+	 * @return Future telling whether the intent has been resolved, which is false if there is no resolver for the intent
+	 */
+	private CompletableFuture<Boolean> resolveIntentAsync(JSONObject json, JSONObject main){
+		String name = json.getString("intent");
+		Resolver resolver = resolvers.get(name);
+		if(resolver == null)
+			return IGNORED;
+		return resolveAsync(resolver, new Intent(name, json, claims), main, main).thenApply(resolved -> {
+			substitute(json, resolved);
+			return true;
+		});
+	}
+	
+	/**
+	 * Resolves an intent and substitutes it with its resolution.
+	 * @param json The intent to resolve
+	 * @param main The main message where the intent is
+	 * @return false if there is no resolver for the intent
+	 */
+	private boolean resolveIntent(JSONObject json, JSONObject main){
+		String name = json.getString("intent");
+		Resolver resolver = resolvers.get(name);
+		if(resolver == null)
+			return false;
+		substitute(json, resolve(resolver, new Intent(name, json, claims), main));
+		return true;
+	}
+	
+	private static void substitute(JSONObject json, JSONObject resolved){
+		json.keySet().clear();
+		for(String k : resolved.keySet()){
 			json.put(k, resolved.get(k));
 		}
-		return main;
+	}
+	
+	/**
+	 * @param message Raw message
+	 * @return Whether the message may have an intent this agent can resolve, as told by the filter of its resolvers
+	 */
+	boolean accepts(byte[] message){
+		return resolvers.filter().accepts(message);
+	}
+	
+	/**
+	 * @param intent Name of an intent
+	 * @return Whether this agent has a resolver for the intent
+	 */
+	boolean resolves(String intent){
+		return resolvers.get(intent) != null;
 	}
 	
 	/**
@@ -173,13 +860,36 @@ public class Agent extends Thread{
 	 * 
 	 * Resolvers will be chosen by the API to resolve intents based on their name.
 	 * This method is idempotent, i.e., already registered resolvers will not be added.
+	 * Resolvers may be added while the agent is running.
 	 * 
 	 * @param resolver Resolver class that implements the intent solution
 	 */
 	public void addResolver(Resolver resolver){
-		if(!resolvers.containsKey(resolver.getName())){
-			resolvers.put(resolver.getName(), resolver);
-		}
+		resolvers.add(resolver);
+	}
+	
+	/**
+	 * Adds a <code>{@link Resolver}</code> to the resolver list, replacing the one with the same name if there is any.
+	 * 
+	 * Resolvers may be replaced while the agent is running. Intents whose resolution has already started are resolved by the old resolver,
+	 * and the following ones by the new one.
+	 * 
+	 * @param resolver Resolver class that implements the intent solution
+	 * @return The replaced resolver, or null if there was none
+	 */
+	public Resolver replaceResolver(Resolver resolver){
+		return resolvers.replace(resolver);
+	}
+	
+	/**
+	 * Removes a <code>{@link Resolver}</code> from the resolver list. Resolvers may be removed while the agent is running;
+	 * intents whose resolution has already started are still resolved by the removed resolver.
+	 * 
+	 * @param name Name of the resolver
+	 * @return The removed resolver, or null if there was none
+	 */
+	public Resolver removeResolver(String name){
+		return resolvers.remove(name);
 	}
 	
 	/**
@@ -188,16 +898,109 @@ public class Agent extends Thread{
 	 * @param json Message to be delivered
 	 */
 	public void send(JSONObject json){
+		send(json, Trace.OFF);
+	}
+	private void send(JSONObject json, Trace trace){
 		onSending(json);
-		kafkaClient.send(json.toString().getBytes());
+		if(claims != null)
+			json = claims.offload(json);
+		String topic = KafkaClient.getTopic();
+		if(routing){
+			IntentLocator locator = locator();
+			if(locator.locate(json) == IntentLocator.FOUND)
+				topic = KafkaClient.topicOf(locator.found().getString("intent"));
+		}
+		String key = keyExtractor == null ? null : keyExtractor.key(json);
+		if(transport.carriesObjects()){
+			send(topic, key, json, trace);
+			return;
+		}
+		long start = trace.now();
+		byte[] message = toBytes(json);
+		trace.end(Trace.SERIALIZE, start);
+		send(topic, key, message, trace);
+	}
+	
+	/**
+	 * Publishes in the <code>kafkamq</code> queue a raw message.
+	 * 
+	 * @param message Message to be delivered
+	 * @param trace Timing of the record resolved into the message
+	 */
+	private void send(byte[] message, Trace trace){
+		if(overridesOnSending)
+			onSending(Util.bytesToJSON(message));
+		String topic = KafkaClient.getTopic();
+		if(routing){
+			try{
+				RawMessage raw = new RawMessage(message);
+				if(raw.locate() == IntentLocator.FOUND)
+					topic = KafkaClient.topicOf(raw.intent().getString("intent"));
+			}catch(RawMessage.MalformedException ex){
+				IntentLocator locator = locator();
+				if(locator.locate(Util.bytesToJSON(message)) == IntentLocator.FOUND)
+					topic = KafkaClient.topicOf(locator.found().getString("intent"));
+			}
+		}
+		String key = keyExtractor == null ? null : keyExtractor.key(message);
+		send(topic, key, message, trace);
+	}
+	
+	/**
+	 * @param message Message to publish, either serialized or as an object
+	 */
+	private void send(String topic, String key, Object message, Trace trace){
+		long start = trace.now();
+		Iterable<Header> headers = trace.headers();
+		if(message instanceof JSONObject)
+			transport.send(topic, key, (JSONObject)message, headers);
+		else
+			transport.send(topic, key, (byte[])message, headers);
+		trace.end(Trace.SEND, start);
+		metrics.sent();
+	}
+	
+	private byte[] toBytes(JSONObject json){
+		if(binary)
+			return BinaryCodec.encode(json);
+		return Util.jsonToBytes(json);
 	}
 	
+	/**
+	 * @return Whether a hook of this class has been overridden by a subclass
+	 */
+	private boolean overrides(String hook, Class<?>... params){
+		try{
+			return getClass().getMethod(hook, params).getDeclaringClass() != Agent.class;
+		}catch(NoSuchMethodException ex){
+			return false;
+		}
+	}
+	
+	/**
+	 * @return The Kafka client of this agent, or null if it uses another transport
+	 */
 	public KafkaClient getClient(){
-		return kafkaClient;
+		return transport instanceof KafkaClient ? (KafkaClient)transport : null;
+	}
+	
+	/**
+	 * @return The transport of this agent
+	 */
+	public Transport getTransport(){
+		return transport;
+	}
+	
+	/**
+	 * @return The metrics of this agent, which are also exposed through JMX while it runs
+	 */
+	public AgentMetrics getMetrics(){
+		return metrics;
 	}
 	
 	public void finalize(){
-		kafkaClient.finalize();
+		metrics.unregister();
+		transport.close();
 		resolvers.clear();
 	}
 }
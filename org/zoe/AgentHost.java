@@ -0,0 +1,501 @@
+package org.zoe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Hosts many agents in the same JVM on a few Kafka clients: a single producer is shared by every agent of the host,
+ * and the agents of the same group share a single consumer, instead of each agent having its own producer and consumer,
+ * with their own threads, buffers and connections.
+ *
+ * Each group has a thread that polls its consumer and hands every record to the agent of the group with a resolver for its intent, so the agents of a group
+ * may resolve different intents. Those records are parsed once, by the host, and agents get them already parsed. Records no agent can resolve go to the first
+ * agent of the group, which skips them as usual; when a group has a single agent, every record goes to it without being looked at.
+ *
+ * Agents are created by the host (see <code>{@link #agent(String)}</code>), and then configured and started as usual. Hosted agents cannot be transactional.
+ * Unless every agent of a group routes messages by intent (see <code>{@link Agent#setRouting(boolean, boolean)}</code>), the consumer of the group reads the default topic.
+ */
+public class AgentHost {
+	//Maximum number of records given to an agent at once, as in Kafka
+	private static final int MAX_RECORDS = 500;
+	//Maximum number of records waiting for an agent, beyond which their partitions are paused until the agent catches up
+	private static final int MAX_QUEUED = 4*MAX_RECORDS;
+	private static final long POLL_MILLIS = 100;
+	//Maximum time the group waits for its agents to let go of revoked partitions
+	private static final long REVOCATION_MILLIS = 30000;
+
+	private final Function<String, Consumer<String, byte[]>> consumers;
+	private final Producer<String, byte[]> producer;
+	private final Map<String, Dispatcher> groups = new HashMap<String, Dispatcher>();
+	private boolean closed = false;
+
+	/**
+	 * Creates a host connected to the Kafka servers given by the <code>KAFKA_SERVERS</code> environment variable.
+	 */
+	public AgentHost(){
+		this(KafkaClient.getServers());
+	}
+	/**
+	 * @param url Address of the Kafka servers
+	 */
+	public AgentHost(String url){
+		this(group -> KafkaClient.createConsumer(url, group), KafkaClient.createProducer(url, null));
+	}
+	/**
+	 * Creates a host on top of the given consumers and producer, e.g. Kafka's <code>MockConsumer</code> and <code>MockProducer</code>,
+	 * so that hosted agents can be run in tests without any broker.
+	 * @param consumers Creates the consumer of a group
+	 * @param producer Producer shared by the agents
+	 */
+	public AgentHost(Function<String, Consumer<String, byte[]>> consumers, Producer<String, byte[]> producer){
+		this.consumers = consumers;
+		this.producer = producer;
+	}
+
+	/**
+	 * Creates an agent hosted by this host. The agent still has to be started.
+	 * @param group Group of the agent
+	 * @return Agent
+	 */
+	public Agent agent(String group){
+		return agent(group, Agent::new);
+	}
+	/**
+	 * Creates an agent hosted by this host, e.g. <code>host.agent("group", MyAgent::new)</code> for a subclass of <code>{@link Agent}</code>. The agent still has to be started.
+	 * @param group Group of the agent
+	 * @param factory Constructor of the agent from its group and its transport (see <code>{@link Agent#Agent(String, Transport)}</code>)
+	 * @return Agent
+	 */
+	public synchronized <A extends Agent> A agent(String group, BiFunction<String, Transport, A> factory){
+		if(closed)
+			throw new IllegalStateException("The host is closed");
+		Dispatcher dispatcher = groups.get(group);
+		if(dispatcher == null){
+			dispatcher = new Dispatcher(group, new KafkaClient(consumers.apply(group), producer, group));
+			groups.put(group, dispatcher);
+			dispatcher.start();
+		}
+		Endpoint endpoint = new Endpoint(dispatcher);
+		A agent = factory.apply(group, endpoint);
+		if(agent.getTransport() != endpoint)
+			throw new IllegalArgumentException("The agent must be created with the transport given by the host");
+		endpoint.agent = agent;
+		dispatcher.endpoints.add(endpoint);
+		return agent;
+	}
+
+	/**
+	 * Stops the consumers of the host and closes its producer. The records given to agents and not yet completed are not committed, so they will be received again.
+	 * Agents should be shut down before (see <code>{@link Agent#shutdown()}</code>).
+	 * @throws InterruptedException If interrupted while waiting for the consumers to stop
+	 */
+	public void close() throws InterruptedException{
+		List<Dispatcher> dispatchers;
+		synchronized(this){
+			closed = true;
+			dispatchers = new ArrayList<Dispatcher>(groups.values());
+			groups.clear();
+		}
+		for(Dispatcher dispatcher : dispatchers){
+			dispatcher.running = false;
+			dispatcher.client.wakeup();
+		}
+		for(Dispatcher dispatcher : dispatchers)
+			dispatcher.join();
+		producer.close();
+	}
+
+	/**
+	 * Unregisters an agent that has been closed. Once a group has no agents, its consumer is closed.
+	 */
+	private synchronized void remove(Endpoint endpoint){
+		Dispatcher dispatcher = endpoint.dispatcher;
+		dispatcher.endpoints.remove(endpoint);
+		//Its records are taken back by the thread of the group, which may still be handing it some
+		dispatcher.removed.add(endpoint);
+		endpoint.cancelRebalances();
+		if(dispatcher.endpoints.isEmpty() && groups.get(dispatcher.group) == dispatcher){
+			groups.remove(dispatcher.group);
+			dispatcher.running = false;
+		}
+	}
+
+	/**
+	 * Thread that polls the consumer of a group, and hands the records to the agents of the group.
+	 */
+	private static class Dispatcher extends Thread {
+		final String group;
+		final KafkaClient client;
+		final List<Endpoint> endpoints = new CopyOnWriteArrayList<Endpoint>();
+		//Records taken back from agents that have been closed
+		final ConcurrentLinkedQueue<ConsumerRecord<String, byte[]>> returned = new ConcurrentLinkedQueue<ConsumerRecord<String, byte[]>>();
+		final ConcurrentLinkedQueue<Endpoint> removed = new ConcurrentLinkedQueue<Endpoint>();
+		final IntentLocator locator = new IntentLocator();
+		volatile boolean running = true;
+		private Set<TopicPartition> paused = new HashSet<TopicPartition>();
+		//Partitions paused because an agent has too many records waiting, with the agents that do
+		private final Map<TopicPartition, Set<Endpoint>> full = new HashMap<TopicPartition, Set<Endpoint>>();
+
+		Dispatcher(String group, KafkaClient client){
+			super("zoe-host-"+group);
+			setDaemon(true);
+			this.group = group;
+			this.client = client;
+			client.setRebalanceListener(new Assignment());
+		}
+
+		@Override
+		public void run(){
+			try{
+				while(running){
+					Endpoint endpoint;
+					while((endpoint = removed.poll()) != null)
+						reclaim(endpoint);
+					for(Endpoint e : endpoints)
+						e.refill();
+					adjust();
+					ConsumerRecord<String, byte[]> record;
+					while(!endpoints.isEmpty() && (record = returned.poll()) != null)
+						dispatch(record);
+					for(ConsumerRecord<String, byte[]> r : client.consume())
+						dispatch(r);
+				}
+			}finally{
+				client.close(false);
+			}
+		}
+
+		/**
+		 * Takes back the records of an agent that has been closed, so they are handed to the other agents of the group.
+		 */
+		private void reclaim(Endpoint endpoint){
+			List<ConsumerRecord<String, byte[]>> left = new ArrayList<ConsumerRecord<String, byte[]>>();
+			endpoint.queue.drainTo(left);
+			left.addAll(endpoint.held);
+			endpoint.held.clear();
+			returned.addAll(left);
+		}
+
+		/**
+		 * Follows the subscriptions and the paused partitions of the agents: the group reads every topic read by any agent,
+		 * and a partition is paused while any agent has it paused, or while an agent it filled up has not caught up.
+		 */
+		private void adjust(){
+			Set<String> topics = new HashSet<String>();
+			Set<TopicPartition> pause = new HashSet<TopicPartition>();
+			for(Endpoint endpoint : endpoints){
+				topics.addAll(endpoint.topics);
+				pause.addAll(endpoint.paused);
+			}
+			for(Iterator<Set<Endpoint>> i = full.values().iterator(); i.hasNext();){
+				Set<Endpoint> congested = i.next();
+				congested.removeIf(endpoint -> !endpoint.congested());
+				if(congested.isEmpty())
+					i.remove();
+			}
+			pause.addAll(full.keySet());
+			if(!topics.isEmpty())
+				client.subscribe(topics);
+			Set<TopicPartition> resume = new HashSet<TopicPartition>(paused);
+			resume.removeAll(pause);
+			Set<TopicPartition> newly = new HashSet<TopicPartition>(pause);
+			newly.removeAll(paused);
+			if(!newly.isEmpty())
+				client.pause(newly);
+			if(!resume.isEmpty())
+				client.resume(resume);
+			paused = pause;
+		}
+
+		private void dispatch(ConsumerRecord<String, byte[]> record){
+			List<Endpoint> endpoints = this.endpoints;
+			if(endpoints.isEmpty()){
+				//Left uncommitted, so it is received again once the group has agents
+				return;
+			}
+			Endpoint target = null;
+			JSONObject message = null;
+			boolean binary = BinaryCodec.isBinary(record);
+			if(endpoints.size() > 1 && (binary || accepted(endpoints, record.value()))){
+				try{
+					message = binary ? BinaryCodec.decode(record.value()) : Util.parse(record.value());
+				}catch(MalformedMessageException | JSONException ex){
+					//The agent reports it when parsing it again
+				}
+				if(message != null && locator.locate(message) == IntentLocator.FOUND){
+					String name = locator.found().getString("intent");
+					for(Endpoint endpoint : endpoints){
+						if(endpoint.agent.resolves(name)){
+							target = endpoint;
+							break;
+						}
+					}
+				}
+			}
+			if(target == null)
+				target = endpoints.get(0);
+			if(!target.offer(message == null ? record : new ParsedRecord(record, message))){
+				//The agent is behind, so the partition is paused until it catches up
+				TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+				full.computeIfAbsent(partition, p -> new HashSet<Endpoint>()).add(target);
+				if(paused.add(partition))
+					client.pause(Collections.singleton(partition));
+			}
+		}
+
+		/**
+		 * Forwards the changes of assignment of the group to its agents. Records of revoked partitions not yet given to agents are dropped,
+		 * as their next owner will receive them, and the group waits for its agents to let go of the partitions before they are committed.
+		 */
+		private class Assignment implements ConsumerRebalanceListener {
+			@Override
+			public void onPartitionsRevoked(Collection<TopicPartition> partitions){
+				Predicate<ConsumerRecord<String, byte[]>> revoked = record -> partitions.contains(new TopicPartition(record.topic(), record.partition()));
+				returned.removeIf(revoked);
+				for(Endpoint endpoint : endpoints){
+					endpoint.held.removeIf(revoked);
+					endpoint.queue.removeIf(revoked);
+				}
+				for(TopicPartition partition : partitions){
+					full.remove(partition);
+					paused.remove(partition);
+				}
+				List<Endpoint> waiting = new ArrayList<Endpoint>();
+				List<CountDownLatch> released = new ArrayList<CountDownLatch>();
+				for(Endpoint endpoint : endpoints){
+					CountDownLatch latch = endpoint.rebalance(partitions, true);
+					if(latch != null){
+						waiting.add(endpoint);
+						released.add(latch);
+					}
+				}
+				long deadline = System.currentTimeMillis()+REVOCATION_MILLIS;
+				try{
+					for(int i = 0; i < waiting.size(); i++){
+						//An agent closed meanwhile no longer holds the partitions
+						while(!released.get(i).await(POLL_MILLIS, TimeUnit.MILLISECONDS) && endpoints.contains(waiting.get(i)) && System.currentTimeMillis() < deadline);
+					}
+				}catch(InterruptedException ex){
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void onPartitionsAssigned(Collection<TopicPartition> partitions){
+				for(Endpoint endpoint : endpoints)
+					endpoint.rebalance(partitions, false);
+			}
+		}
+
+		private static boolean accepted(List<Endpoint> endpoints, byte[] message){
+			for(Endpoint endpoint : endpoints){
+				if(endpoint.agent.accepts(message))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Transport of a hosted agent, which receives the records handed to the agent by the thread of its group, and publishes through the shared producer.
+	 */
+	private class Endpoint implements Transport {
+		final Dispatcher dispatcher;
+		final BlockingQueue<ConsumerRecord<String, byte[]>> queue = new LinkedBlockingQueue<ConsumerRecord<String, byte[]>>(MAX_QUEUED);
+		//Records that did not fit in the queue, in order, only used by the thread of the group
+		final Queue<ConsumerRecord<String, byte[]>> held = new ArrayDeque<ConsumerRecord<String, byte[]>>();
+		final Set<TopicPartition> paused = ConcurrentHashMap.newKeySet();
+		volatile Set<String> topics = Collections.singleton(KafkaClient.getTopic());
+		volatile Agent agent;
+		volatile ConsumerRebalanceListener listener;
+		//Changes of assignment not yet forwarded to the agent, which are forwarded from the thread of the agent
+		final Queue<Rebalance> rebalances = new ConcurrentLinkedQueue<Rebalance>();
+
+		Endpoint(Dispatcher dispatcher){
+			this.dispatcher = dispatcher;
+		}
+
+		/**
+		 * Hands a record to the agent, or holds it if the agent has too many records waiting.
+		 * @return Whether the record has been queued
+		 */
+		boolean offer(ConsumerRecord<String, byte[]> record){
+			if(held.isEmpty() && queue.offer(record))
+				return true;
+			held.add(record);
+			return false;
+		}
+
+		/**
+		 * Moves the records held back to the queue, as far as it has room for them.
+		 */
+		void refill(){
+			while(!held.isEmpty() && queue.offer(held.peek()))
+				held.poll();
+		}
+
+		/**
+		 * @return Whether the agent still has too many records waiting to be given more
+		 */
+		boolean congested(){
+			return !held.isEmpty() || queue.size() > MAX_QUEUED/2;
+		}
+
+		/**
+		 * Forwards a change of assignment to the agent, on its next poll.
+		 * @return Latch released once the agent has been told, or null if the agent has no listener
+		 */
+		CountDownLatch rebalance(Collection<TopicPartition> partitions, boolean revoked){
+			if(listener == null)
+				return null;
+			Rebalance rebalance = new Rebalance(new ArrayList<TopicPartition>(partitions), revoked);
+			rebalances.add(rebalance);
+			return rebalance.done;
+		}
+
+		/**
+		 * Releases the group from waiting for an agent that has been closed.
+		 */
+		void cancelRebalances(){
+			Rebalance rebalance;
+			while((rebalance = rebalances.poll()) != null)
+				rebalance.done.countDown();
+		}
+
+		@Override
+		public ConsumerRecords<String, byte[]> consume(){
+			Rebalance rebalance;
+			while((rebalance = rebalances.poll()) != null){
+				try{
+					if(rebalance.revoked)
+						listener.onPartitionsRevoked(rebalance.partitions);
+					else
+						listener.onPartitionsAssigned(rebalance.partitions);
+				}finally{
+					rebalance.done.countDown();
+				}
+			}
+			List<ConsumerRecord<String, byte[]>> received = new ArrayList<ConsumerRecord<String, byte[]>>();
+			try{
+				ConsumerRecord<String, byte[]> first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if(first != null){
+					received.add(first);
+					queue.drainTo(received, MAX_RECORDS-1);
+				}
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+			}
+			Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> records = new LinkedHashMap<TopicPartition, List<ConsumerRecord<String, byte[]>>>();
+			for(ConsumerRecord<String, byte[]> record : received)
+				records.computeIfAbsent(new TopicPartition(record.topic(), record.partition()), tp -> new ArrayList<ConsumerRecord<String, byte[]>>()).add(record);
+			return new ConsumerRecords<String, byte[]>(records);
+		}
+
+		@Override
+		public void commit(ConsumerRecord<String, byte[]> record){
+			dispatcher.client.commit(record);
+		}
+
+		@Override
+		public void ignore(ConsumerRecord<String, byte[]> record){
+			dispatcher.client.ignore(record);
+		}
+
+		@Override
+		public void send(String topic, String key, byte[] message, Iterable<Header> headers){
+			dispatcher.client.send(topic, key, message, headers);
+		}
+
+		@Override
+		public JSONObject message(ConsumerRecord<String, byte[]> record){
+			return record instanceof ParsedRecord ? ((ParsedRecord)record).message : null;
+		}
+
+		@Override
+		public void subscribe(Collection<String> topics){
+			this.topics = Collections.unmodifiableSet(new HashSet<String>(topics));
+		}
+
+		@Override
+		public void pause(Collection<TopicPartition> partitions){
+			paused.addAll(partitions);
+		}
+
+		@Override
+		public void resume(Collection<TopicPartition> partitions){
+			paused.removeAll(partitions);
+		}
+
+		@Override
+		public Map<String, Long> lag(){
+			return dispatcher.client.lag();
+		}
+
+		@Override
+		public void setRebalanceListener(ConsumerRebalanceListener listener){
+			this.listener = listener;
+		}
+
+		@Override
+		public void close(){
+			remove(this);
+		}
+	}
+
+	/**
+	 * Change of assignment of a group, to be forwarded to one of its agents.
+	 */
+	private static class Rebalance {
+		final Collection<TopicPartition> partitions;
+		final boolean revoked;
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Rebalance(Collection<TopicPartition> partitions, boolean revoked){
+			this.partitions = partitions;
+			this.revoked = revoked;
+		}
+	}
+
+	/**
+	 * Record parsed by the host, which keeps its message so the agent does not parse it again.
+	 */
+	private static class ParsedRecord extends ConsumerRecord<String, byte[]> {
+		final JSONObject message;
+
+		ParsedRecord(ConsumerRecord<String, byte[]> record, JSONObject message){
+			super(record.topic(), record.partition(), record.offset(), record.timestamp(), record.timestampType(), null,
+					record.serializedKeySize(), record.serializedValueSize(), record.key(), record.value(), record.headers());
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package org.zoe;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of an <code>{@link Agent}</code>: what happens to the records it polls, how long each resolver takes, and how far behind the agent is.
+ * 
+ * Metrics are always recorded, without locks nor allocations, so recording them costs a few atomic additions per message.
+ * They are exposed through JMX while the agent runs (see <code>{@link AgentMetricsMXBean}</code>), and can also be read directly.
+ * Each agent is registered as <code>org.zoe:type=Agent,group=&lt;group&gt;,id=&lt;n&gt;</code>, where the group is quoted (see <code>ObjectName.quote</code>)
+ * and the id tells apart the agents of the same group in the same JVM, so JMX clients should query <code>org.zoe:type=Agent,*</code> rather than build the name.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private final LongAdder polled = new LongAdder();
+	private final LongAdder filtered = new LongAdder();
+	private final LongAdder parsed = new LongAdder();
+	private final LongAdder malformed = new LongAdder();
+	private final LongAdder notAnIntent = new LongAdder();
+	private final LongAdder noResolver = new LongAdder();
+	private final LongAdder errorMessages = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LatencyHistogram commits = new LatencyHistogram();
+	private final Map<String, ResolverMetrics> resolvers = new ConcurrentHashMap<String, ResolverMetrics>();
+	private final Supplier<Map<String, Long>> lag;
+	private ObjectName name = null;
+
+	/**
+	 * @param lag Source of the lag of each partition
+	 */
+	AgentMetrics(Supplier<Map<String, Long>> lag){
+		this.lag = lag;
+	}
+
+	void polled(int records){
+		polled.add(records);
+	}
+	void filtered(){
+		filtered.increment();
+	}
+	void parsed(){
+		parsed.increment();
+	}
+	void malformed(){
+		malformed.increment();
+	}
+	/**
+	 * Counts a record that has been ignored after searching for its intent.
+	 * @param located Outcome of the search, as in <code>{@link IntentLocator#locate(org.json.JSONObject)}</code>
+	 */
+	void ignored(int located){
+		if(located == IntentLocator.ERROR)
+			errorMessages.increment();
+		else if(located == IntentLocator.NOT_AN_INTENT)
+			notAnIntent.increment();
+		else
+			noResolver.increment();
+	}
+	void sent(){
+		sent.increment();
+	}
+	void committed(long nanos){
+		commits.record(nanos);
+	}
+	/**
+	 * Records a resolution.
+	 * @param resolver Name of the resolver
+	 * @param nanos Time taken by the resolver
+	 * @param failed Whether the resolver has thrown an <code>{@link IntentErrorException}</code>
+	 */
+	void resolved(String resolver, long nanos, boolean failed){
+		ResolverMetrics metrics = resolver(resolver);
+		metrics.latency.record(nanos);
+		if(failed)
+			metrics.errors.increment();
+	}
+	/**
+	 * Gives the counter of the intents whose resolution was taken from the cache of a resolver, which are not timed along with the resolutions.
+	 * @param resolver Name of the resolver
+	 * @return Counter of the cache hits, to be given to <code>{@link ResolutionCache#get(Intent, Supplier, LongAdder)}</code>
+	 */
+	LongAdder cacheHits(String resolver){
+		return resolver(resolver).cacheHits;
+	}
+	private ResolverMetrics resolver(String resolver){
+		ResolverMetrics metrics = resolvers.get(resolver);
+		if(metrics == null)
+			metrics = resolvers.computeIfAbsent(resolver, name -> new ResolverMetrics());
+		return metrics;
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server.
+	 * @param group Group of the agent
+	 */
+	synchronized void register(String group){
+		if(name != null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try{
+			name = new ObjectName("org.zoe:type=Agent,group="+ObjectName.quote(group)+",id="+ids.incrementAndGet());
+			server.registerMBean(this, name);
+		}catch(JMException ex){
+			throw new IllegalStateException("Agent metrics could not be registered", ex);
+		}
+	}
+	/**
+	 * Unregisters the metrics from the platform MBean server, if they were registered.
+	 */
+	synchronized void unregister(){
+		if(name == null)
+			return;
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}catch(JMException ex){
+			//Already unregistered
+		}
+		name = null;
+	}
+
+	@Override
+	public long getRecordsPolled(){
+		return polled.sum();
+	}
+	@Override
+	public long getRecordsFiltered(){
+		return filtered.sum();
+	}
+	@Override
+	public long getRecordsParsed(){
+		return parsed.sum();
+	}
+	@Override
+	public long getRecordsMalformed(){
+		return malformed.sum();
+	}
+	@Override
+	public long getNotAnIntent(){
+		return notAnIntent.sum();
+	}
+	@Override
+	public long getNoResolver(){
+		return noResolver.sum();
+	}
+	@Override
+	public long getErrorMessages(){
+		return errorMessages.sum();
+	}
+	@Override
+	public long getMessagesSent(){
+		return sent.sum();
+	}
+	@Override
+	public long getCommits(){
+		return commits.count();
+	}
+	@Override
+	public double getCommitP50Millis(){
+		return commits.percentileMillis(50);
+	}
+	@Override
+	public double getCommitP99Millis(){
+		return commits.percentileMillis(99);
+	}
+	@Override
+	public Map<String, ResolverStatistics> getResolvers(){
+		Map<String, ResolverStatistics> statistics = new TreeMap<String, ResolverStatistics>();
+		for(Map.Entry<String, ResolverMetrics> e : resolvers.entrySet()){
+			ResolverMetrics metrics = e.getValue();
+			statistics.put(e.getKey(), new ResolverStatistics(metrics.latency.count(), metrics.errors.sum(), metrics.cacheHits.sum(), metrics.latency));
+		}
+		return statistics;
+	}
+	@Override
+	public Map<String, Long> getPartitionLag(){
+		Map<String, Long> partitions = lag.get();
+		return partitions == null ? Collections.<String, Long>emptyMap() : partitions;
+	}
+
+	private static class ResolverMetrics {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder cacheHits = new LongAdder();
+	}
+}
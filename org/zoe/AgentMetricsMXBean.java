@@ -0,0 +1,62 @@
+package org.zoe;
+
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of an <code>{@link Agent}</code>, registered in the platform MBean server while the agent runs,
+ * under the name <code>org.zoe:type=Agent,group=&lt;group&gt;,id=&lt;n&gt;</code>.
+ */
+public interface AgentMetricsMXBean {
+	/**
+	 * @return Number of records polled
+	 */
+	long getRecordsPolled();
+	/**
+	 * @return Number of records discarded without parsing them, as they have no intent of this agent
+	 */
+	long getRecordsFiltered();
+	/**
+	 * @return Number of records parsed
+	 */
+	long getRecordsParsed();
+	/**
+	 * @return Number of records skipped because they could not be parsed
+	 */
+	long getRecordsMalformed();
+	/**
+	 * @return Number of records ignored because they have no intent left to resolve, as a <code>{@link NotAnIntentException}</code> would tell
+	 */
+	long getNotAnIntent();
+	/**
+	 * @return Number of records ignored because their next intent belongs to another agent, as a <code>{@link NoResolverException}</code> would tell
+	 */
+	long getNoResolver();
+	/**
+	 * @return Number of records ignored because they have an error, as an <code>{@link ErrorMessageException}</code> would tell
+	 */
+	long getErrorMessages();
+	/**
+	 * @return Number of messages sent
+	 */
+	long getMessagesSent();
+	/**
+	 * @return Number of offset commits, including transaction commits
+	 */
+	long getCommits();
+	/**
+	 * @return Median time taken by commits, in milliseconds
+	 */
+	double getCommitP50Millis();
+	/**
+	 * @return 99th percentile of the time taken by commits, in milliseconds
+	 */
+	double getCommitP99Millis();
+	/**
+	 * @return Statistics of each resolver, by name
+	 */
+	Map<String, ResolverStatistics> getResolvers();
+	/**
+	 * @return Number of records each assigned partition is behind its end, by partition (<code>topic-partition</code>), as last measured by the consumer
+	 */
+	Map<String, Long> getPartitionLag();
+}
@@ -0,0 +1,59 @@
+package org.zoe;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.json.JSONObject;
+/**
+ * This class defines the asynchronous resolution of incoming intents, for resolvers that wait on external services.
+ * 
+ * The agent does not wait for the returned future: it keeps consuming, and publishes the resolved message and commits its record once the future completes.
+ * If too many resolutions of a partition are pending, the agent stops fetching records from that partition until some of them finish.
+ */
+public abstract class AsyncResolver extends Resolver {
+
+	public AsyncResolver(String name){
+		super(name);
+	}
+	/**
+	 * This method takes the intent of type {@code name} and should return a future of the resolution. The resolved intent must NOT include the "data" field.
+	 * 
+	 * The future may complete on any thread. To report an error, complete it exceptionally with an <code>{@link IntentErrorException}</code>.
+	 * @param intent Intent to be resolved
+	 * @param full Full received message. It must not be modified
+	 * @return Future of the resolved intent
+	 */
+	public abstract CompletableFuture<JSONObject> resolveAsync(Intent intent, JSONObject full);
+	/**
+	 * Resolves the intent waiting for the future returned by <code>{@link #resolveAsync(Intent, JSONObject)}</code>.
+	 */
+	@Override
+	public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+		try{
+			return resolveAsync(intent, full).join();
+		}catch(CompletionException ex){
+			if(ex.getCause() instanceof IntentErrorException)
+				throw (IntentErrorException)ex.getCause();
+			throw ex;
+		}
+	}
+	/**
+	 * Resolves an intent with any resolver. Asynchronous resolvers are called through <code>{@link #resolveAsync(Intent, JSONObject)}</code>,
+	 * while the rest are called right away, and their resolution wrapped in a completed future.
+	 * @param resolver Resolver of the intent
+	 * @param intent Intent to be resolved
+	 * @param full Full received message
+	 * @return Future of the resolved intent
+	 */
+	static CompletableFuture<JSONObject> resolve(Resolver resolver, Intent intent, JSONObject full){
+		if(resolver instanceof AsyncResolver)
+			return ((AsyncResolver)resolver).resolveAsync(intent, full);
+		CompletableFuture<JSONObject> resolved = new CompletableFuture<JSONObject>();
+		try{
+			resolved.complete(resolver.resolve(intent, full));
+		}catch(IntentErrorException ex){
+			resolved.completeExceptionally(ex);
+		}
+		return resolved;
+	}
+}
@@ -0,0 +1,347 @@
+package org.zoe;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Compact binary encoding of messages, used as an alternative to JSON text.
+ *
+ * An encoded message starts with a marker byte that never appears in UTF-8 text, followed by the version of the format and the table of the keys
+ * used in the message. Each distinct key is written once in the table, and objects refer to their keys by their index in it; the keys
+ * <code>intent</code> and <code>error</code> are always in the table, and never written. Then comes the message itself, where every value
+ * is a tag followed by its content:
+ * <ul>
+ * <li>null, false and true: just the tag</li>
+ * <li>integers: their zigzag varint</li>
+ * <li>decimals: the 8 bytes of the double. Floats are widened to doubles, so they are decoded as doubles</li>
+ * <li>strings, big integers and big decimals: the varint length of their UTF-8 text, followed by the text</li>
+ * <li>objects: the varint number of members, followed by the varint index of each key and its value</li>
+ * <li>arrays: the varint number of elements, followed by the elements</li>
+ * </ul>
+ * Records holding binary messages are marked with a <code>content-type</code> header, so that agents do not need to look for intents in their bytes.
+ * Messages with objects and arrays nested more than <code>{@link #MAX_DEPTH}</code> levels deep are rejected when decoded.
+ */
+final class BinaryCodec {
+	static final String HEADER = "content-type";
+	static final String CONTENT_TYPE = "application/x-zoe-binary";
+	static final byte[] CONTENT_TYPE_BYTES = CONTENT_TYPE.getBytes(StandardCharsets.UTF_8);
+
+	private static final byte MAGIC = (byte)0xFF;
+	private static final byte VERSION = 1;
+	private static final String[] INTERNED = {"intent", "error"};
+	//Maximum nesting of objects and arrays, so that decoding a hostile message cannot overflow the stack
+	static final int MAX_DEPTH = 1000;
+
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte INTEGER = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte STRING = 5;
+	private static final byte OBJECT = 6;
+	private static final byte ARRAY = 7;
+	private static final byte BIG_INTEGER = 8;
+	private static final byte BIG_DECIMAL = 9;
+
+	private static final ThreadLocal<Encoder[]> ENCODERS = ThreadLocal.withInitial(() -> new Encoder[]{new Encoder(), new Encoder()});
+
+	private BinaryCodec(){}
+
+	/**
+	 * @param message Raw message
+	 * @return Whether the message is encoded in the binary format
+	 */
+	static boolean isBinary(byte[] message){
+		return message != null && message.length > 0 && message[0] == MAGIC;
+	}
+	/**
+	 * @param message Raw message, from its position to its limit
+	 * @return Whether the message is encoded in the binary format
+	 */
+	static boolean isBinary(ByteBuffer message){
+		return message.hasRemaining() && message.get(message.position()) == MAGIC;
+	}
+	/**
+	 * @param record Record
+	 * @return Whether the record is marked as holding a binary message
+	 */
+	static boolean isBinary(ConsumerRecord<String, byte[]> record){
+		Header header = record.headers().lastHeader(HEADER);
+		return header != null && Arrays.equals(header.value(), CONTENT_TYPE_BYTES);
+	}
+
+	/**
+	 * Encodes a message. The message is encoded into buffers that are reused by each thread.
+	 * @param json Message
+	 * @return Binary message
+	 */
+	static byte[] encode(JSONObject json){
+		Encoder[] encoders = ENCODERS.get();
+		Encoder body = encoders[0];
+		Encoder message = encoders[1];
+		try{
+			body.value(json);
+			message.write(MAGIC);
+			message.write(VERSION);
+			message.varint(body.table.size());
+			for(byte[] key : body.table)
+				message.bytes(key);
+			message.write(body.buf, body.len);
+			return Arrays.copyOf(message.buf, message.len);
+		}finally{
+			body.reset();
+			message.reset();
+		}
+	}
+
+	/**
+	 * Decodes a binary message.
+	 * @param message Binary message
+	 * @return Message
+	 * @throws JSONException If the message is not a valid binary message
+	 */
+	static JSONObject decode(byte[] message) throws JSONException{
+		return decode(ByteBuffer.wrap(message));
+	}
+	/**
+	 * Decodes a binary message from the position to the limit of a buffer. The position of the buffer is not modified.
+	 * @param message Binary message
+	 * @return Message
+	 * @throws JSONException If the message is not a valid binary message
+	 */
+	static JSONObject decode(ByteBuffer message) throws JSONException{
+		try{
+			Decoder decoder = new Decoder(message);
+			Object json = decoder.value(0);
+			if(!(json instanceof JSONObject) || decoder.pos != message.limit())
+				throw new JSONException("Malformed binary message");
+			return (JSONObject)json;
+		}catch(IndexOutOfBoundsException | IllegalArgumentException ex){
+			throw new JSONException("Malformed binary message");
+		}
+	}
+
+	private static class Encoder {
+		//Buffers grown beyond this size are not kept for the next message
+		static final int MAX_KEPT = 1 << 20;
+
+		byte[] buf = new byte[256];
+		int len = 0;
+		final Map<String, Integer> keys = new HashMap<String, Integer>();
+		final List<byte[]> table = new ArrayList<byte[]>();
+
+		Encoder(){
+			reset();
+		}
+
+		void reset(){
+			len = 0;
+			if(buf.length > MAX_KEPT)
+				buf = new byte[256];
+			keys.clear();
+			table.clear();
+			for(String key : INTERNED)
+				keys.put(key, keys.size());
+		}
+
+		void value(Object value){
+			if(value == null || value == JSONObject.NULL){
+				write(NULL);
+			}else if(value instanceof Boolean){
+				write((Boolean)value ? TRUE : FALSE);
+			}else if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte){
+				write(INTEGER);
+				long n = ((Number)value).longValue();
+				varint((n << 1) ^ (n >> 63));
+			}else if(value instanceof Double || value instanceof Float){
+				write(DOUBLE);
+				long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+				for(int shift = 56; shift >= 0; shift -= 8)
+					write((byte)(bits >>> shift));
+			}else if(value instanceof String){
+				write(STRING);
+				bytes(((String)value).getBytes(StandardCharsets.UTF_8));
+			}else if(value instanceof BigInteger){
+				write(BIG_INTEGER);
+				bytes(value.toString().getBytes(StandardCharsets.UTF_8));
+			}else if(value instanceof BigDecimal){
+				write(BIG_DECIMAL);
+				bytes(value.toString().getBytes(StandardCharsets.UTF_8));
+			}else if(value instanceof JSONObject){
+				JSONObject json = (JSONObject)value;
+				write(OBJECT);
+				varint(json.length());
+				for(String key : json.keySet()){
+					varint(key(key));
+					value(json.opt(key));
+				}
+			}else if(value instanceof JSONArray){
+				JSONArray arr = (JSONArray)value;
+				write(ARRAY);
+				varint(arr.length());
+				for(int i = 0; i < arr.length(); i++)
+					value(arr.opt(i));
+			}else{
+				//Any other value is written as the JSON it would be turned into
+				value(new JSONTokener(JSONObject.valueToString(value)).nextValue());
+			}
+		}
+
+		int key(String key){
+			Integer index = keys.get(key);
+			if(index == null){
+				index = keys.size();
+				keys.put(key, index);
+				table.add(key.getBytes(StandardCharsets.UTF_8));
+			}
+			return index;
+		}
+
+		void bytes(byte[] bytes){
+			varint(bytes.length);
+			write(bytes, bytes.length);
+		}
+
+		void varint(long n){
+			while((n & ~0x7FL) != 0){
+				write((byte)((n & 0x7F) | 0x80));
+				n >>>= 7;
+			}
+			write((byte)n);
+		}
+
+		void write(byte b){
+			if(len == buf.length)
+				buf = Arrays.copyOf(buf, buf.length*2);
+			buf[len++] = b;
+		}
+
+		void write(byte[] bytes, int length){
+			if(len+length > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length*2, len+length));
+			System.arraycopy(bytes, 0, buf, len, length);
+			len += length;
+		}
+	}
+
+	private static class Decoder {
+		final ByteBuffer buf;
+		int pos;
+		final String[] keys;
+		final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder();
+
+		Decoder(ByteBuffer buf){
+			this.buf = buf;
+			this.pos = buf.position();
+			if(next() != MAGIC || next() != VERSION)
+				throw new JSONException("Unknown binary format");
+			int count = length();
+			keys = new String[INTERNED.length+count];
+			System.arraycopy(INTERNED, 0, keys, 0, INTERNED.length);
+			for(int i = 0; i < count; i++)
+				keys[INTERNED.length+i] = text();
+		}
+
+		Object value(int depth){
+			byte tag = next();
+			switch(tag){
+			case NULL:
+				return JSONObject.NULL;
+			case FALSE:
+				return Boolean.FALSE;
+			case TRUE:
+				return Boolean.TRUE;
+			case INTEGER:
+				long zigzag = varint();
+				long n = (zigzag >>> 1) ^ -(zigzag & 1);
+				if(n == (int)n)
+					return (int)n;
+				return n;
+			case DOUBLE:
+				long bits = 0;
+				for(int i = 0; i < 8; i++)
+					bits = (bits << 8) | (next() & 0xFF);
+				return Double.longBitsToDouble(bits);
+			case STRING:
+				return text();
+			case BIG_INTEGER:
+				return new BigInteger(text());
+			case BIG_DECIMAL:
+				return new BigDecimal(text());
+			case OBJECT:
+				checkDepth(depth);
+				JSONObject json = new JSONObject();
+				for(int i = length(); i > 0; i--){
+					long key = varint();
+					if(key < 0 || key >= keys.length)
+						throw new JSONException("Malformed binary message");
+					json.put(keys[(int)key], value(depth+1));
+				}
+				return json;
+			case ARRAY:
+				checkDepth(depth);
+				JSONArray arr = new JSONArray();
+				for(int i = length(); i > 0; i--)
+					arr.put(value(depth+1));
+				return arr;
+			default:
+				throw new JSONException("Malformed binary message");
+			}
+		}
+
+		void checkDepth(int depth){
+			if(depth >= MAX_DEPTH)
+				throw new JSONException("Binary message nested too deeply");
+		}
+
+		String text(){
+			int length = length();
+			ByteBuffer bytes = buf.duplicate();
+			bytes.limit(pos+length).position(pos);
+			pos += length;
+			try{
+				return utf8.decode(bytes).toString();
+			}catch(CharacterCodingException ex){
+				throw new JSONException("Malformed binary message", ex);
+			}
+		}
+
+		int length(){
+			long n = varint();
+			if(n < 0 || n > buf.limit()-pos)
+				throw new JSONException("Malformed binary message");
+			return (int)n;
+		}
+
+		long varint(){
+			long n = 0;
+			for(int shift = 0; shift < 64; shift += 7){
+				byte b = next();
+				n |= (long)(b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return n;
+			}
+			throw new JSONException("Malformed binary message");
+		}
+
+		byte next(){
+			return buf.get(pos++);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.zoe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Store of the large fields that agents take out of their messages (see <code>{@link Agent#setClaimCheck(BlobStore, int)}</code>).
+ * Contents are addressed by their SHA-256 hash, so storing the same content twice is harmless, and contents never change once stored.
+ * 
+ * Stores may be called concurrently, and must be thread safe. Every agent reading the messages must be able to reach the same contents.
+ */
+public interface BlobStore {
+	/**
+	 * Stores a content, unless it is already stored.
+	 * @param hash SHA-256 hash of the content, in lowercase hexadecimal
+	 * @param content Content
+	 * @throws IOException If the content cannot be stored
+	 */
+	void put(String hash, byte[] content) throws IOException;
+
+	/**
+	 * Gets a content.
+	 * @param hash SHA-256 hash of the content, in lowercase hexadecimal
+	 * @return The content, from its position to its limit
+	 * @throws IOException If the content cannot be read, or it is not stored
+	 */
+	ByteBuffer get(String hash) throws IOException;
+}
@@ -0,0 +1,150 @@
+package org.zoe;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Takes the large text fields out of messages, into a <code>{@link BlobStore}</code>, and gets them back when they are claimed.
+ * 
+ * Each field is replaced by a reference like <code>{"claim!":"&lt;SHA-256 of the text&gt;","size":&lt;bytes&gt;}</code>. As the key of the hash is quoted,
+ * intents are never searched for in references. Fields that have been taken out stay that way for the rest of the conversation,
+ * and are only read again by the resolvers that claim them (see <code>{@link Intent#claim(String)}</code>).
+ */
+class ClaimCheck {
+	static final String CLAIM = "claim!";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final BlobStore store;
+	private final int threshold;
+
+	/**
+	 * @param store Store of the fields
+	 * @param threshold Minimum size of the fields taken out, in UTF-8 bytes
+	 */
+	ClaimCheck(BlobStore store, int threshold){
+		this.store = store;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Takes the large text fields out of a message. The message given is not modified: the objects and arrays holding large fields are copied.
+	 * @param json Message
+	 * @return The message without large fields, which is the same message if it has none
+	 * @throws UncheckedIOException If a field cannot be stored
+	 */
+	JSONObject offload(JSONObject json){
+		return (JSONObject)offload((Object)json);
+	}
+
+	private Object offload(Object value){
+		if(value instanceof String){
+			String text = (String)value;
+			if((long)text.length()*3 < threshold)
+				return value;
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			if(bytes.length < threshold)
+				return value;
+			String hash = hash(bytes);
+			try{
+				store.put(hash, bytes);
+			}catch(IOException ex){
+				throw new UncheckedIOException(ex);
+			}
+			return new JSONObject().put(CLAIM, hash).put("size", bytes.length);
+		}
+		if(value instanceof JSONObject){
+			JSONObject json = (JSONObject)value;
+			if(isReference(json))
+				return json;
+			JSONObject copy = null;
+			for(String key : json.keySet()){
+				Object field = json.get(key);
+				Object offloaded = offload(field);
+				if(offloaded != field){
+					if(copy == null)
+						copy = shallowCopy(json);
+					copy.put(key, offloaded);
+				}
+			}
+			return copy == null ? json : copy;
+		}
+		if(value instanceof JSONArray){
+			JSONArray arr = (JSONArray)value;
+			JSONArray copy = null;
+			for(int i = 0; i < arr.length(); i++){
+				Object element = arr.get(i);
+				Object offloaded = offload(element);
+				if(offloaded != element){
+					if(copy == null)
+						copy = copyOf(arr);
+					copy.put(i, offloaded);
+				}
+			}
+			return copy == null ? arr : copy;
+		}
+		return value;
+	}
+
+	/**
+	 * Gets back the text of a field.
+	 * @param value Value of the field, either a reference or the text itself
+	 * @return The text of the field, or the value as it is if it is not a reference
+	 * @throws UncheckedIOException If the text cannot be read
+	 */
+	Object fetch(Object value){
+		if(!isReference(value))
+			return value;
+		JSONObject reference = (JSONObject)value;
+		try{
+			ByteBuffer content = store.get(reference.getString(CLAIM));
+			if(content.remaining() != reference.optLong("size", content.remaining()))
+				throw new IOException("Stored content does not match its reference: "+reference);
+			return StandardCharsets.UTF_8.decode(content).toString();
+		}catch(IOException ex){
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * @param value Value of a field
+	 * @return Whether the value is a reference to a field taken out of the message
+	 */
+	static boolean isReference(Object value){
+		return value instanceof JSONObject && ((JSONObject)value).opt(CLAIM) instanceof String;
+	}
+
+	private static JSONObject shallowCopy(JSONObject json){
+		JSONObject copy = new JSONObject();
+		for(String key : json.keySet())
+			copy.put(key, json.get(key));
+		return copy;
+	}
+
+	private static JSONArray copyOf(JSONArray arr){
+		JSONArray copy = new JSONArray();
+		for(int i = 0; i < arr.length(); i++)
+			copy.put(arr.get(i));
+		return copy;
+	}
+
+	private static String hash(byte[] bytes){
+		try{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			char[] hex = new char[digest.length*2];
+			for(int i = 0; i < digest.length; i++){
+				hex[2*i] = HEX[(digest[i] >> 4) & 0xF];
+				hex[2*i+1] = HEX[digest[i] & 0xF];
+			}
+			return new String(hex);
+		}catch(NoSuchAlgorithmException ex){
+			throw new IllegalStateException(ex);
+		}
+	}
+}
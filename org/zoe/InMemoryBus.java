@@ -0,0 +1,244 @@
+package org.zoe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.json.JSONObject;
+
+/**
+ * Message bus between agents of the same JVM, which takes the place of Kafka: agents that are connected to the same bus
+ * (see <code>{@link #connect(String)}</code>) exchange their messages through memory, with the same topics and groups as in Kafka.
+ * Tightly coupled agents can then run at memory speed, and agents can be tested and benchmarked without any broker.
+ *
+ * Messages published as objects are never serialized: the object published is handed to one of the groups subscribed to its topic,
+ * and every other group gets a deep copy of it. Messages published as bytes are delivered as they are. Records are kept in memory
+ * until they are received; nothing is persisted, and commits only release the records. Every topic has a single partition.
+ *
+ * Agents of the same group share the records of the group, each record being received by only one of them.
+ */
+public class InMemoryBus {
+	//Maximum number of records received at once, as in Kafka
+	private static final int MAX_RECORDS = 500;
+	private static final long POLL_MILLIS = 100;
+
+	private final Map<String, Group> groups = new ConcurrentHashMap<String, Group>();
+	private final Map<String, AtomicLong> offsets = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Connects a new agent to the bus. It is subscribed to the default topic (see <code>{@link KafkaClient#getTopic()}</code>) until it subscribes to others,
+	 * and only receives the messages published once its group has subscribed to their topic.
+	 * @param group Group of the agent
+	 * @return Transport of the agent
+	 */
+	public Transport connect(String group){
+		return new Endpoint(groups.computeIfAbsent(group, g -> new Group()));
+	}
+
+	private void publish(String topic, String key, byte[] message, JSONObject object, Iterable<Header> headers){
+		long offset = offsets.computeIfAbsent(topic, t -> new AtomicLong()).getAndIncrement();
+		List<Group> subscribed = new ArrayList<Group>();
+		for(Group group : groups.values()){
+			if(group.topics.contains(topic))
+				subscribed.add(group);
+		}
+		for(int i = 0; i < subscribed.size(); i++){
+			RecordHeaders copy = new RecordHeaders(headers);
+			ConsumerRecord<String, byte[]> record;
+			if(object == null){
+				if(BinaryCodec.isBinary(message))
+					copy.add(BinaryCodec.HEADER, BinaryCodec.CONTENT_TYPE_BYTES);
+				record = new ConsumerRecord<String, byte[]>(topic, 0, offset, System.currentTimeMillis(), TimestampType.CREATE_TIME,
+						(long)ConsumerRecord.NULL_CHECKSUM, ConsumerRecord.NULL_SIZE, message.length, key, message, copy);
+			}else{
+				//The object itself goes to the last group, once every copy has been made, as its receiver may modify it right away
+				boolean last = i == subscribed.size()-1;
+				record = new ObjectRecord(topic, offset, key, last ? object : Util.copy(object), copy);
+			}
+			subscribed.get(i).add(record);
+		}
+	}
+
+	/**
+	 * Records of a group not yet received, by topic.
+	 */
+	private static class Group {
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition arrived = lock.newCondition();
+		final Map<String, ArrayDeque<ConsumerRecord<String, byte[]>>> queues = new HashMap<String, ArrayDeque<ConsumerRecord<String, byte[]>>>();
+		volatile Set<String> topics = Collections.singleton(KafkaClient.getTopic());
+
+		void add(ConsumerRecord<String, byte[]> record){
+			lock.lock();
+			try{
+				queues.computeIfAbsent(record.topic(), t -> new ArrayDeque<ConsumerRecord<String, byte[]>>()).addLast(record);
+				arrived.signal();
+			}finally{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Takes the next records of the topics not paused, waiting for them for a short time.
+		 */
+		ConsumerRecords<String, byte[]> poll(Set<String> paused){
+			Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> records = new HashMap<TopicPartition, List<ConsumerRecord<String, byte[]>>>();
+			lock.lock();
+			try{
+				long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS);
+				int count = take(paused, records);
+				while(count == 0){
+					long left = deadline-System.nanoTime();
+					if(left <= 0)
+						break;
+					arrived.awaitNanos(left);
+					count = take(paused, records);
+				}
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+			}finally{
+				lock.unlock();
+			}
+			return new ConsumerRecords<String, byte[]>(records);
+		}
+
+		private int take(Set<String> paused, Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> records){
+			int count = 0;
+			for(Iterator<Map.Entry<String, ArrayDeque<ConsumerRecord<String, byte[]>>>> it = queues.entrySet().iterator(); it.hasNext() && count < MAX_RECORDS; ){
+				Map.Entry<String, ArrayDeque<ConsumerRecord<String, byte[]>>> e = it.next();
+				if(paused.contains(e.getKey()) || !topics.contains(e.getKey()))
+					continue;
+				List<ConsumerRecord<String, byte[]>> taken = new ArrayList<ConsumerRecord<String, byte[]>>();
+				while(!e.getValue().isEmpty() && count < MAX_RECORDS){
+					taken.add(e.getValue().pollFirst());
+					count++;
+				}
+				if(e.getValue().isEmpty())
+					it.remove();
+				records.put(new TopicPartition(e.getKey(), 0), taken);
+			}
+			return count;
+		}
+
+		Map<String, Long> lag(){
+			Map<String, Long> lag = new TreeMap<String, Long>();
+			lock.lock();
+			try{
+				for(Map.Entry<String, ArrayDeque<ConsumerRecord<String, byte[]>>> e : queues.entrySet())
+					lag.put(e.getKey()+"-0", (long)e.getValue().size());
+			}finally{
+				lock.unlock();
+			}
+			return lag;
+		}
+	}
+
+	private class Endpoint implements Transport {
+		private final Group group;
+		//Topics paused by this agent; only used from its thread
+		private final Set<String> paused = new HashSet<String>();
+
+		Endpoint(Group group){
+			this.group = group;
+		}
+
+		@Override
+		public ConsumerRecords<String, byte[]> consume(){
+			return group.poll(paused);
+		}
+
+		@Override
+		public void commit(ConsumerRecord<String, byte[]> record){}
+
+		@Override
+		public void ignore(ConsumerRecord<String, byte[]> record){}
+
+		@Override
+		public void send(String topic, String key, byte[] message, Iterable<Header> headers){
+			publish(topic, key, message, null, headers);
+		}
+
+		@Override
+		public boolean carriesObjects(){
+			return true;
+		}
+
+		@Override
+		public void send(String topic, String key, JSONObject message, Iterable<Header> headers){
+			publish(topic, key, null, message, headers);
+		}
+
+		@Override
+		public JSONObject message(ConsumerRecord<String, byte[]> record){
+			return record instanceof ObjectRecord ? ((ObjectRecord)record).message : null;
+		}
+
+		@Override
+		public void subscribe(Collection<String> topics){
+			group.topics = Collections.unmodifiableSet(new HashSet<String>(topics));
+		}
+
+		@Override
+		public void pause(Collection<TopicPartition> partitions){
+			for(TopicPartition tp : partitions)
+				paused.add(tp.topic());
+		}
+
+		@Override
+		public void resume(Collection<TopicPartition> partitions){
+			for(TopicPartition tp : partitions)
+				paused.remove(tp.topic());
+		}
+
+		@Override
+		public Map<String, Long> lag(){
+			return group.lag();
+		}
+
+		@Override
+		public void close(){}
+	}
+
+	/**
+	 * Record holding a message published as an object. Its value is only serialized if it is read, e.g. by <code>{@link Agent#onReception(ConsumerRecord)}</code>,
+ * from the message itself, so it is undefined once the message has been claimed by its receiver (see <code>{@link Transport#message(ConsumerRecord)}</code>).
+	 */
+	private static class ObjectRecord extends ConsumerRecord<String, byte[]> {
+		final JSONObject message;
+		private volatile byte[] value = null;
+
+		ObjectRecord(String topic, long offset, String key, JSONObject message, RecordHeaders headers){
+			super(topic, 0, offset, System.currentTimeMillis(), TimestampType.CREATE_TIME, (long)NULL_CHECKSUM, NULL_SIZE, NULL_SIZE, key, null, headers);
+			this.message = message;
+		}
+
+		@Override
+		public byte[] value(){
+			byte[] value = this.value;
+			if(value == null){
+				value = Util.jsonToBytes(message);
+				this.value = value;
+			}
+			return value;
+		}
+	}
+}
@@ -14,6 +14,7 @@ import org.json.JSONObject;
  */
 public class Intent extends JSONObject{
 	public String name;
+	private ClaimCheck claims = null;
 	/**
 	 * Creates an <code>{@link Intent}</code> from a given JSON.
 	 * 
@@ -28,6 +29,41 @@ public class Intent extends JSONObject{
 		}catch(Exception ex){
 			throw new NotAnIntentException();
 		}
+		copy(json);
+	}
+	/**
+	 * Creates an <code>{@link Intent}</code> from a JSON already known to be an intent.
+	 * @param name Name of the intent
+	 * @param json The JSON to be used to create the intent
+	 */
+	Intent(String name, JSONObject json){
+		this.name = name;
+		copy(json);
+	}
+	/**
+	 * Creates an <code>{@link Intent}</code> from a JSON already known to be an intent, whose large fields may have been taken out of the message.
+	 * @param name Name of the intent
+	 * @param json The JSON to be used to create the intent
+	 * @param claims Where the large fields are, or null if they are never taken out
+	 */
+	Intent(String name, JSONObject json, ClaimCheck claims){
+		this(name, json);
+		this.claims = claims;
+	}
+	/**
+	 * Gets the text of a field of the intent. Large fields may have been taken out of the message by the agent that sent it
+	 * (see <code>{@link Agent#setClaimCheck(BlobStore, int)}</code>), and are only fetched when they are claimed; other fields are given as they are.
+	 * @param key Key of the field
+	 * @return The value of the field, or null if there is none
+	 * @throws java.io.UncheckedIOException If the field has been taken out, and it cannot be fetched
+	 */
+	public Object claim(String key){
+		Object value = opt(key);
+		if(claims == null || !ClaimCheck.isReference(value))
+			return value;
+		return claims.fetch(value);
+	}
+	private void copy(JSONObject json){
 		Iterator<String> i = json.keys();
 		while(i.hasNext()){
 			String key = i.next();
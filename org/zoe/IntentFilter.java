@@ -0,0 +1,190 @@
+package org.zoe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Byte level pre-filter that discards messages that cannot contain any intent resolvable by an agent, without parsing them.
+ * 
+ * A message can only be resolved if one of its objects has an <code>"intent"</code> key whose value is the name of a registered <code>{@link Resolver}</code>.
+ * The filter scans the raw message looking for such pairs, skipping over string contents so that quoted text is never mistaken for a key.
+ * Whenever it cannot tell for sure (escaped keys or names, lenient syntax such as single quotes or unquoted strings, malformed input), it accepts the message, so every accepted message must still go through the full resolution.
+ * Filters are immutable, and thus thread safe.
+ */
+class IntentFilter {
+	private static final byte[] INTENT = "intent".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+
+	/** Names of the resolvers, encoded in UTF-8 and grouped by their length */
+	private final byte[][][] names;
+
+	/**
+	 * @param resolvers Names of the registered resolvers
+	 */
+	IntentFilter(Collection<String> resolvers){
+		int max = 0;
+		byte[][] encoded = new byte[resolvers.size()][];
+		int i = 0;
+		for(String name : resolvers){
+			encoded[i] = name.getBytes(StandardCharsets.UTF_8);
+			max = Math.max(max, encoded[i].length);
+			i++;
+		}
+		int[] count = new int[max+1];
+		for(byte[] name : encoded)
+			count[name.length]++;
+		names = new byte[max+1][][];
+		for(int len = 0; len <= max; len++)
+			names[len] = new byte[count[len]][];
+		for(byte[] name : encoded)
+			names[name.length][--count[name.length]] = name;
+	}
+
+	/**
+	 * Checks if a message may contain an intent that can be resolved.
+	 * @param message Raw message
+	 * @return false if the message surely cannot be resolved, true otherwise
+	 */
+	boolean accepts(byte[] message){
+		if(message == null)
+			return false;
+		//Binary messages are not scanned
+		if(BinaryCodec.isBinary(message))
+			return true;
+		int i = 0;
+		while(i < message.length){
+			if(message[i] != '"'){
+				if(!isBare(message[i])){
+					i++;
+					continue;
+				}
+				int end = tokenEnd(message, i);
+				//Single quoted and unquoted strings, which the parser accepts, may hold keys and names the scan cannot see
+				if(!isStrictToken(message, i, end))
+					return true;
+				i = end;
+				continue;
+			}
+			int start = i+1;
+			int end = stringEnd(message, start);
+			if(end < 0)
+				return true;
+			i = end+1;
+			int colon = skipWhitespace(message, i);
+			if(colon >= message.length || message[colon] != ':')
+				continue; //Not a key
+			if(!isIntentKey(message, start, end))
+				continue;
+			int value = skipWhitespace(message, colon+1);
+			if(value >= message.length || message[value] != '"')
+				continue; //The name of an intent must be a string
+			int valueEnd = stringEnd(message, value+1);
+			if(valueEnd < 0 || isRegistered(message, value+1, valueEnd))
+				return true;
+			i = valueEnd+1;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Whether the key between the given positions is "intent", or it cannot be told because it is escaped
+	 */
+	private static boolean isIntentKey(byte[] message, int start, int end){
+		if(indexOf(message, start, end, (byte)'\\') >= 0)
+			return true;
+		return equals(message, start, end, INTENT);
+	}
+
+	/**
+	 * @return Whether the name between the given positions is the name of a resolver, or it cannot be told because it is escaped
+	 */
+	private boolean isRegistered(byte[] message, int start, int end){
+		if(indexOf(message, start, end, (byte)'\\') >= 0)
+			return true;
+		int len = end-start;
+		if(len >= names.length)
+			return false;
+		for(byte[] name : names[len]){
+			if(equals(message, start, end, name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the closing quote of a string.
+	 * @param message Raw message
+	 * @param start Position following the opening quote
+	 * @return Position of the closing quote, or -1 if the string is not closed
+	 */
+	private static int stringEnd(byte[] message, int start){
+		for(int i = start; i < message.length; i++){
+			if(message[i] == '\\')
+				i++;
+			else if(message[i] == '"')
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Whether a byte outside of strings is part of a bare token, i.e. a literal, a number or, in lenient syntax, an unquoted string
+	 */
+	private static boolean isBare(byte c){
+		switch(c){
+		case '{': case '}': case '[': case ']': case ':': case ',': case '"':
+		case ' ': case '\t': case '\n': case '\r':
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	private static int tokenEnd(byte[] message, int i){
+		while(i < message.length && isBare(message[i]))
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return Whether the bare token between the given positions is valid in strict JSON, i.e. true, false, null or a number
+	 */
+	private static boolean isStrictToken(byte[] message, int start, int end){
+		if(equals(message, start, end, TRUE) || equals(message, start, end, FALSE) || equals(message, start, end, NULL))
+			return true;
+		if(message[start] != '-' && (message[start] < '0' || message[start] > '9'))
+			return false;
+		for(int i = start+1; i < end; i++){
+			byte c = message[i];
+			if((c < '0' || c > '9') && c != '.' && c != 'e' && c != 'E' && c != '+' && c != '-')
+				return false;
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(byte[] message, int i){
+		while(i < message.length && (message[i] == ' ' || message[i] == '\t' || message[i] == '\n' || message[i] == '\r'))
+			i++;
+		return i;
+	}
+
+	private static int indexOf(byte[] message, int start, int end, byte b){
+		for(int i = start; i < end; i++){
+			if(message[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean equals(byte[] message, int start, int end, byte[] expected){
+		if(end-start != expected.length)
+			return false;
+		for(int i = 0; i < expected.length; i++){
+			if(message[start+i] != expected[i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,239 @@
+package org.zoe;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Searches a message for the intent an agent has to resolve, returning the outcome instead of throwing exceptions.
+ * 
+ * The search is the one defined by <code>{@link Agent#intentResolver(JSONObject)}</code>: recursive, depth first, visiting the keys of each object in alphabetical order,
+ * skipping quoted keys (the ones ending in '!'), looking into the objects of arrays, and stopping at the first "error" key. The intent is the first object reached
+ * that has no intent nested in it and has a name.
+ * 
+ * Keys are sorted in buffers that are reused across searches, so no memory is allocated per visited object. A locator keeps the outcome of its last search,
+ * and therefore must not be shared between threads.
+ * 
+ * With a <code>{@link ShapeCache}</code>, the shape of each message is taken first, without sorting any keys, and messages whose shape is known
+ * go straight to the path of their intent instead of being searched.
+ */
+final class IntentLocator {
+	static final int FOUND = 0;
+	static final int NOT_AN_INTENT = 1;
+	static final int ERROR = 2;
+
+	//Kinds of values in a shape; objects and arrays also give their size
+	private static final int OBJECT = 0;
+	private static final int ARRAY = 1;
+	private static final int STRING = 2;
+	private static final int OTHER = 3;
+	private static final int KINDS = 4;
+	private static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+	private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+	//Sorted keys of the objects being visited, one buffer per depth level
+	private String[][] keys = new String[8][16];
+
+	private JSONObject found;
+	private Object error;
+
+	private ShapeCache shapes = null;
+	//Shape of the message being searched, as kept by the cache
+	private String[] shapeKeys = new String[64];
+	private int[] shapeKinds = new int[64];
+	private int keyCount;
+	private int kindCount;
+	//Path of the object being visited, one step per depth level, and the depth of the intent or error found
+	private String[] pathKeys = new String[8];
+	private int[] pathIndices = new int[8];
+	private int foundDepth;
+
+	/**
+	 * Sets the cache of the shapes of messages used by the searches.
+	 * @param shapes Cache, or null to always search
+	 */
+	void setShapes(ShapeCache shapes){
+		this.shapes = shapes;
+	}
+
+	/**
+	 * Searches for the intent to resolve.
+	 * @param json Message
+	 * @return <code>{@link #FOUND}</code> if there is an intent to resolve, <code>{@link #ERROR}</code> if an error key was found first, or <code>{@link #NOT_AN_INTENT}</code> otherwise
+	 */
+	int locate(JSONObject json){
+		found = null;
+		error = null;
+		if(shapes == null)
+			return locate(json, 0);
+		keyCount = 0;
+		kindCount = 0;
+		long fingerprint = shape(json, FINGERPRINT_SEED);
+		ShapeCache.Shape shape = shapes.get(fingerprint);
+		if(shape != null && shape.matches(shapeKeys, keyCount, shapeKinds, kindCount) && follow(json, shape)){
+			shapes.hit();
+			return shape.outcome;
+		}
+		shapes.miss();
+		int outcome = locate(json, 0);
+		int depth = outcome == NOT_AN_INTENT ? 0 : foundDepth;
+		shapes.put(fingerprint, new ShapeCache.Shape(Arrays.copyOf(shapeKeys, keyCount), Arrays.copyOf(shapeKinds, kindCount), outcome,
+				Arrays.copyOf(pathKeys, depth), Arrays.copyOf(pathIndices, depth)));
+		return outcome;
+	}
+
+	/**
+	 * @return The intent found by the last search
+	 */
+	JSONObject found(){
+		return found;
+	}
+
+	/**
+	 * @return The value of the error key found by the last search
+	 */
+	Object error(){
+		return error;
+	}
+
+	private int locate(JSONObject json, int depth){
+		int length = sortedKeys(json, depth);
+		String[] sorted = keys[depth];
+		for(int i = 0; i < length; i++){
+			String key = sorted[i];
+			if(key.equals("error")){
+				error = json.opt(key);
+				foundDepth = depth;
+				return ERROR;
+			}
+			//Ignore quotations
+			if(key.endsWith("!"))
+				continue;
+			Object value = json.opt(key);
+			pathKeys[depth] = key;
+			if(value instanceof JSONArray){
+				JSONArray arr = (JSONArray)value;
+				for(int j = 0; j < arr.length(); j++){
+					Object current = arr.opt(j);
+					if(current instanceof JSONObject){
+						pathIndices[depth] = j;
+						int result = locate((JSONObject)current, depth+1);
+						if(result != NOT_AN_INTENT)
+							return result;
+					}
+				}
+			}else if(value instanceof JSONObject){
+				pathIndices[depth] = -1;
+				int result = locate((JSONObject)value, depth+1);
+				if(result != NOT_AN_INTENT)
+					return result;
+			}
+		}
+		if(!(json.opt("intent") instanceof String))
+			return NOT_AN_INTENT;
+		found = json;
+		foundDepth = depth;
+		return FOUND;
+	}
+
+	/**
+	 * Takes the shape of a value: the keys of its objects, in the order they are iterated, and the kinds of their values. Quoted values and errors
+	 * are not searched, so only their kind is taken.
+	 * @param hash Fingerprint of the shape taken so far
+	 * @return Fingerprint of the shape, including this value
+	 */
+	private long shape(Object value, long hash){
+		if(value instanceof JSONObject){
+			JSONObject json = (JSONObject)value;
+			hash = kind(hash, json.length()*KINDS+OBJECT);
+			for(String key : json.keySet()){
+				if(keyCount == shapeKeys.length)
+					shapeKeys = Arrays.copyOf(shapeKeys, keyCount*2);
+				shapeKeys[keyCount++] = key;
+				hash = (hash^key.hashCode())*FINGERPRINT_PRIME;
+				Object child = json.opt(key);
+				if(key.endsWith("!") || key.equals("error"))
+					hash = kind(hash, OTHER);
+				else
+					hash = shape(child, hash);
+			}
+			return hash;
+		}
+		if(value instanceof JSONArray){
+			JSONArray arr = (JSONArray)value;
+			hash = kind(hash, arr.length()*KINDS+ARRAY);
+			for(int i = 0; i < arr.length(); i++)
+				hash = shape(arr.opt(i), hash);
+			return hash;
+		}
+		return kind(hash, value instanceof String ? STRING : OTHER);
+	}
+
+	private long kind(long hash, int kind){
+		if(kindCount == shapeKinds.length)
+			shapeKinds = Arrays.copyOf(shapeKinds, kindCount*2);
+		shapeKinds[kindCount++] = kind;
+		return (hash^kind)*FINGERPRINT_PRIME;
+	}
+
+	/**
+	 * Goes to the intent, or the error, of a message of a known shape.
+	 * @return Whether the path of the shape leads to what was found when the shape was searched
+	 */
+	private boolean follow(JSONObject json, ShapeCache.Shape shape){
+		if(shape.outcome == NOT_AN_INTENT)
+			return true;
+		Object current = json;
+		for(int i = 0; i < shape.pathKeys.length; i++){
+			current = ((JSONObject)current).opt(shape.pathKeys[i]);
+			if(shape.pathIndices[i] >= 0)
+				current = current instanceof JSONArray ? ((JSONArray)current).opt(shape.pathIndices[i]) : null;
+			if(!(current instanceof JSONObject))
+				return false;
+		}
+		JSONObject target = (JSONObject)current;
+		if(shape.outcome == ERROR){
+			if(!target.has("error"))
+				return false;
+			error = target.opt("error");
+			return true;
+		}
+		if(!(target.opt("intent") instanceof String))
+			return false;
+		found = target;
+		return true;
+	}
+
+	/**
+	 * Copies the keys of an object into the buffer of its depth level, and sorts them.
+	 * @return Number of keys
+	 */
+	private int sortedKeys(JSONObject json, int depth){
+		if(depth >= keys.length){
+			String[][] grown = new String[keys.length*2][];
+			System.arraycopy(keys, 0, grown, 0, keys.length);
+			keys = grown;
+			pathKeys = Arrays.copyOf(pathKeys, keys.length);
+			pathIndices = Arrays.copyOf(pathIndices, keys.length);
+		}
+		int length = json.length();
+		String[] sorted = keys[depth];
+		if(sorted == null || sorted.length < length){
+			sorted = new String[Math.max(length, 16)];
+			keys[depth] = sorted;
+		}
+		//Insertion sort
+		int n = 0;
+		for(String key : json.keySet()){
+			int j = n-1;
+			while(j >= 0 && key.compareTo(sorted[j]) < 0){
+				sorted[j+1] = sorted[j];
+				j--;
+			}
+			sorted[j+1] = key;
+			n++;
+		}
+		return n;
+	}
+}
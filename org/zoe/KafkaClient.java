@@ -1,24 +1,63 @@
 package org.zoe;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.kafka.clients.consumer.*;
 import org.apache.kafka.clients.producer.*;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.serialization.*;
 
-public class KafkaClient{
+public class KafkaClient implements Transport{
 
-	private KafkaConsumer<String, byte[]> consumer;
-	private KafkaProducer<String, byte[]> producer;
+	private Consumer<String, byte[]> consumer;
+	private Producer<String, byte[]> producer;
 
-	private static String url = System.getenv("KAFKA_SERVERS");
+	private static String servers = System.getenv("KAFKA_SERVERS");
 	private static String topic = "zoe";
+	private static final int MAX_TOPIC_LENGTH = 249;
+	
+	private final OffsetTracker offsets = new OffsetTracker();
+	private long commitMillis = 1000;
+	private int commitRecords = 500;
+	private long lastCommit = System.currentTimeMillis();
+	private volatile AgentMetrics metrics = null;
+	
+	private final String url;
+	private final String group;
+	
+	private String transactionalId = null;
+	private boolean transactionsReady = false;
+	private boolean transactionOpen = false;
+	//First offset consumed from each partition in the current transaction, where the partition is rewound if the transaction is aborted
+	private final Map<TopicPartition, Long> transactionStart = new HashMap<TopicPartition, Long>();
+	private final ConsumerRebalanceListener rebalance = new Rebalance();
+	private volatile ConsumerRebalanceListener listener = null;
+	private boolean closed = false;
 	
 	public KafkaClient(String url, String group){
+		consumer = createConsumer(url, group);
+		consumer.subscribe(Arrays.asList(topic), rebalance);
+		
+		this.url = url;
+		this.group = group;
+		producer = createProducer(url, null);
+	}
+	static KafkaConsumer<String, byte[]> createConsumer(String url, String group){
 		Properties props = new Properties();
 		props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
 		props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, url);
@@ -26,43 +65,426 @@ public class KafkaClient{
 		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
 		props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
 		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArrayDeserializer");
-		consumer = new KafkaConsumer<String, byte[]>(props, new StringDeserializer(), new ByteArrayDeserializer());		
-		consumer.subscribe(Arrays.asList(topic));
-		
-		props = new Properties();
+		//Messages of aborted transactions are never read
+		props.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+		return new KafkaConsumer<String, byte[]>(props, new StringDeserializer(), new ByteArrayDeserializer());
+	}
+	static KafkaProducer<String, byte[]> createProducer(String url, String transactionalId){
+		Properties props = new Properties();
 		props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, url);
 		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
 		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArraySerializer");
-		producer = new KafkaProducer<String, byte[]>(props, new StringSerializer(), new ByteArraySerializer());
+		if(transactionalId != null){
+			props.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG, transactionalId);
+			props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+			props.put(ProducerConfig.ACKS_CONFIG, "all");
+		}
+		return new KafkaProducer<String, byte[]>(props, new StringSerializer(), new ByteArraySerializer());
 	}
 	public KafkaClient(String group){
-		this(url, group);
+		this(servers, group);
+	}
+	/**
+	 * Creates a client on top of the given consumer and producer, e.g. Kafka's <code>MockConsumer</code> and <code>MockProducer</code>,
+	 * so that agents can be run in tests and benchmarks without any broker. Such clients can only be made transactional if the producer supports transactions.
+	 * @param consumer Consumer of the records, which is subscribed to the default topic
+	 * @param producer Producer of the messages
+	 * @param group Group of the consumer
+	 */
+	public KafkaClient(Consumer<String, byte[]> consumer, Producer<String, byte[]> producer, String group){
+		this.consumer = consumer;
+		this.producer = producer;
+		this.url = null;
+		this.group = group;
+		consumer.subscribe(Arrays.asList(topic), rebalance);
 	}
 	
+	/**
+	 * Polls the next records of the topic. Before polling, the offsets completed so far are committed if the commit interval has elapsed.
+	 * 
+	 * Every returned record must eventually be either committed or ignored, or the offsets of its partition will not advance past it.
+	 * @return Polled records, empty if woken up (see <code>{@link #wakeup()}</code>)
+	 */
+	@Override
 	public ConsumerRecords<String, byte[]> consume(){
+		commitCompleted(false);
 		ConsumerRecords<String, byte[]> record = null;
-		while(record == null)
-			record = consumer.poll(100);
+		try{
+			while(record == null)
+				record = consumer.poll(100);
+		}catch(WakeupException ex){
+			return ConsumerRecords.empty();
+		}
+		for(ConsumerRecord<String, byte[]> r : record){
+			offsets.track(r);
+			if(transactionalId != null)
+				transactionStart.putIfAbsent(new TopicPartition(r.topic(), r.partition()), r.offset());
+		}
 		return record;
 	}
 	
+	/**
+	 * Marks a record as processed. Its offset will be committed asynchronously, along with the rest of completed offsets,
+	 * once every previous record of its partition has been committed or ignored. This method may be called from any thread.
+	 * @param record Processed record
+	 */
+	@Override
 	public void commit(ConsumerRecord<String, byte[]> record){
-		System.out.println("Commiting record in offset "+record.offset()+" in partition "+record.partition()+" of topic "+record.topic());
-		Map<TopicPartition, OffsetAndMetadata> offset = new HashMap<TopicPartition, OffsetAndMetadata>();
-		offset.put(new TopicPartition(record.topic(), record.partition()), new OffsetAndMetadata(record.offset()+1));
-		consumer.commitSync(offset);
+		offsets.complete(record);
 	}
+	/**
+	 * Marks a record as skipped. Skipped records advance the committed offset the same way committed ones do. This method may be called from any thread.
+	 * @param record Skipped record
+	 */
+	@Override
 	public void ignore(ConsumerRecord<String, byte[]> record){
-		System.out.println("Ignoring record in offset "+record.offset()+" in partition "+record.partition()+" of topic "+record.topic());
-		consumer.seek(new TopicPartition(record.topic(), record.partition()), record.offset()+1);
+		offsets.complete(record);
+	}
+	
+	/**
+	 * Stops fetching records from the given partitions, while still polling. Partitions no longer assigned to this client are skipped.
+	 * Must be called from the thread that polls.
+	 * @param partitions Partitions to pause
+	 */
+	@Override
+	public void pause(Collection<TopicPartition> partitions){
+		consumer.pause(assigned(partitions));
+	}
+	/**
+	 * Resumes fetching records from the given partitions. Partitions no longer assigned to this client are skipped.
+	 * Must be called from the thread that polls.
+	 * @param partitions Partitions to resume
+	 */
+	@Override
+	public void resume(Collection<TopicPartition> partitions){
+		consumer.resume(assigned(partitions));
+	}
+	private Collection<TopicPartition> assigned(Collection<TopicPartition> partitions){
+		Set<TopicPartition> assigned = new HashSet<TopicPartition>(partitions);
+		assigned.retainAll(consumer.assignment());
+		return assigned;
+	}
+	
+	/**
+	 * Sets how often the completed offsets are committed. A commit is issued when either of the limits is reached.
+	 * @param millis Maximum time between commits, in milliseconds
+	 * @param records Maximum number of completed records between commits
+	 */
+	public void setCommitInterval(long millis, int records){
+		this.commitMillis = millis;
+		this.commitRecords = records;
+	}
+	
+	/**
+	 * Commits the contiguous completed offsets of every partition, if there is anything new to commit.
+	 * Must be called from the thread that polls.
+	 * @param sync If true, waits until the commit is done. Otherwise, it is only done if the commit interval has elapsed, and asynchronously
+	 */
+	private void commitCompleted(boolean sync){
+		long now = System.currentTimeMillis();
+		if(!sync && now - lastCommit < commitMillis && offsets.completedSinceCollect() < commitRecords)
+			return;
+		if(transactionalId != null){
+			//Offsets can only be committed along with the output of every record before them
+			if(!offsets.isIdle()){
+				if(sync)
+					abortTransaction();
+				return;
+			}
+			lastCommit = now;
+			commitTransaction();
+			return;
+		}
+		lastCommit = now;
+		Map<TopicPartition, OffsetAndMetadata> completed = offsets.collect();
+		if(completed.isEmpty())
+			return;
+		long start = System.nanoTime();
+		if(sync){
+			consumer.commitSync(completed);
+			if(metrics != null)
+				metrics.committed(System.nanoTime()-start);
+		}else{
+			consumer.commitAsync(completed, (committed, ex) -> {
+				if(ex != null)
+					offsets.retry(committed);
+				else if(metrics != null)
+					metrics.committed(System.nanoTime()-start);
+			});
+		}
+	}
+	
+	/**
+	 * Makes the client transactional: messages published and offsets committed between two commits are committed atomically, in a single transaction,
+	 * so a record is never committed without its output nor its output published without the record. Transactions span the commit interval
+	 * (see <code>{@link #setCommitInterval(long, int)}</code>), and are only committed when every polled record has been committed or ignored.
+	 * If a transaction fails, it is aborted and the partitions are rewound to the first record of the transaction.
+	 * 
+	 * Consumers always read committed messages only. Clients created on a given producer keep it, which must then support transactions.
+	 * Must be called before the client is used.
+	 * @param transactionalId Identifier of the producer, which must be unique for each instance of the agent and kept across restarts
+	 */
+	public void setTransactional(String transactionalId){
+		if(transactionalId == null || transactionalId.isEmpty())
+			throw new IllegalArgumentException("The transactional id cannot be empty");
+		if(url != null){
+			producer.close();
+			producer = createProducer(url, transactionalId);
+		}
+		this.transactionalId = transactionalId;
+	}
+	/**
+	 * @return Whether the client is transactional
+	 */
+	@Override
+	public boolean isTransactional(){
+		return transactionalId != null;
+	}
+	
+	/**
+	 * Starts a transaction, unless there is one already open.
+	 */
+	private synchronized void beginTransaction(){
+		if(transactionOpen)
+			return;
+		if(!transactionsReady){
+			producer.initTransactions();
+			transactionsReady = true;
+		}
+		producer.beginTransaction();
+		transactionOpen = true;
+	}
+	/**
+	 * Commits the open transaction along with the completed offsets, or aborts it if it fails.
+	 */
+	private synchronized void commitTransaction(){
+		Map<TopicPartition, OffsetAndMetadata> completed = offsets.collect();
+		if(!transactionOpen && completed.isEmpty())
+			return;
+		try{
+			long start = System.nanoTime();
+			beginTransaction();
+			if(!completed.isEmpty())
+				producer.sendOffsetsToTransaction(completed, group);
+			producer.commitTransaction();
+			transactionOpen = false;
+			transactionStart.clear();
+			if(metrics != null)
+				metrics.committed(System.nanoTime()-start);
+		}catch(ProducerFencedException | OutOfOrderSequenceException | AuthorizationException ex){
+			//Another instance has taken over, or the producer cannot go on
+			transactionOpen = false;
+			throw ex;
+		}catch(KafkaException ex){
+			abortTransaction();
+		}
+	}
+	/**
+	 * Aborts the open transaction, if any, discarding the messages published in it, and rewinds the partitions to the first record of the transaction.
+	 * Must be called from the thread that polls.
+	 */
+	@Override
+	public synchronized void abortTransaction(){
+		if(!transactionOpen)
+			return;
+		producer.abortTransaction();
+		transactionOpen = false;
+		Set<TopicPartition> assignment = consumer.assignment();
+		for(Map.Entry<TopicPartition, Long> e : transactionStart.entrySet()){
+			if(assignment.contains(e.getKey()))
+				consumer.seek(e.getKey(), e.getValue());
+		}
+		offsets.remove(transactionStart.keySet());
+		transactionStart.clear();
+	}
+	
+	/**
+	 * Sets where the commits are measured.
+	 * @param metrics Metrics of the agent using this client
+	 */
+	void setMetrics(AgentMetrics metrics){
+		this.metrics = metrics;
 	}
 	
+	/**
+	 * Gives the lag of each assigned partition, i.e., how many records it is behind the end of the partition, as last measured by the consumer.
+	 * This method may be called from any thread.
+	 * @return Lag of each partition, by partition (<code>topic-partition</code>)
+	 */
+	@Override
+	public Map<String, Long> lag(){
+		Map<String, Long> lag = new TreeMap<String, Long>();
+		for(Map.Entry<MetricName, ? extends Metric> e : consumer.metrics().entrySet()){
+			MetricName name = e.getKey();
+			String topic = name.tags().get("topic");
+			String partition = name.tags().get("partition");
+			if(!name.name().equals("records-lag") || topic == null || partition == null)
+				continue;
+			Object value = e.getValue().metricValue();
+			if(value instanceof Number && !Double.isNaN(((Number)value).doubleValue()))
+				lag.put(topic+"-"+partition, ((Number)value).longValue());
+		}
+		return lag;
+	}
+	
+	/**
+	 * Subscribes to the given topics, replacing the current subscription. Nothing is done if the client is already subscribed to exactly those topics.
+	 * Must be called from the thread that polls.
+	 * @param topics Topics to subscribe to
+	 */
+	@Override
+	public void subscribe(Collection<String> topics){
+		Set<String> subscription = new HashSet<String>(topics);
+		if(subscription.equals(consumer.subscription()))
+			return;
+		commitCompleted(true);
+		consumer.subscribe(subscription, rebalance);
+	}
+	
+	/**
+	 * Publishes a message in the default topic, which every agent reads unless topics are routed by intent.
+	 * @param message Message to publish
+	 */
 	public void send(byte[] message){
-		producer.send(new ProducerRecord<String,byte[]>(topic, Double.toString(Math.random()*1000), message));
+		send(topic, message);
+	}
+	/**
+	 * Publishes a message in the given topic.
+	 * @param topic Topic where the message is published
+	 * @param message Message to publish
+	 */
+	public void send(String topic, byte[] message){
+		send(topic, null, message);
+	}
+	/**
+	 * Publishes a message in the given topic, with the given key. Messages with the same key are placed in the same partition.
+	 * @param topic Topic where the message is published
+	 * @param key Key of the message, or null to use a random one
+	 * @param message Message to publish
+	 */
+	public void send(String topic, String key, byte[] message){
+		send(topic, key, message, null);
+	}
+	/**
+	 * Publishes a message in the given topic, with the given key and headers.
+	 * @param topic Topic where the message is published
+	 * @param key Key of the message, or null to use a random one
+	 * @param message Message to publish
+	 * @param headers Headers of the record, or null
+	 */
+	@Override
+	public void send(String topic, String key, byte[] message, Iterable<Header> headers){
+		if(key == null)
+			key = Double.toString(Math.random()*1000);
+		ProducerRecord<String, byte[]> record = new ProducerRecord<String,byte[]>(topic, null, key, message, headers);
+		if(BinaryCodec.isBinary(message))
+			record.headers().add(BinaryCodec.HEADER, BinaryCodec.CONTENT_TYPE_BYTES);
+		if(transactionalId == null){
+			producer.send(record);
+			return;
+		}
+		synchronized(this){
+			beginTransaction();
+			producer.send(record);
+		}
 	}
 	
-	public void finalize(){
-		producer.close();
+	/**
+	 * @return The address of the Kafka servers used by default, taken from the <code>KAFKA_SERVERS</code> environment variable
+	 */
+	static String getServers(){
+		return servers;
+	}
+	
+	/**
+	 * @return The default topic, where messages are published when they are not routed by intent
+	 */
+	public static String getTopic(){
+		return topic;
+	}
+	
+	/**
+	 * Gives the topic of an intent, i.e., the default topic followed by a dot and the name of the intent. Characters not allowed in topic names
+	 * are replaced by underscores, and long names are truncated, so different intents may share a topic.
+	 * @param intent Name of the intent
+	 * @return Topic where the messages whose next intent is the one given are published
+	 */
+	public static String topicOf(String intent){
+		StringBuilder name = new StringBuilder(topic).append('.');
+		for(int i = 0; i < intent.length() && name.length() < MAX_TOPIC_LENGTH; i++){
+			char c = intent.charAt(i);
+			boolean legal = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-';
+			name.append(legal ? c : '_');
+		}
+		return name.toString();
+	}
+	
+	@Override
+	public void close(){
+		close(true);
+	}
+	/**
+	 * Commits the completed offsets and closes the consumer. Must be called from the thread that polls.
+	 * @param closeProducer Whether the producer is closed too, or it is left open, e.g. because it is shared by several clients
+	 */
+	void close(boolean closeProducer){
+		if(closed)
+			return;
+		closed = true;
+		try{
+			commitCompleted(true);
+		}catch(WakeupException ex){
+			//Woken up while not polling, so the commit is tried again
+			commitCompleted(true);
+		}
+		if(closeProducer)
+			producer.close();
 		consumer.close();
 	}
+	
+	/**
+	 * Sets a listener told when partitions are assigned to this client or revoked from it. Before partitions are revoked, the listener is called,
+	 * then the completed offsets are committed, and the revoked partitions are forgotten: their records committed or ignored afterwards are disregarded,
+	 * as they will be processed again by the next owner of the partitions. Must be called before the client is used.
+	 * @param listener Listener, or null
+	 */
+	@Override
+	public void setRebalanceListener(ConsumerRebalanceListener listener){
+		this.listener = listener;
+	}
+	
+	/**
+	 * Wakes up the consumer, so that a poll in progress, or the next one, returns right away. This method may be called from any thread.
+	 */
+	@Override
+	public void wakeup(){
+		consumer.wakeup();
+	}
+	
+	/**
+	 * Commits what has been completed in the partitions being revoked, before another consumer of the group takes them over.
+	 */
+	private class Rebalance implements ConsumerRebalanceListener {
+		@Override
+		public void onPartitionsRevoked(Collection<TopicPartition> partitions){
+			if(listener != null)
+				listener.onPartitionsRevoked(partitions);
+			try{
+				commitCompleted(true);
+			}catch(KafkaException ex){
+				//The group has already moved on, so the records will be processed again by their next owner
+			}
+			offsets.remove(partitions);
+		}
+
+		@Override
+		public void onPartitionsAssigned(Collection<TopicPartition> partitions){
+			if(listener != null)
+				listener.onPartitionsAssigned(partitions);
+		}
+	}
+	
+	public void finalize(){
+		close();
+	}
 }
@@ -0,0 +1,36 @@
+package org.zoe;
+
+import org.json.JSONObject;
+
+/**
+ * Gives the key of the messages an agent publishes. Kafka places messages with the same key in the same partition, so every step of a conversation
+ * keyed this way is read, in order, by the same agent instance.
+ * 
+ * Extractors may be called concurrently, and must be thread safe.
+ */
+public interface KeyExtractor {
+	/**
+	 * @param message Message to publish
+	 * @return The key of the message, or null to publish it with a random key
+	 */
+	String key(JSONObject message);
+
+	/**
+	 * Gives the key of a raw message. By default, the message is parsed and given to <code>{@link #key(JSONObject)}</code>.
+	 * @param message Message to publish, as bytes
+	 * @return The key of the message, or null to publish it with a random key
+	 */
+	default String key(byte[] message){
+		return key(Util.bytesToJSON(message));
+	}
+
+	/**
+	 * Creates an extractor that takes the key from a field of the message, such as <code>user</code>, or a nested one, such as <code>user/conversation_id</code>.
+	 * String values are used as they are, and any other value as its JSON text. Messages without the field, or with a null value, get a random key.
+	 * @param path Names of the keys leading to the field, separated by slashes
+	 * @return The extractor
+	 */
+	static KeyExtractor path(String path){
+		return new PathKeyExtractor(path);
+	}
+}
@@ -0,0 +1,125 @@
+package org.zoe;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies, recorded without locks nor allocations, so it can be used from any thread on every message.
+ * 
+ * Latencies are kept in microseconds, in buckets whose width grows with the latency: 16 buckets per power of two, so that percentiles
+ * are given with an error below 7%. Latencies above about 9 hours are counted in the last bucket.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BITS = 4;
+	private static final int MAGNITUDES = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(MAGNITUDES*SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a latency.
+	 * @param nanos Latency, in nanoseconds
+	 */
+	void record(long nanos){
+		long micros = Math.max(0, nanos/1000);
+		buckets.incrementAndGet(bucket(micros));
+		count.increment();
+		sum.add(micros);
+		max.accumulate(micros);
+	}
+
+	/**
+	 * @return Number of latencies recorded
+	 */
+	long count(){
+		return count.sum();
+	}
+
+	/**
+	 * @return Mean latency, in milliseconds
+	 */
+	double meanMillis(){
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum()/1000.0/n;
+	}
+
+	/**
+	 * @return Maximum latency, in milliseconds
+	 */
+	double maxMillis(){
+		return max.get()/1000.0;
+	}
+
+	/**
+	 * Estimates a percentile from the buckets, as the upper bound of the bucket where it falls.
+	 * @param percentile Percentile, from 0 to 100
+	 * @return Latency, in milliseconds
+	 */
+	double percentileMillis(double percentile){
+		long total = 0;
+		for(int i = 0; i < buckets.length(); i++)
+			total += buckets.get(i);
+		if(total == 0)
+			return 0;
+		long rank = (long)Math.ceil(total*percentile/100.0);
+		long seen = 0;
+		for(int i = 0; i < buckets.length(); i++){
+			seen += buckets.get(i);
+			if(seen >= Math.max(rank, 1))
+				return Math.min(upperBound(i), max.get())/1000.0;
+		}
+		return maxMillis();
+	}
+
+	/**
+	 * Prints the distribution of the latencies in the percentile format of HdrHistogram, which its plotters read: for every bucket holding latencies,
+	 * the upper bound of the bucket in milliseconds, the fraction of the latencies up to it, their count and <code>1/(1-fraction)</code>.
+	 * @param out Where the distribution is printed
+	 */
+	void printDistribution(PrintStream out){
+		long[] counts = new long[buckets.length()];
+		long total = 0;
+		for(int i = 0; i < counts.length; i++){
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+		long seen = 0;
+		for(int i = 0; i < counts.length && seen < total; i++){
+			if(counts[i] == 0)
+				continue;
+			seen += counts[i];
+			double value = Math.min(upperBound(i), max.get())/1000.0;
+			double fraction = (double)seen/total;
+			if(seen < total)
+				out.printf("%12.3f %2.12f %10d %14.2f%n", value, fraction, seen, 1/(1-fraction));
+			else
+				out.printf("%12.3f %2.12f %10d%n", value, fraction, seen);
+		}
+		out.printf("#[Mean    = %12.3f, Max            = %12.3f]%n", meanMillis(), maxMillis());
+		out.printf("#[Buckets = %12d, Total count    = %12d]%n", counts.length, total);
+	}
+
+	private static int bucket(long micros){
+		if(micros < SUB_BUCKETS)
+			return (int)micros;
+		int magnitude = 63-Long.numberOfLeadingZeros(micros)-SUB_BITS+1;
+		if(magnitude >= MAGNITUDES)
+			return MAGNITUDES*SUB_BUCKETS-1;
+		int sub = (int)(micros >>> (magnitude-1)) - SUB_BUCKETS;
+		return magnitude*SUB_BUCKETS+sub;
+	}
+
+	private static long upperBound(int bucket){
+		int magnitude = bucket/SUB_BUCKETS;
+		int sub = bucket%SUB_BUCKETS;
+		if(magnitude == 0)
+			return sub;
+		return ((long)(sub+SUB_BUCKETS+1) << (magnitude-1))-1;
+	}
+}
@@ -0,0 +1,414 @@
+package org.zoe;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Load generator that measures the throughput and the end-to-end latency of a chain of agents, e.g. messages resolved by the agents
+ * of the groups <code>a</code>, then <code>b</code>, then <code>c</code>.
+ *
+ * Each group has one or more agents resolving the intent named after the group. Messages are built from templates with nested intents,
+ * and injected at a fixed rate, either through an <code>{@link InMemoryBus}</code> or through Kafka. A sink reads every published message,
+ * and once a message has been fully resolved, records its latency from the moment it was due to be sent. Latencies are thus corrected for
+ * coordinated omission: when the agents, or the generator itself, fall behind, the waiting of the messages that could not be sent on time is counted as well.
+ * Latencies from the moment messages were actually sent are recorded too, for comparison.
+ *
+ * Before the clock starts, probe messages are injected until one of them has been resolved through the whole chain, so that the time taken
+ * by the agents and the sink to subscribe and be assigned their partitions is not measured. Messages due during the warmup are resolved but not measured. The report gives the percentiles of both latencies, and the full distribution
+ * of the corrected latency can be written in the percentile format of HdrHistogram.
+ *
+ * Usage: <code>java org.zoe.LoadGenerator [options]</code>, see <code>{@link #USAGE}</code>.
+ */
+public class LoadGenerator {
+	public static final String USAGE = "Usage: java org.zoe.LoadGenerator [options]\n"
+			+ "  --groups a:2,b,c    Groups of the chain, in order of resolution, each with its number of agents (default: a,b,c)\n"
+			+ "  --rate n            Messages injected per second (default: 1000)\n"
+			+ "  --duration s        Seconds measured (default: 30)\n"
+			+ "  --warmup s          Seconds of injection before measuring (default: 5)\n"
+			+ "  --work us           Microseconds of work per resolution (default: 0)\n"
+			+ "  --templates file    Templates of the messages, one JSON object per line (default: the intents of the chain nested in each other)\n"
+			+ "  --routing           Routes messages by intent\n"
+			+ "  --kafka servers     Runs through Kafka instead of an in-memory bus\n"
+			+ "  --output file       Writes the distribution of the corrected latency, in HdrHistogram format";
+	//Fields added to the injected messages to measure them
+	static final String RUN = "load_run";
+	static final String ID = "load_id";
+	static final String DUE = "load_due";
+	static final String SENT = "load_sent";
+	static final String WARMUP = "load_warmup";
+	static final String PROBE = "load_probe";
+	private static final long DRAIN_MILLIS = 10000;
+	private static final long PROBE_MILLIS = 60000;
+	private static final long PROBE_INTERVAL_MILLIS = 100;
+
+	private final Function<String, Transport> transports;
+	private final Map<String, Integer> groups = new LinkedHashMap<String, Integer>();
+	private final List<JSONObject> templates = new ArrayList<JSONObject>();
+	private double rate = 1000;
+	private long durationNanos = TimeUnit.SECONDS.toNanos(30);
+	private long warmupNanos = TimeUnit.SECONDS.toNanos(5);
+	private long workNanos = 0;
+	private boolean routing = false;
+
+	private final String run = UUID.randomUUID().toString();
+	private final LatencyHistogram corrected = new LatencyHistogram();
+	private final LatencyHistogram uncorrected = new LatencyHistogram();
+	private final AtomicLong sent = new AtomicLong();
+	//Released when a probe has been resolved through the whole chain
+	private final CountDownLatch probed = new CountDownLatch(1);
+	//Cleared to stop the sink reader, which is then woken up
+	private volatile boolean reading = true;
+	private long completed = 0;
+	private long errors = 0;
+	private long duplicates = 0;
+	private long measured = 0;
+	//When the measure started and when its last message was completed
+	private long measureStart = 0;
+	private long measureEnd = 0;
+
+	public static void main(String[] args) throws IOException, InterruptedException{
+		String kafka = null;
+		String output = null;
+		LoadGenerator generator = null;
+		List<String> templates = new ArrayList<String>();
+		String groups = "a,b,c";
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		try{
+			for(int i = 0; i < args.length; i++){
+				if(args[i].equals("--routing"))
+					options.put(args[i], null);
+				else if(args[i].startsWith("--") && i+1 < args.length)
+					options.put(args[i], args[++i]);
+				else
+					throw new IllegalArgumentException("Unknown option: "+args[i]);
+			}
+			kafka = options.remove("--kafka");
+			output = options.remove("--output");
+			if(options.containsKey("--groups"))
+				groups = options.remove("--groups");
+			if(options.containsKey("--templates"))
+				templates = Files.readAllLines(Paths.get(options.remove("--templates")), StandardCharsets.UTF_8);
+			if(kafka != null){
+				String servers = kafka;
+				generator = new LoadGenerator(group -> new KafkaClient(servers, group));
+			}else{
+				InMemoryBus bus = new InMemoryBus();
+				generator = new LoadGenerator(bus::connect);
+			}
+			for(String group : groups.split(",")){
+				String[] parts = group.trim().split(":");
+				generator.addGroup(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+			}
+			for(String template : templates){
+				if(!template.trim().isEmpty())
+					generator.addTemplate(new JSONObject(template));
+			}
+			for(Map.Entry<String, String> e : options.entrySet()){
+				switch(e.getKey()){
+				case "--rate": generator.setRate(Double.parseDouble(e.getValue())); break;
+				case "--duration": generator.setDuration(Long.parseLong(e.getValue()), TimeUnit.SECONDS); break;
+				case "--warmup": generator.setWarmup(Long.parseLong(e.getValue()), TimeUnit.SECONDS); break;
+				case "--work": generator.setWork(Long.parseLong(e.getValue()), TimeUnit.MICROSECONDS); break;
+				case "--routing": generator.setRouting(true); break;
+				default: throw new IllegalArgumentException("Unknown option: "+e.getKey());
+				}
+			}
+		}catch(IllegalArgumentException | JSONException ex){
+			System.err.println(ex.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		System.out.printf("groups %s through %s, %.0f msg/s%s%n", groups, kafka == null ? "an in-memory bus" : "Kafka at "+kafka,
+				generator.rate, generator.routing ? ", routed by intent" : "");
+		generator.run();
+		generator.report(System.out);
+		if(output != null){
+			try(PrintStream out = new PrintStream(output, StandardCharsets.UTF_8.name())){
+				generator.corrected.printDistribution(out);
+			}
+		}
+	}
+
+	/**
+	 * @param transports Creates the transport of an agent from its group, e.g. <code>bus::connect</code> for an <code>{@link InMemoryBus}</code>.
+	 * The sink, which reads the resolved messages and injects the messages, has its own group.
+	 */
+	public LoadGenerator(Function<String, Transport> transports){
+		this.transports = transports;
+	}
+
+	/**
+	 * Adds a group to the chain. Its agents resolve the intent named after the group. The default template nests the intents of the groups
+	 * so that they are resolved in the order of the groups.
+	 * @param group Group, and intent, name
+	 * @param agents Number of agents of the group
+	 */
+	public void addGroup(String group, int agents){
+		if(agents < 1)
+			throw new IllegalArgumentException("A group needs at least one agent");
+		groups.put(group, agents);
+	}
+	/**
+	 * Adds a template of the injected messages, which are built from the templates in turn. Its intents must be resolvable by the groups of the chain,
+	 * or its messages are never completed.
+	 * @param template Message template
+	 */
+	public void addTemplate(JSONObject template){
+		templates.add(template);
+	}
+	/**
+	 * @param rate Messages injected per second
+	 */
+	public void setRate(double rate){
+		if(rate <= 0)
+			throw new IllegalArgumentException("The rate must be positive");
+		this.rate = rate;
+	}
+	/**
+	 * @param duration How long the injection is measured, after the warmup
+	 */
+	public void setDuration(long duration, TimeUnit unit){
+		if(duration <= 0)
+			throw new IllegalArgumentException("The duration must be positive");
+		this.durationNanos = unit.toNanos(duration);
+	}
+	/**
+	 * @param warmup How long messages are injected before being measured
+	 */
+	public void setWarmup(long warmup, TimeUnit unit){
+		if(warmup < 0)
+			throw new IllegalArgumentException("The warmup cannot be negative");
+		this.warmupNanos = unit.toNanos(warmup);
+	}
+	/**
+	 * @param work How long each resolution keeps its thread busy, to simulate the work of real resolvers
+	 */
+	public void setWork(long work, TimeUnit unit){
+		if(work < 0)
+			throw new IllegalArgumentException("The work cannot be negative");
+		this.workNanos = unit.toNanos(work);
+	}
+	/**
+	 * @param routing Whether the agents route messages by intent (see <code>{@link Agent#setRouting(boolean, boolean)}</code>)
+	 */
+	public void setRouting(boolean routing){
+		this.routing = routing;
+	}
+
+	/**
+	 * Starts the agents, waits until they resolve a probe through the whole chain, injects the messages and waits for them to be resolved,
+	 * for a short time after the end of the injection, and then shuts the agents down.
+	 * @throws InterruptedException If interrupted while injecting
+	 * @throws IllegalStateException If no probe is resolved through the chain within a minute
+	 */
+	public void run() throws InterruptedException{
+		if(groups.isEmpty())
+			throw new IllegalStateException("The chain has no groups");
+		if(templates.isEmpty())
+			templates.add(defaultTemplate());
+		List<Agent> agents = new ArrayList<Agent>();
+		for(Map.Entry<String, Integer> group : groups.entrySet()){
+			for(int i = 0; i < group.getValue(); i++){
+				Agent agent = new Agent(group.getKey(), transports.apply(group.getKey()));
+				agents.add(agent);
+				agent.addResolver(resolver(group.getKey()));
+				agent.setRouting(routing, false);
+				agent.setDaemon(true);
+				agent.start();
+			}
+		}
+		Transport sink = transports.apply("zoe-load-"+run);
+		Thread reader = new Thread(() -> read(sink), "zoe-load-sink");
+		reader.setDaemon(true);
+		reader.start();
+		IntentLocator locator = new IntentLocator();
+		try{
+			probe(sink, locator);
+			inject(sink, locator);
+		}finally{
+			reading = false;
+			sink.wakeup();
+			reader.join();
+			sink.close();
+			for(Agent agent : agents)
+				agent.shutdown();
+			for(Agent agent : agents)
+				agent.join();
+		}
+	}
+
+	/**
+	 * Injects probes until one of them comes back resolved, i.e. until every group of the chain, and the sink, reads its messages.
+	 */
+	private void probe(Transport sink, IntentLocator locator) throws InterruptedException{
+		long deadline = System.currentTimeMillis()+PROBE_MILLIS;
+		do{
+			if(System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("No message was resolved through the chain within "+PROBE_MILLIS/1000+" s");
+			send(sink, locator, Util.copy(templates.get(0)).put(RUN, run).put(PROBE, true));
+		}while(!probed.await(PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Injects the messages at the rate of the generator, and waits for them to be resolved.
+	 */
+	private void inject(Transport sink, IntentLocator locator) throws InterruptedException{
+		long interval = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1)/rate));
+		long count = (warmupNanos+durationNanos)/interval;
+		long start = System.nanoTime();
+		synchronized(this){
+			measureStart = start+warmupNanos;
+		}
+		for(long id = 0; id < count; id++){
+			long due = start+id*interval;
+			long now;
+			while((now = System.nanoTime()) < due)
+				LockSupport.parkNanos(due-now);
+			JSONObject message = Util.copy(templates.get((int)(id%templates.size())));
+			message.put(RUN, run).put(ID, id).put(DUE, due).put(SENT, System.nanoTime()).put(WARMUP, due-start < warmupNanos);
+			send(sink, locator, message);
+			sent.incrementAndGet();
+		}
+		long deadline = System.currentTimeMillis()+DRAIN_MILLIS;
+		while(completed() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+	}
+
+	/**
+	 * Publishes a message where its first intent is read, i.e. the default topic or, if messages are routed, the topic of the intent.
+	 */
+	private void send(Transport sink, IntentLocator locator, JSONObject message){
+		String topic = KafkaClient.getTopic();
+		if(routing && locator.locate(message) == IntentLocator.FOUND)
+			topic = KafkaClient.topicOf(locator.found().getString("intent"));
+		if(sink.carriesObjects())
+			sink.send(topic, null, message, null);
+		else
+			sink.send(topic, null, Util.jsonToBytes(message), null);
+	}
+
+	/**
+	 * Prints the number of messages sent and resolved, and the percentiles of their latencies.
+	 * @param out Where the report is printed
+	 */
+	public synchronized void report(PrintStream out){
+		long lost = sent.get()-completed;
+		out.printf("sent %d messages, %d completed (%d with errors, %d duplicates), %d lost%n", sent.get(), completed, errors, duplicates, lost);
+		double seconds = Math.max(measureEnd-measureStart, 1)/1e9;
+		out.printf("measured %d messages, completed over %.1f s: %.1f msg/s%n", measured, seconds, measured/seconds);
+		out.printf("%-12s %10s %10s %10s %10s %10s %10s %10s %10s%n", "latency(ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+		row(out, "corrected", corrected);
+		row(out, "uncorrected", uncorrected);
+	}
+
+	private static void row(PrintStream out, String name, LatencyHistogram h){
+		out.printf("%-12s %10d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, h.count(), h.meanMillis(), h.percentileMillis(50),
+				h.percentileMillis(90), h.percentileMillis(99), h.percentileMillis(99.9), h.percentileMillis(99.99), h.maxMillis());
+	}
+
+	private synchronized long completed(){
+		return completed;
+	}
+
+	/**
+	 * Reads the published messages, and records the latency of the messages of this run once they have been fully resolved.
+	 */
+	private void read(Transport sink){
+		BitSet seen = new BitSet();
+		IntentLocator locator = new IntentLocator();
+		while(reading){
+			for(ConsumerRecord<String, byte[]> record : sink.consume()){
+				long now = System.nanoTime();
+				sink.commit(record);
+				JSONObject message = sink.message(record);
+				try{
+					if(message == null)
+						message = BinaryCodec.isBinary(record) ? BinaryCodec.decode(record.value()) : Util.parse(record.value());
+				}catch(MalformedMessageException | JSONException ex){
+					continue;
+				}
+				if(!run.equals(message.optString(RUN)))
+					continue;
+				int state = locator.locate(message);
+				if(state == IntentLocator.FOUND)
+					continue;
+				if(message.optBoolean(PROBE)){
+					probed.countDown();
+					continue;
+				}
+				completed((int)message.getLong(ID), message.getLong(DUE), message.getLong(SENT), message.getBoolean(WARMUP), now, state == IntentLocator.ERROR, seen);
+			}
+		}
+	}
+
+	private synchronized void completed(int id, long due, long sent, boolean warmup, long now, boolean error, BitSet seen){
+		if(seen.get(id)){
+			duplicates++;
+			return;
+		}
+		seen.set(id);
+		completed++;
+		if(error)
+			errors++;
+		if(!warmup){
+			measured++;
+			measureEnd = Math.max(measureEnd, now);
+			corrected.record(now-due);
+			uncorrected.record(now-sent);
+		}
+	}
+
+	/**
+	 * Nests the intents of the groups in each other, the intent of the first group being the innermost one, so that it is resolved first.
+	 */
+	private JSONObject defaultTemplate(){
+		JSONObject intent = null;
+		for(String group : groups.keySet()){
+			JSONObject outer = new JSONObject().put("intent", group);
+			if(intent != null)
+				outer.put("input", intent);
+			intent = outer;
+		}
+		return new JSONObject().put("task", intent);
+	}
+
+	private Resolver resolver(String name){
+		long work = workNanos;
+		return new Resolver(name){
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException{
+				long end = System.nanoTime()+work;
+				while(work > 0 && System.nanoTime() < end){
+					//Busy, as a resolver doing actual work
+				}
+				return new JSONObject().put(name, "done");
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex){
+				return new JSONObject().put("error", ex.getMessage());
+			}
+			@Override
+			public boolean usesFullMessage(){
+				return false;
+			}
+		};
+	}
+}
@@ -0,0 +1,17 @@
+package org.zoe;
+
+public class MalformedMessageException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public MalformedMessageException(){super();}
+	public MalformedMessageException(String message){
+		super("The message received is malformed.\n"+message);
+	}
+	public MalformedMessageException(String message, Throwable cause) {
+		super("The message received is malformed.\n"+message, cause);
+	}
+	public MalformedMessageException(Throwable cause) {
+		super(cause);
+	}
+}
@@ -0,0 +1,58 @@
+package org.zoe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <code>{@link BlobStore}</code> that keeps each content in its own file of a local directory, named after its hash. Contents are read by mapping
+ * their files into memory, so they are paged in by the operating system only when they are used, and shared between the agents of the host.
+ * 
+ * Files are written under a temporary name and then moved into place, so a content is never seen half written. Contents are never deleted.
+ */
+public class MappedFileBlobStore implements BlobStore {
+	private final Path dir;
+
+	/**
+	 * @param dir Directory where the contents are kept. It is created if it does not exist
+	 * @throws IOException If the directory cannot be created
+	 */
+	public MappedFileBlobStore(Path dir) throws IOException{
+		this.dir = Files.createDirectories(dir);
+	}
+
+	@Override
+	public void put(String hash, byte[] content) throws IOException{
+		Path file = file(hash);
+		if(Files.exists(file))
+			return;
+		Files.createDirectories(file.getParent());
+		Path tmp = Files.createTempFile(file.getParent(), hash, ".tmp");
+		try{
+			Files.write(tmp, content);
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+		}catch(FileAlreadyExistsException ex){
+			//Stored meanwhile by someone else
+		}finally{
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	@Override
+	public ByteBuffer get(String hash) throws IOException{
+		try(FileChannel channel = FileChannel.open(file(hash), StandardOpenOption.READ)){
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private Path file(String hash){
+		if(hash.length() < 3 || !hash.matches("[0-9a-f]+"))
+			throw new IllegalArgumentException("Not a content hash: "+hash);
+		return dir.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+}
@@ -0,0 +1,150 @@
+package org.zoe;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Keeps track of the offsets of the records that have been polled and of the ones that have already been completed, per partition.
+ * 
+ * The offset to commit for a partition (its watermark) is the one following the last record of the contiguous run of completed records,
+ * so a record is never committed while an earlier record of its partition is still being processed. This class is thread safe.
+ */
+class OffsetTracker {
+	private final Map<TopicPartition, PartitionOffsets> partitions = new HashMap<TopicPartition, PartitionOffsets>();
+	private int completed = 0;
+
+	/**
+	 * Registers a polled record. Records must be tracked in the order they are polled.
+	 * @param record Polled record
+	 */
+	synchronized void track(ConsumerRecord<String, byte[]> record){
+		PartitionOffsets p = partition(record);
+		if(p.revoked){
+			//Assigned again
+			p = new PartitionOffsets();
+			partitions.put(new TopicPartition(record.topic(), record.partition()), p);
+		}
+		if(p.first < 0)
+			p.first = record.offset();
+		p.pending.addLast(record.offset());
+	}
+
+	/**
+	 * Marks a record as completed, advancing the watermark of its partition if every previous record has been completed too.
+	 * @param record Completed record
+	 */
+	synchronized void complete(ConsumerRecord<String, byte[]> record){
+		PartitionOffsets p = partition(record);
+		long offset = record.offset();
+		//Records polled before the partition was revoked, which are processed again by its next owner
+		if(p.revoked || offset < p.first)
+			return;
+		completed++;
+		if(p.pending.isEmpty()){
+			//Not tracked, so there is nothing pending before it
+			p.advance(offset+1);
+			return;
+		}
+		if(offset < p.pending.peekFirst())
+			return;
+		p.done.add(offset);
+		while(!p.pending.isEmpty() && p.done.remove(p.pending.peekFirst())){
+			p.advance(p.pending.pollFirst()+1);
+		}
+	}
+
+	/**
+	 * @return Number of records completed since the last call to <code>{@link #collect()}</code>
+	 */
+	synchronized int completedSinceCollect(){
+		return completed;
+	}
+
+	/**
+	 * @return Whether every tracked record has been completed
+	 */
+	synchronized boolean isIdle(){
+		for(PartitionOffsets p : partitions.values()){
+			if(!p.pending.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the watermarks that have changed since the last call, and resets the count of completed records.
+	 * @return Offsets to commit, empty if there is nothing new
+	 */
+	synchronized Map<TopicPartition, OffsetAndMetadata> collect(){
+		Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+		for(Map.Entry<TopicPartition, PartitionOffsets> e : partitions.entrySet()){
+			PartitionOffsets p = e.getValue();
+			if(p.dirty){
+				offsets.put(e.getKey(), new OffsetAndMetadata(p.watermark));
+				p.dirty = false;
+			}
+		}
+		completed = 0;
+		return offsets;
+	}
+
+	/**
+	 * Marks as pending again the offsets whose commit has failed, unless a newer watermark is already waiting to be committed.
+	 * @param offsets Offsets that could not be committed
+	 */
+	synchronized void retry(Map<TopicPartition, OffsetAndMetadata> offsets){
+		for(Map.Entry<TopicPartition, OffsetAndMetadata> e : offsets.entrySet()){
+			PartitionOffsets p = partitions.get(e.getKey());
+			if(p != null && p.watermark == e.getValue().offset())
+				p.dirty = true;
+		}
+	}
+
+	/**
+	 * Forgets about the given partitions, e.g. once they have been revoked. Their records completed afterwards are disregarded,
+	 * until records of the partitions are tracked again.
+	 * @param revoked Partitions to forget
+	 */
+	synchronized void remove(Collection<TopicPartition> revoked){
+		for(TopicPartition tp : revoked){
+			PartitionOffsets p = new PartitionOffsets();
+			p.revoked = true;
+			partitions.put(tp, p);
+		}
+	}
+
+	private PartitionOffsets partition(ConsumerRecord<String, byte[]> record){
+		TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+		PartitionOffsets p = partitions.get(tp);
+		if(p == null){
+			p = new PartitionOffsets();
+			partitions.put(tp, p);
+		}
+		return p;
+	}
+
+	private static class PartitionOffsets {
+		final ArrayDeque<Long> pending = new ArrayDeque<Long>();
+		final Set<Long> done = new HashSet<Long>();
+		long watermark = -1;
+		boolean dirty = false;
+		//First offset tracked, or -1
+		long first = -1;
+		boolean revoked = false;
+
+		void advance(long offset){
+			if(offset > watermark){
+				watermark = offset;
+				dirty = true;
+			}
+		}
+	}
+}
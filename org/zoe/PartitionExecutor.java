@@ -0,0 +1,55 @@
+package org.zoe;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * Runs the processing of records on a fixed pool of worker threads, keeping the records of every partition in offset order.
+ * 
+ * Each partition is pinned to a single worker, so two records of the same partition are never processed at the same time, nor out of order.
+ * Workers wait for asynchronous resolutions to finish before taking the next record of their partitions. Records whose future is cancelled
+ * while they are still waiting for their worker are skipped.
+ */
+class PartitionExecutor {
+	private final ExecutorService[] lanes;
+	private final BiFunction<ConsumerRecord<String, byte[]>, BooleanSupplier, CompletableFuture<Boolean>> task;
+
+	/**
+	 * @param workers Number of worker threads
+	 * @param task Processing of a record, given whether it has been abandoned. Its future tells whether the record has been resolved
+	 */
+	PartitionExecutor(int workers, BiFunction<ConsumerRecord<String, byte[]>, BooleanSupplier, CompletableFuture<Boolean>> task){
+		this.lanes = new ExecutorService[workers];
+		this.task = task;
+		for(int i = 0; i < workers; i++){
+			final String name = "zoe-worker-"+i;
+			lanes[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Queues a record in the worker of its partition.
+	 * @param record Record to process
+	 * @param abandoned Tells whether the record has been abandoned
+	 * @return Future telling whether the record has been resolved
+	 */
+	CompletableFuture<Boolean> submit(ConsumerRecord<String, byte[]> record, BooleanSupplier abandoned){
+		int lane = Math.floorMod(Objects.hash(record.topic(), record.partition()), lanes.length);
+		return CompletableFuture.supplyAsync(() -> task.apply(record, abandoned).join(), lanes[lane]);
+	}
+
+	void shutdown(){
+		for(ExecutorService lane : lanes)
+			lane.shutdown();
+	}
+}
@@ -0,0 +1,47 @@
+package org.zoe;
+
+import org.json.JSONObject;
+
+/**
+ * Extractor that takes the key from a field of the message. Raw messages are searched without parsing them as a whole whenever possible.
+ */
+class PathKeyExtractor implements KeyExtractor {
+	private final String[] path;
+
+	/**
+	 * @param path Names of the keys leading to the field, separated by slashes
+	 */
+	PathKeyExtractor(String path){
+		if(path == null || path.isEmpty())
+			throw new IllegalArgumentException("The path of the key cannot be empty");
+		this.path = path.split("/", -1);
+	}
+
+	@Override
+	public String key(JSONObject message){
+		Object value = message;
+		for(String key : path){
+			if(!(value instanceof JSONObject))
+				return null;
+			value = ((JSONObject)value).opt(key);
+		}
+		return toKey(value);
+	}
+
+	@Override
+	public String key(byte[] message){
+		try{
+			return toKey(new RawMessage(message).value(path));
+		}catch(RawMessage.MalformedException ex){
+			return key(Util.bytesToJSON(message));
+		}
+	}
+
+	private static String toKey(Object value){
+		if(value == null || value == JSONObject.NULL)
+			return null;
+		if(value instanceof String)
+			return (String)value;
+		return JSONObject.valueToString(value);
+	}
+}
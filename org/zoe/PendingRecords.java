@@ -0,0 +1,246 @@
+package org.zoe;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Records whose processing has been started but has not finished yet, for the thread that polls.
+ * 
+ * Once a record finishes, it is committed if it has been resolved, or ignored otherwise. Finished records are handed back to the polling thread,
+ * as the consumer must only be used from that thread. When a partition has too many pending records, it is paused, so the consumer keeps polling
+ * (and stays in its group) without fetching more records from it; and it is resumed once half of them have finished.
+ * 
+ * When partitions are released, e.g. because they are revoked, their pending records are given some time to finish, and the ones still pending
+ * are then abandoned: their futures are cancelled, and they are neither committed nor ignored once they finish. Records still running tell
+ * whether they have been abandoned through <code>{@link #abandoned(ConsumerRecord)}</code>, so they are not published by the agent losing them.
+ * 
+ * All the methods of this class must be called from the polling thread, except the checks returned by <code>{@link #abandoned(ConsumerRecord)}</code>.
+ */
+class PendingRecords {
+	private final Transport client;
+	private final int maxPerPartition;
+	private final BlockingQueue<Completion> completed = new LinkedBlockingQueue<Completion>();
+	//Futures of the pending records of each partition
+	private final Map<TopicPartition, Set<CompletableFuture<Boolean>>> pending = new HashMap<TopicPartition, Set<CompletableFuture<Boolean>>>();
+	private final Set<TopicPartition> paused = new HashSet<TopicPartition>();
+	//Number of times each partition has been released, to tell abandoned records apart
+	private final Map<TopicPartition, Integer> releases = new ConcurrentHashMap<TopicPartition, Integer>();
+	private int size = 0;
+	//Error thrown by a record finished while releasing partitions, rethrown by the next drain
+	private RuntimeException failure = null;
+
+	/**
+	 * @param client Client the records come from
+	 * @param maxPerPartition Number of pending records from which a partition is paused
+	 */
+	PendingRecords(Transport client, int maxPerPartition){
+		this.client = client;
+		this.maxPerPartition = maxPerPartition;
+	}
+
+	/**
+	 * Gives a check telling whether a record is abandoned, to be called before the record starts and checked from any thread while it is processed.
+	 * @param record Record about to be processed
+	 * @return Whether its partition has been released since this call
+	 */
+	BooleanSupplier abandoned(ConsumerRecord<String, byte[]> record){
+		TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+		int release = releases.getOrDefault(tp, 0);
+		return () -> releases.getOrDefault(tp, 0) != release;
+	}
+
+	/**
+	 * Adds a record whose processing has started. If it has already finished, it is committed or ignored right away.
+	 * @param record Record
+	 * @param resolved Future telling whether the record has been resolved
+	 */
+	void add(ConsumerRecord<String, byte[]> record, CompletableFuture<Boolean> resolved){
+		if(resolved.isDone()){
+			finish(record, join(resolved));
+			return;
+		}
+		TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+		pending.computeIfAbsent(tp, p -> new HashSet<CompletableFuture<Boolean>>()).add(resolved);
+		size++;
+		int release = releases.getOrDefault(tp, 0);
+		resolved.whenComplete((done, ex) -> completed.add(new Completion(record, tp, resolved, release, done, ex)));
+	}
+
+	/**
+	 * Commits or ignores every record that has finished since the last call, and pauses or resumes partitions according to their pending records.
+	 * Errors thrown while processing a record are rethrown here, as the sequential loop would do.
+	 */
+	void drain(){
+		if(failure != null){
+			RuntimeException error = failure;
+			failure = null;
+			throw error;
+		}
+		Completion done;
+		while((done = completed.poll()) != null)
+			handle(done);
+		List<TopicPartition> pause = new ArrayList<TopicPartition>();
+		for(Map.Entry<TopicPartition, Set<CompletableFuture<Boolean>>> e : pending.entrySet()){
+			if(e.getValue().size() >= maxPerPartition && paused.add(e.getKey()))
+				pause.add(e.getKey());
+		}
+		List<TopicPartition> resume = new ArrayList<TopicPartition>();
+		for(Iterator<TopicPartition> it = paused.iterator(); it.hasNext(); ){
+			TopicPartition tp = it.next();
+			if(pending(tp) <= maxPerPartition/2){
+				it.remove();
+				resume.add(tp);
+			}
+		}
+		pending.values().removeIf(Set::isEmpty);
+		if(!pause.isEmpty())
+			client.pause(pause);
+		if(!resume.isEmpty())
+			client.resume(resume);
+	}
+
+	/**
+	 * Waits until every pending record has finished, committing or ignoring them as <code>{@link #drain()}</code> does.
+	 */
+	void await(){
+		while(size > 0){
+			try{
+				handle(completed.take());
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+				throw new CompletionException(ex);
+			}
+		}
+		drain();
+	}
+
+	/**
+	 * Waits for the pending records of the given partitions to finish, for at most the given time, committing or ignoring them as <code>{@link #drain()}</code> does.
+	 * The records still pending afterwards are abandoned, and their futures cancelled, so the ones that have not started yet never start.
+	 * @param partitions Partitions to release, or null to release every partition
+	 * @param timeoutMillis Maximum time to wait, in milliseconds
+	 */
+	void release(Collection<TopicPartition> partitions, long timeoutMillis){
+		long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try{
+			while(pending(partitions) > 0){
+				long left = deadline-System.nanoTime();
+				if(left <= 0)
+					break;
+				Completion done = completed.poll(left, TimeUnit.NANOSECONDS);
+				if(done == null)
+					continue;
+				try{
+					handle(done);
+				}catch(RuntimeException ex){
+					if(failure == null)
+						failure = ex;
+				}
+			}
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+		for(TopicPartition tp : partitions == null ? new ArrayList<TopicPartition>(pending.keySet()) : partitions){
+			releases.merge(tp, 1, Integer::sum);
+			Set<CompletableFuture<Boolean>> abandoned = pending.remove(tp);
+			if(abandoned != null){
+				size -= abandoned.size();
+				for(CompletableFuture<Boolean> resolved : abandoned)
+					resolved.cancel(false);
+			}
+			paused.remove(tp);
+		}
+	}
+
+	private int pending(Collection<TopicPartition> partitions){
+		if(partitions == null)
+			return size;
+		int count = 0;
+		for(TopicPartition tp : partitions)
+			count += pending(tp);
+		return count;
+	}
+
+	private int pending(TopicPartition tp){
+		Set<CompletableFuture<Boolean>> futures = pending.get(tp);
+		return futures == null ? 0 : futures.size();
+	}
+
+	/**
+	 * @return Number of pending records
+	 */
+	int size(){
+		return size;
+	}
+
+	private void handle(Completion done){
+		if(done.release != releases.getOrDefault(done.partition, 0)){
+			//Abandoned when its partition was released
+			return;
+		}
+		size--;
+		pending.get(done.partition).remove(done.future);
+		if(done.error != null)
+			throw unwrap(done.error);
+		finish(done.record, done.resolved);
+	}
+
+	private void finish(ConsumerRecord<String, byte[]> record, boolean resolved){
+		if(resolved)
+			client.commit(record);
+		else
+			client.ignore(record);
+	}
+
+	private static boolean join(CompletableFuture<Boolean> resolved){
+		try{
+			return resolved.join();
+		}catch(CompletionException ex){
+			throw unwrap(ex);
+		}
+	}
+
+	private static RuntimeException unwrap(Throwable error){
+		if(error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		if(error instanceof Error)
+			throw (Error)error;
+		if(error instanceof RuntimeException)
+			return (RuntimeException)error;
+		return new CompletionException(error);
+	}
+
+	private static class Completion {
+		final ConsumerRecord<String, byte[]> record;
+		final TopicPartition partition;
+		final CompletableFuture<Boolean> future;
+		final int release;
+		final boolean resolved;
+		final Throwable error;
+
+		Completion(ConsumerRecord<String, byte[]> record, TopicPartition partition, CompletableFuture<Boolean> future, int release, Boolean resolved, Throwable error){
+			this.record = record;
+			this.partition = partition;
+			this.future = future;
+			this.release = release;
+			this.resolved = resolved != null && resolved;
+			this.error = error;
+		}
+	}
+}
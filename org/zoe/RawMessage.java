@@ -0,0 +1,516 @@
+package org.zoe;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A message kept as its raw bytes, where the intent to resolve is searched without building the JSON tree of the whole message.
+ * 
+ * The message is validated once as strict JSON in UTF-8. Then, only the objects the search goes through are split in members, and only the intent found is parsed.
+ * The search follows exactly the same order as <code>{@link Agent#intentResolver(JSONObject)}</code>: depth first, keys in alphabetical order, skipping quoted keys,
+ * and stopping at the first "error" key. The resolution is then spliced into the original bytes, in the place the intent was.
+ * 
+ * Messages this class cannot handle exactly as the JSON tree would (lenient syntax, escaped keys, duplicated keys...) are rejected with a
+ * <code>{@link MalformedException}</code>, so the caller can fall back to the tree.
+ */
+class RawMessage {
+	private static final byte OBJECT = 1;
+	private static final byte ARRAY = 2;
+	private static final byte STRING = 3;
+	private static final byte OTHER = 4;
+
+	private final byte[] bytes;
+	private final int rootStart;
+	private final int rootEnd;
+
+	//Keys of the objects being validated, as triplets of start, end and hash, used to find duplicated keys
+	private int[] keys = new int[48];
+	private int keysTop = 0;
+
+	//Span of the intent found, or of the value of the error key
+	private int start;
+	private int end;
+
+	/**
+	 * Validates a message.
+	 * @param bytes Raw message
+	 * @throws MalformedException If the message is not a strict JSON object in valid UTF-8, or it cannot be handled without the JSON tree
+	 */
+	RawMessage(byte[] bytes) throws MalformedException{
+		this.bytes = bytes;
+		this.rootStart = skipWhitespace(0);
+		if(rootStart >= bytes.length || bytes[rootStart] != '{')
+			throw MalformedException.INSTANCE;
+		this.rootEnd = validateValue(rootStart);
+		if(skipWhitespace(rootEnd) != bytes.length)
+			throw MalformedException.INSTANCE;
+		keys = null;
+	}
+
+	/**
+	 * Searches for the intent to resolve.
+	 * @return The outcome of the search, as in <code>{@link IntentLocator#locate(JSONObject)}</code>
+	 */
+	int locate(){
+		return locate(rootStart);
+	}
+
+	/**
+	 * @return The intent found by <code>{@link #locate()}</code>
+	 */
+	JSONObject intent(){
+		return new JSONObject(text(start, end));
+	}
+
+	/**
+	 * @return The value of the error key found by <code>{@link #locate()}</code>, as text
+	 */
+	String error(){
+		return new JSONTokener(text(start, end)).nextValue().toString();
+	}
+
+	/**
+	 * Gets the value of a field of the message, parsing only that value.
+	 * @param path Names of the keys leading to the field, starting at the main message
+	 * @return The value of the field, or null if there is no such field
+	 */
+	Object value(String[] path){
+		int object = rootStart;
+		int value = -1;
+		for(String key : path){
+			if(bytes[object] != '{')
+				return null;
+			value = -1;
+			for(Member m : members(object)){
+				if(m.key.equals(key))
+					value = m.start;
+			}
+			if(value == -1)
+				return null;
+			object = value;
+		}
+		return new JSONTokener(text(value, skipValue(value))).nextValue();
+	}
+
+	/**
+	 * Replaces the intent found by <code>{@link #locate()}</code> with its resolution.
+	 * @param resolved Resolution of the intent
+	 * @param error If not null, the error to put in the main message, as <code>{@link Agent}</code> does when a resolver fails
+	 * @return The resolved message
+	 */
+	byte[] splice(JSONObject resolved, Object error){
+		byte[] resolution = resolved.toString().getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length+resolution.length);
+		if(start == rootStart){
+			//The main message is the intent, so the resolution replaces it completely
+			out.write(bytes, 0, start);
+			out.write(resolution, 0, resolution.length);
+			out.write(bytes, end, bytes.length-end);
+			return out.toByteArray();
+		}
+		if(error == null){
+			out.write(bytes, 0, start);
+			out.write(resolution, 0, resolution.length);
+			out.write(bytes, end, bytes.length-end);
+			return out.toByteArray();
+		}
+		byte[] value = JSONObject.valueToString(error).getBytes(StandardCharsets.UTF_8);
+		Member previous = null;
+		for(Member m : members(rootStart)){
+			if(m.key.equals("error"))
+				previous = m;
+		}
+		if(previous == null){
+			//Insert the error as the first member of the main message
+			int open = rootStart+1;
+			out.write(bytes, 0, open);
+			byte[] key = "\"error\":".getBytes(StandardCharsets.UTF_8);
+			out.write(key, 0, key.length);
+			out.write(value, 0, value.length);
+			if(bytes[skipWhitespace(open)] != '}')
+				out.write(',');
+			out.write(bytes, open, start-open);
+		}else{
+			//Both spans are disjoint, as the intent cannot be inside an error
+			if(previous.start < start){
+				out.write(bytes, 0, previous.start);
+				out.write(value, 0, value.length);
+				out.write(bytes, previous.end, start-previous.end);
+			}else{
+				out.write(bytes, 0, start);
+				out.write(resolution, 0, resolution.length);
+				out.write(bytes, end, previous.start-end);
+				out.write(value, 0, value.length);
+				out.write(bytes, previous.end, bytes.length-previous.end);
+				return out.toByteArray();
+			}
+		}
+		out.write(resolution, 0, resolution.length);
+		out.write(bytes, end, bytes.length-end);
+		return out.toByteArray();
+	}
+
+	private int locate(int object){
+		List<Member> members = members(object);
+		if(members.isEmpty())
+			return IntentLocator.NOT_AN_INTENT;
+		Collections.sort(members);
+		Member intent = null;
+		for(Member m : members){
+			if(m.key.equals("error")){
+				start = m.start;
+				end = m.end;
+				return IntentLocator.ERROR;
+			}
+			if(m.key.equals("intent"))
+				intent = m;
+			//Ignore quotations
+			if(m.key.endsWith("!"))
+				continue;
+			if(m.type == ARRAY){
+				int p = skipWhitespace(m.start+1);
+				while(bytes[p] != ']'){
+					int next = skipValue(p);
+					if(bytes[p] == '{'){
+						int result = locate(p);
+						if(result != IntentLocator.NOT_AN_INTENT)
+							return result;
+					}
+					p = skipWhitespace(next);
+					if(bytes[p] == ',')
+						p = skipWhitespace(p+1);
+				}
+			}
+			if(m.type == OBJECT){
+				int result = locate(m.start);
+				if(result != IntentLocator.NOT_AN_INTENT)
+					return result;
+			}
+		}
+		if(intent == null || intent.type != STRING)
+			return IntentLocator.NOT_AN_INTENT;
+		start = object;
+		end = skipValue(object);
+		return IntentLocator.FOUND;
+	}
+
+	/**
+	 * Splits an already validated object in its members.
+	 */
+	private List<Member> members(int object){
+		List<Member> members = new ArrayList<Member>();
+		int p = skipWhitespace(object+1);
+		while(bytes[p] != '}'){
+			int keyEnd = skipValue(p);
+			String key = text(p+1, keyEnd-1);
+			int value = skipWhitespace(skipWhitespace(keyEnd)+1);
+			int valueEnd = skipValue(value);
+			members.add(new Member(key, value, valueEnd, type(value)));
+			p = skipWhitespace(valueEnd);
+			if(bytes[p] == ',')
+				p = skipWhitespace(p+1);
+		}
+		return members;
+	}
+
+	private byte type(int p){
+		switch(bytes[p]){
+		case '{': return OBJECT;
+		case '[': return ARRAY;
+		case '"': return STRING;
+		default: return OTHER;
+		}
+	}
+
+	/**
+	 * Finds the end of an already validated value.
+	 * @param p Start of the value
+	 * @return Position following the value
+	 */
+	private int skipValue(int p){
+		byte c = bytes[p];
+		if(c == '"'){
+			for(p++; bytes[p] != '"'; p++){
+				if(bytes[p] == '\\')
+					p++;
+			}
+			return p+1;
+		}
+		if(c == '{' || c == '['){
+			int depth = 0;
+			for(; ; p++){
+				c = bytes[p];
+				if(c == '"'){
+					p = skipValue(p)-1;
+				}else if(c == '{' || c == '['){
+					depth++;
+				}else if(c == '}' || c == ']'){
+					if(--depth == 0)
+						return p+1;
+				}
+			}
+		}
+		while(p < bytes.length && !isDelimiter(bytes[p]))
+			p++;
+		return p;
+	}
+
+	private int validateValue(int p) throws MalformedException{
+		if(p >= bytes.length)
+			throw MalformedException.INSTANCE;
+		switch(bytes[p]){
+		case '{': return validateObject(p);
+		case '[': return validateArray(p);
+		case '"': return validateString(p);
+		case 't': return validateLiteral(p, "true");
+		case 'f': return validateLiteral(p, "false");
+		case 'n': return validateLiteral(p, "null");
+		default: return validateNumber(p);
+		}
+	}
+
+	private int validateObject(int p) throws MalformedException{
+		int base = keysTop;
+		p = skipWhitespace(p+1);
+		if(p < bytes.length && bytes[p] == '}')
+			return p+1;
+		while(true){
+			if(p >= bytes.length || bytes[p] != '"')
+				throw MalformedException.INSTANCE;
+			int keyEnd = validateString(p);
+			addKey(base, p+1, keyEnd-1);
+			p = skipWhitespace(keyEnd);
+			if(p >= bytes.length || bytes[p] != ':')
+				throw MalformedException.INSTANCE;
+			p = skipWhitespace(validateValue(skipWhitespace(p+1)));
+			if(p >= bytes.length)
+				throw MalformedException.INSTANCE;
+			if(bytes[p] == '}'){
+				keysTop = base;
+				return p+1;
+			}
+			if(bytes[p] != ',')
+				throw MalformedException.INSTANCE;
+			p = skipWhitespace(p+1);
+		}
+	}
+
+	/**
+	 * Registers a key of the object being validated. Escaped keys are rejected, so keys can be compared byte by byte.
+	 */
+	private void addKey(int base, int start, int end) throws MalformedException{
+		int hash = 0;
+		for(int i = start; i < end; i++){
+			if(bytes[i] == '\\')
+				throw MalformedException.INSTANCE;
+			hash = 31*hash+bytes[i];
+		}
+		for(int k = base; k < keysTop; k += 3){
+			if(keys[k+2] == hash && regionEquals(keys[k], keys[k+1], start, end))
+				throw MalformedException.INSTANCE;
+		}
+		if(keysTop+3 > keys.length){
+			int[] grown = new int[keys.length*2];
+			System.arraycopy(keys, 0, grown, 0, keysTop);
+			keys = grown;
+		}
+		keys[keysTop++] = start;
+		keys[keysTop++] = end;
+		keys[keysTop++] = hash;
+	}
+
+	private int validateArray(int p) throws MalformedException{
+		p = skipWhitespace(p+1);
+		if(p < bytes.length && bytes[p] == ']')
+			return p+1;
+		while(true){
+			p = skipWhitespace(validateValue(p));
+			if(p >= bytes.length)
+				throw MalformedException.INSTANCE;
+			if(bytes[p] == ']')
+				return p+1;
+			if(bytes[p] != ',')
+				throw MalformedException.INSTANCE;
+			p = skipWhitespace(p+1);
+		}
+	}
+
+	private int validateString(int p) throws MalformedException{
+		for(p++; p < bytes.length; p++){
+			byte c = bytes[p];
+			if(c == '"')
+				return p+1;
+			if(c < 0){
+				p = validateUtf8(p);
+				continue;
+			}
+			if(c < 0x20)
+				throw MalformedException.INSTANCE;
+			if(c == '\\'){
+				if(++p >= bytes.length)
+					throw MalformedException.INSTANCE;
+				switch(bytes[p]){
+				case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+					break;
+				case 'u':
+					if(p+4 >= bytes.length)
+						throw MalformedException.INSTANCE;
+					for(int i = 1; i <= 4; i++){
+						if(Character.digit(bytes[p+i], 16) < 0)
+							throw MalformedException.INSTANCE;
+					}
+					p += 4;
+					break;
+				default:
+					throw MalformedException.INSTANCE;
+				}
+			}
+		}
+		throw MalformedException.INSTANCE;
+	}
+
+	/**
+	 * Validates a multibyte UTF-8 sequence, rejecting overlong forms, surrogates and code points beyond U+10FFFF, as the decoder of <code>{@link Util#parse(byte[])}</code> does.
+	 * @param p Start of the sequence
+	 * @return Position of the last byte of the sequence
+	 */
+	private int validateUtf8(int p) throws MalformedException{
+		int c = bytes[p] & 0xFF;
+		int length;
+		int min = 0x80;
+		int max = 0xBF;
+		if(c < 0xC2){
+			throw MalformedException.INSTANCE;
+		}else if(c < 0xE0){
+			length = 1;
+		}else if(c < 0xF0){
+			length = 2;
+			if(c == 0xE0)
+				min = 0xA0;
+			else if(c == 0xED)
+				max = 0x9F;
+		}else if(c < 0xF5){
+			length = 3;
+			if(c == 0xF0)
+				min = 0x90;
+			else if(c == 0xF4)
+				max = 0x8F;
+		}else{
+			throw MalformedException.INSTANCE;
+		}
+		if(p+length >= bytes.length)
+			throw MalformedException.INSTANCE;
+		for(int i = 1; i <= length; i++, min = 0x80, max = 0xBF){
+			int next = bytes[p+i] & 0xFF;
+			if(next < min || next > max)
+				throw MalformedException.INSTANCE;
+		}
+		return p+length;
+	}
+
+	private int validateLiteral(int p, String literal) throws MalformedException{
+		for(int i = 0; i < literal.length(); i++, p++){
+			if(p >= bytes.length || bytes[p] != literal.charAt(i))
+				throw MalformedException.INSTANCE;
+		}
+		return checkDelimited(p);
+	}
+
+	private int validateNumber(int p) throws MalformedException{
+		if(p < bytes.length && bytes[p] == '-')
+			p++;
+		if(p < bytes.length && bytes[p] == '0')
+			p++;
+		else
+			p = validateDigits(p);
+		if(p < bytes.length && bytes[p] == '.')
+			p = validateDigits(p+1);
+		if(p < bytes.length && (bytes[p] == 'e' || bytes[p] == 'E')){
+			p++;
+			if(p < bytes.length && (bytes[p] == '+' || bytes[p] == '-'))
+				p++;
+			p = validateDigits(p);
+		}
+		return checkDelimited(p);
+	}
+
+	private int validateDigits(int p) throws MalformedException{
+		int first = p;
+		while(p < bytes.length && bytes[p] >= '0' && bytes[p] <= '9')
+			p++;
+		if(p == first)
+			throw MalformedException.INSTANCE;
+		return p;
+	}
+
+	private int checkDelimited(int p) throws MalformedException{
+		if(p < bytes.length && !isDelimiter(bytes[p]))
+			throw MalformedException.INSTANCE;
+		return p;
+	}
+
+	private static boolean isDelimiter(byte c){
+		return c == ',' || c == '}' || c == ']' || isWhitespace(c);
+	}
+
+	private static boolean isWhitespace(byte c){
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private int skipWhitespace(int p){
+		while(p < bytes.length && isWhitespace(bytes[p]))
+			p++;
+		return p;
+	}
+
+	private boolean regionEquals(int start1, int end1, int start2, int end2){
+		if(end1-start1 != end2-start2)
+			return false;
+		for(int i = 0; i < end1-start1; i++){
+			if(bytes[start1+i] != bytes[start2+i])
+				return false;
+		}
+		return true;
+	}
+
+	private String text(int start, int end){
+		return new String(bytes, start, end-start, StandardCharsets.UTF_8);
+	}
+
+	private static class Member implements Comparable<Member> {
+		final String key;
+		final int start;
+		final int end;
+		final byte type;
+
+		Member(String key, int start, int end, byte type){
+			this.key = key;
+			this.start = start;
+			this.end = end;
+			this.type = type;
+		}
+
+		@Override
+		public int compareTo(Member other){
+			return key.compareTo(other.key);
+		}
+	}
+
+	/**
+	 * Thrown when a message cannot be handled without building its JSON tree.
+	 */
+	static class MalformedException extends Exception {
+		private static final long serialVersionUID = 1L;
+		static final MalformedException INSTANCE = new MalformedException();
+
+		private MalformedException(){
+			super("The message cannot be resolved in its raw form", null, false, false);
+		}
+	}
+}
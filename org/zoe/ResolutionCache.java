@@ -0,0 +1,185 @@
+package org.zoe;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+/**
+ * Bounded cache of the resolutions of a <code>{@link Resolver}</code>, for resolvers whose resolution only depends on some fields of the intent.
+ * 
+ * Entries are evicted once they are older than the time to live, or when the cache is full, the least recently used first.
+ * Identical intents resolved at the same time share a single resolution. Failed resolutions are not cached.
+ * Resolutions are copied before being handed out, so they can be modified freely. This class is thread safe.
+ * 
+ * @see Resolver#cacheable(Function, int, long, TimeUnit)
+ */
+public class ResolutionCache {
+	private final Function<Intent, Object> key;
+	private final int maxSize;
+	private final long ttl;
+	private final Map<Object, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param key Function that computes the key of an intent. Intents with the same key have the same resolution. If it returns null, the intent is not cached
+	 * @param maxSize Maximum number of cached resolutions
+	 * @param ttl Time to live of the cached resolutions
+	 * @param unit Unit of the time to live
+	 */
+	public ResolutionCache(Function<Intent, Object> key, int maxSize, long ttl, TimeUnit unit){
+		if(maxSize < 1)
+			throw new IllegalArgumentException("The size of the cache must be positive");
+		this.key = key;
+		this.maxSize = maxSize;
+		this.ttl = unit.toNanos(ttl);
+		this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Builds a key function from some fields of the intent. Intents with the same values in all of them share their key.
+	 * @param fields Names of the fields
+	 * @return Key function
+	 */
+	public static Function<Intent, Object> fields(String... fields){
+		return intent -> {
+			List<Object> key = new ArrayList<Object>(fields.length+1);
+			key.add(intent.name);
+			for(String field : fields){
+				Object value = intent.opt(field);
+				key.add(value == null ? null : value.toString());
+			}
+			return key;
+		};
+	}
+
+	/**
+	 * Gets the resolution of an intent from the cache, or resolves it if it is not cached.
+	 * @param intent Intent to resolve
+	 * @param resolution Resolution of the intent, called on a cache miss
+	 * @param hits Counter incremented on a cache hit, besides the counter of the cache, e.g. to count the hits of each agent
+	 * @return Future of a copy of the resolution
+	 */
+	CompletableFuture<JSONObject> get(Intent intent, Supplier<CompletableFuture<JSONObject>> resolution, LongAdder hits){
+		Object k = key.apply(intent);
+		if(k == null)
+			return resolution.get();
+		Entry entry;
+		CompletableFuture<JSONObject> pending = null;
+		long now = System.nanoTime();
+		synchronized(entries){
+			entry = entries.get(k);
+			if(entry != null && entry.done && entry.expires - now < 0){
+				entries.remove(k);
+				evictions.incrementAndGet();
+				entry = null;
+			}
+			if(entry == null){
+				pending = new CompletableFuture<JSONObject>();
+				entry = new Entry(pending);
+				entries.put(k, entry);
+				evictExcess();
+			}
+		}
+		if(pending == null){
+			this.hits.incrementAndGet();
+			hits.increment();
+			return entry.resolution.thenApply(Util::copy);
+		}
+		misses.incrementAndGet();
+		final Entry computed = entry;
+		try{
+			resolution.get().whenComplete((resolved, ex) -> {
+				if(ex == null){
+					synchronized(entries){
+						computed.expires = System.nanoTime()+ttl;
+						computed.done = true;
+					}
+					computed.resolution.complete(resolved);
+				}else{
+					remove(k, computed);
+					computed.resolution.completeExceptionally(ex);
+				}
+			});
+		}catch(RuntimeException | Error ex){
+			remove(k, computed);
+			computed.resolution.completeExceptionally(ex);
+			throw ex;
+		}
+		return computed.resolution.thenApply(Util::copy);
+	}
+
+	/**
+	 * @return Number of intents whose resolution has been taken from the cache
+	 */
+	public long getHits(){
+		return hits.get();
+	}
+	/**
+	 * @return Number of intents that have been resolved because they were not in the cache
+	 */
+	public long getMisses(){
+		return misses.get();
+	}
+	/**
+	 * @return Number of resolutions evicted from the cache, because they expired or the cache was full
+	 */
+	public long getEvictions(){
+		return evictions.get();
+	}
+	/**
+	 * @return Number of resolutions in the cache
+	 */
+	public int size(){
+		synchronized(entries){
+			return entries.size();
+		}
+	}
+	/**
+	 * Removes every resolution from the cache.
+	 */
+	public void clear(){
+		synchronized(entries){
+			entries.clear();
+		}
+	}
+
+	private void evictExcess(){
+		Iterator<Entry> eldest = entries.values().iterator();
+		while(entries.size() > maxSize && eldest.hasNext()){
+			eldest.next();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(Object k, Entry entry){
+		synchronized(entries){
+			if(entries.get(k) == entry)
+				entries.remove(k);
+		}
+	}
+
+	private static class Entry {
+		final CompletableFuture<JSONObject> resolution;
+		//Resolutions in progress do not expire
+		boolean done = false;
+		long expires;
+
+		Entry(CompletableFuture<JSONObject> resolution){
+			this.resolution = resolution;
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package org.zoe;
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
 import org.json.*;
 /**
  * This class defines the resolution of incoming intents
@@ -8,6 +11,7 @@ import org.json.*;
  */
 public abstract class Resolver {
 	private String name;
+	private ResolutionCache cache;
 	
 	public Resolver(String name){
 		this.name = name;
@@ -30,4 +34,35 @@ public abstract class Resolver {
 	 * @return Error object to be appended
 	 */
 	public abstract JSONObject getErrorObject(IntentErrorException ex);
+	/**
+	 * Tells whether this resolver reads the full message passed to <code>{@link #resolve(Intent, JSONObject)}</code>. Override to return false if it does not.
+	 * 
+	 * When an agent resolves messages in their raw form (see <code>{@link Agent#setSpliceMode(boolean)}</code>), resolvers that do not need the full message
+	 * receive null instead of it, and the message is never parsed as a whole. Resolvers that do need it make the agent fall back to the parsed message.
+	 * @return true by default
+	 */
+	public boolean usesFullMessage(){
+		return true;
+	}
+	/**
+	 * Declares this resolver as cacheable: intents with the same key are resolved once, and their resolution is reused until it expires.
+	 * Only resolvers whose resolution depends solely on the fields of the intent used by the key, and not on the full message, should be cacheable.
+	 * Resolutions that fail are never cached.
+	 * 
+	 * @param key Function that computes the key of an intent, e.g. <code>{@link ResolutionCache#fields(String...)}</code>. If it returns null, the intent is not cached
+	 * @param maxSize Maximum number of cached resolutions
+	 * @param ttl Time to live of the cached resolutions
+	 * @param unit Unit of the time to live
+	 * @return This resolver
+	 */
+	public Resolver cacheable(Function<Intent, Object> key, int maxSize, long ttl, TimeUnit unit){
+		this.cache = new ResolutionCache(key, maxSize, ttl, unit);
+		return this;
+	}
+	/**
+	 * @return The cache of this resolver, with its hit, miss and eviction counts, or null if it is not cacheable
+	 */
+	public ResolutionCache getCache(){
+		return cache;
+	}
 }
@@ -0,0 +1,80 @@
+package org.zoe;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the <code>{@link Resolver}</code>s of an agent, indexed by the name of the intent they resolve.
+ * 
+ * Lookups are lock free, and may happen while resolvers are being added, replaced or removed from another thread. A resolution that has already
+ * looked up its resolver keeps using it until it finishes, even if the resolver is replaced or removed in the meantime.
+ * The registry also keeps the <code>{@link IntentFilter}</code> built from the names of its resolvers up to date.
+ */
+class ResolverRegistry {
+	private final ConcurrentHashMap<String, Resolver> resolvers = new ConcurrentHashMap<String, Resolver>();
+	private volatile IntentFilter filter = new IntentFilter(Collections.<String>emptySet());
+
+	/**
+	 * @param name Name of an intent
+	 * @return The resolver of the intent, or null if there is none
+	 */
+	Resolver get(String name){
+		return resolvers.get(name);
+	}
+
+	/**
+	 * @return The filter that discards messages with no intent resolvable by any of the registered resolvers
+	 */
+	IntentFilter filter(){
+		return filter;
+	}
+
+	/**
+	 * @return The names of the registered resolvers
+	 */
+	Set<String> names(){
+		return Collections.unmodifiableSet(resolvers.keySet());
+	}
+
+	/**
+	 * Registers a resolver, unless there is already one with the same name.
+	 * @param resolver Resolver to register
+	 * @return Whether the resolver has been registered
+	 */
+	synchronized boolean add(Resolver resolver){
+		if(resolvers.putIfAbsent(resolver.getName(), resolver) != null)
+			return false;
+		filter = new IntentFilter(resolvers.keySet());
+		return true;
+	}
+
+	/**
+	 * Registers a resolver, replacing the one with the same name if there is any.
+	 * @param resolver Resolver to register
+	 * @return The replaced resolver, or null if there was none
+	 */
+	synchronized Resolver replace(Resolver resolver){
+		Resolver previous = resolvers.put(resolver.getName(), resolver);
+		if(previous == null)
+			filter = new IntentFilter(resolvers.keySet());
+		return previous;
+	}
+
+	/**
+	 * Unregisters a resolver.
+	 * @param name Name of the resolver
+	 * @return The removed resolver, or null if there was none
+	 */
+	synchronized Resolver remove(String name){
+		Resolver previous = resolvers.remove(name);
+		if(previous != null)
+			filter = new IntentFilter(resolvers.keySet());
+		return previous;
+	}
+
+	synchronized void clear(){
+		resolvers.clear();
+		filter = new IntentFilter(resolvers.keySet());
+	}
+}
@@ -0,0 +1,68 @@
+package org.zoe;
+
+/**
+ * Snapshot of the statistics of a <code>{@link Resolver}</code>, as exposed by <code>{@link AgentMetricsMXBean#getResolvers()}</code>.
+ */
+public class ResolverStatistics {
+	private final long resolutions;
+	private final long errors;
+	private final long cacheHits;
+	private final double meanMillis;
+	private final double p50Millis;
+	private final double p99Millis;
+	private final double maxMillis;
+
+	ResolverStatistics(long resolutions, long errors, long cacheHits, LatencyHistogram latency){
+		this.resolutions = resolutions;
+		this.errors = errors;
+		this.cacheHits = cacheHits;
+		this.meanMillis = latency.meanMillis();
+		this.p50Millis = latency.percentileMillis(50);
+		this.p99Millis = latency.percentileMillis(99);
+		this.maxMillis = latency.maxMillis();
+	}
+
+	/**
+	 * @return Number of intents resolved by the resolver, including the ones that failed, but not the ones taken from its cache
+	 */
+	public long getResolutions(){
+		return resolutions;
+	}
+	/**
+	 * @return Number of intents whose resolution threw an <code>{@link IntentErrorException}</code>
+	 */
+	public long getErrors(){
+		return errors;
+	}
+	/**
+	 * @return Number of intents whose resolution was taken from the cache of the resolver (see <code>{@link Resolver#getCache()}</code>),
+	 * which are left out of the resolution times
+	 */
+	public long getCacheHits(){
+		return cacheHits;
+	}
+	/**
+	 * @return Mean resolution time, in milliseconds
+	 */
+	public double getMeanMillis(){
+		return meanMillis;
+	}
+	/**
+	 * @return Median resolution time, in milliseconds
+	 */
+	public double getP50Millis(){
+		return p50Millis;
+	}
+	/**
+	 * @return 99th percentile of the resolution time, in milliseconds
+	 */
+	public double getP99Millis(){
+		return p99Millis;
+	}
+	/**
+	 * @return Maximum resolution time, in milliseconds
+	 */
+	public double getMaxMillis(){
+		return maxMillis;
+	}
+}
@@ -0,0 +1,129 @@
+package org.zoe;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of where the intent of a message is, by the shape of the message, for agents receiving messages built from a few templates.
+ *
+ * The shape of a message is its structure without its values: the keys of its objects and the kind of their values (object, array and its length,
+ * string, or any other value), in the order the keys are iterated. Messages with the same shape have their intent, or their error, at the same path,
+ * so once a shape has been searched by <code>{@link IntentLocator}</code>, messages with that shape skip the search. Shapes are looked up by their
+ * fingerprint, and then compared in full, so a message is never given the path of another shape.
+ *
+ * When the cache is full, the least recently used shape is evicted. This class is thread safe.
+ */
+class ShapeCache {
+	private final int maxSize;
+	private final Map<Long, Shape> shapes = new LinkedHashMap<Long, Shape>(16, 0.75f, true);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize Maximum number of shapes kept
+	 */
+	ShapeCache(int maxSize){
+		if(maxSize < 1)
+			throw new IllegalArgumentException("The size of the cache must be positive");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param fingerprint Fingerprint of a shape
+	 * @return Shape with that fingerprint, or null
+	 */
+	Shape get(long fingerprint){
+		synchronized(shapes){
+			return shapes.get(fingerprint);
+		}
+	}
+
+	/**
+	 * Keeps a shape, replacing any shape with the same fingerprint.
+	 * @param fingerprint Fingerprint of the shape
+	 * @param shape Shape
+	 */
+	void put(long fingerprint, Shape shape){
+		synchronized(shapes){
+			shapes.put(fingerprint, shape);
+			Iterator<Shape> eldest = shapes.values().iterator();
+			while(shapes.size() > maxSize && eldest.hasNext()){
+				eldest.next();
+				eldest.remove();
+			}
+		}
+	}
+
+	void hit(){
+		hits.incrementAndGet();
+	}
+
+	void miss(){
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * @return Number of searches skipped because the shape of the message was known
+	 */
+	long getHits(){
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of searches done because the shape of the message was not known
+	 */
+	long getMisses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of shapes kept
+	 */
+	int size(){
+		synchronized(shapes){
+			return shapes.size();
+		}
+	}
+
+	/**
+	 * Shape of a message, along with the outcome of its search.
+	 */
+	static class Shape {
+		//Keys of the objects, and kinds of the values, in order
+		final String[] keys;
+		final int[] kinds;
+		//Outcome of the search, as in IntentLocator.locate
+		final int outcome;
+		//Path of the intent or the error: the key of each step, and the index in the array of the key, or -1 if the key holds an object
+		final String[] pathKeys;
+		final int[] pathIndices;
+
+		Shape(String[] keys, int[] kinds, int outcome, String[] pathKeys, int[] pathIndices){
+			this.keys = keys;
+			this.kinds = kinds;
+			this.outcome = outcome;
+			this.pathKeys = pathKeys;
+			this.pathIndices = pathIndices;
+		}
+
+		/**
+		 * @return Whether this is the shape described by the given keys and kinds
+		 */
+		boolean matches(String[] keys, int keyCount, int[] kinds, int kindCount){
+			if(keyCount != this.keys.length || kindCount != this.kinds.length)
+				return false;
+			for(int i = 0; i < kindCount; i++){
+				if(kinds[i] != this.kinds[i])
+					return false;
+			}
+			for(int i = 0; i < keyCount; i++){
+				if(!keys[i].equals(this.keys[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.zoe;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event of a stage of the processing of a record by an agent. The event is disabled unless a recording enables it,
+ * e.g., with <code>-XX:StartFlightRecording</code>, and it is only ever loaded through <code>{@link Trace}</code>, so that agents still run
+ * on runtimes without Flight Recorder.
+ *
+ * Stages are measured by the agent itself, so the duration of the stage is in the <code>elapsed</code> field, and the event is committed when the stage ends.
+ */
+@Name(StageEvent.NAME)
+@Label("Zoe Stage")
+@Category("Zoe")
+@Description("Stage of the processing of a record by an agent")
+@StackTrace(false)
+class StageEvent extends Event {
+	static final String NAME = "org.zoe.Stage";
+	//Type of the event, which tells whether it is enabled without creating an event every time
+	private static final EventType TYPE = EventType.getEventType(StageEvent.class);
+
+	@Label("Stage")
+	String stage;
+	@Label("Detail")
+	@Description("Name of the intent resolved, or number of records polled")
+	String detail;
+	@Label("Group")
+	String group;
+	@Label("Topic")
+	String topic;
+	@Label("Partition")
+	int partition;
+	@Label("Offset")
+	long offset;
+	@Label("Trace")
+	@Description("Identifier of the trace of the message, if it is sampled")
+	String trace;
+	@Label("Elapsed")
+	@Timespan(Timespan.NANOSECONDS)
+	long elapsed;
+
+	/**
+	 * @return Whether the event is enabled in a running recording
+	 */
+	static boolean enabled(){
+		return TYPE.isEnabled();
+	}
+
+	static void commit(String stage, String detail, String group, String topic, int partition, long offset, String trace, long elapsed){
+		StageEvent event = new StageEvent();
+		if(!event.shouldCommit())
+			return;
+		event.stage = stage;
+		event.detail = detail;
+		event.group = group;
+		event.topic = topic;
+		event.partition = partition;
+		event.offset = offset;
+		event.trace = trace;
+		event.elapsed = elapsed;
+		event.commit();
+	}
+}
@@ -0,0 +1,254 @@
+package org.zoe;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+/**
+ * Timing of the stages of the processing of a record by an agent, from its reception until its resolution is published.
+ *
+ * Each stage is reported as a <code>{@link StageEvent}</code> while a Flight Recorder recording enables them. Besides, a sample of the messages
+ * may carry a trace header (see <code>{@link Agent#setTracing(double)}</code>): each agent appends a hop to the header of the messages it publishes,
+ * with the time the record was received, the time its resolution was sent and the time taken by each stage. The header of the last message of
+ * a conversation then holds the whole path of the message, which <code>{@link TraceReport}</code> turns into a latency breakdown.
+ *
+ * The header is text: the identifier of the trace followed by its hops, separated by semicolons. A hop is made of the URL encoded group of the agent,
+ * the reception and sending times in milliseconds since the epoch, and the time of each stage in microseconds, separated by spaces.
+ * The time spent sending is not in the header, as it is measured after building it; it is part of the transit time of the next hop.
+ *
+ * Records that are neither traced nor recorded get <code>{@link #OFF}</code>, which measures nothing.
+ */
+final class Trace {
+	static final String HEADER = "zoe-trace";
+
+	static final int FILTER = 0;
+	static final int PARSE = 1;
+	static final int LOCATE = 2;
+	static final int RESOLVE = 3;
+	static final int SERIALIZE = 4;
+	static final int SEND = 5;
+	static final String[] STAGES = {"filter", "parse", "locate", "resolve", "serialize", "send"};
+	//Stages written in the header
+	static final int HOP_STAGES = SEND;
+
+	//Traces are dropped once they reach this many hops, e.g., if messages go round in circles
+	private static final int MAX_HOPS = 64;
+	private static final boolean RECORDER = recorderAvailable();
+
+	static final Trace OFF = new Trace();
+
+	private final String id;
+	private final String previous;
+	private final boolean recorded;
+	private final String group;
+	private final String topic;
+	private final int partition;
+	private final long offset;
+	private final long received;
+	private final long start;
+	private final long[] stages = new long[STAGES.length];
+	private volatile String detail = null;
+	private volatile Object message = null;
+
+	private Trace(){
+		this(null, null, false, null, null, 0, 0);
+	}
+	private Trace(String id, String previous, boolean recorded, String group, String topic, int partition, long offset){
+		this.id = id;
+		this.previous = previous;
+		this.recorded = recorded;
+		this.group = group;
+		this.topic = topic;
+		this.partition = partition;
+		this.offset = offset;
+		this.received = System.currentTimeMillis();
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Starts timing a received record. The record is traced if it already carries a trace header, or if it is sampled.
+	 * @param record Received record
+	 * @param group Group of the agent
+	 * @param sampling Probability that a record without a trace header starts a new trace, or a negative value if headers are neither read nor written
+	 * @return Timing of the record, or <code>{@link #OFF}</code> if it is neither traced nor recorded
+	 */
+	static Trace start(ConsumerRecord<String, byte[]> record, String group, double sampling){
+		String id = null;
+		String previous = null;
+		if(sampling >= 0){
+			Header header = record.headers().lastHeader(HEADER);
+			if(header != null){
+				String value = new String(header.value(), StandardCharsets.UTF_8);
+				int end = value.indexOf(';');
+				if(end > 0 && hops(value) < MAX_HOPS){
+					id = value.substring(0, end);
+					previous = value;
+				}
+			}else if(sampling > 0 && ThreadLocalRandom.current().nextDouble() < sampling){
+				id = Long.toHexString(ThreadLocalRandom.current().nextLong());
+				previous = id;
+			}
+		}
+		boolean recorded = RECORDER && StageEvent.enabled();
+		if(id == null && !recorded)
+			return OFF;
+		return new Trace(id, previous, recorded, group, record.topic(), record.partition(), record.offset());
+	}
+
+	/**
+	 * Reports the records polled at once, if the stage events are being recorded.
+	 * @param group Group of the agent
+	 * @param records Number of records polled
+	 * @param start Time the poll started, as given by <code>System.nanoTime()</code>
+	 */
+	static void polled(String group, int records, long start){
+		if(RECORDER && StageEvent.enabled())
+			StageEvent.commit("poll", Integer.toString(records), group, null, -1, -1, null, System.nanoTime()-start);
+	}
+
+	/**
+	 * @return The current time, to be passed to <code>{@link #end(int, long)}</code>, or 0 if nothing is measured
+	 */
+	long now(){
+		return this == OFF ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Ends a stage.
+	 * @param stage Stage, such as <code>{@link #PARSE}</code>
+	 * @param start Time the stage started, as given by <code>{@link #now()}</code>
+	 */
+	void end(int stage, long start){
+		if(this == OFF)
+			return;
+		long elapsed = System.nanoTime()-start;
+		synchronized(stages){
+			stages[stage] += elapsed;
+		}
+		if(recorded)
+			StageEvent.commit(STAGES[stage], detail, group, topic, partition, offset, id, elapsed);
+	}
+
+	/**
+	 * @param detail Name of the intent being resolved, reported along with the following stages
+	 */
+	void detail(String detail){
+		if(this != OFF)
+			this.detail = detail;
+	}
+
+	/**
+	 * Attaches this timing to the resolution of the record, so that it reaches the stages that publish it.
+	 * @param message Resolution of the record, or null if it is ignored
+	 * @return The timing holding the resolution, or the resolution itself if nothing is measured
+	 */
+	Object wrap(Object message){
+		if(this == OFF || message == null)
+			return message;
+		this.message = message;
+		return this;
+	}
+
+	/**
+	 * @return Resolution of the record
+	 */
+	Object message(){
+		return message;
+	}
+
+	/**
+	 * @return Headers of the message published for this record, which carry the trace with a new hop for this agent, or null if the record is not traced
+	 */
+	Iterable<Header> headers(){
+		if(id == null)
+			return null;
+		long sent = received+(System.nanoTime()-start)/1000000;
+		StringBuilder value = new StringBuilder(previous).append(';').append(encode(group)).append(' ').append(received).append(' ').append(sent);
+		synchronized(stages){
+			for(int i = 0; i < HOP_STAGES; i++)
+				value.append(' ').append(stages[i]/1000);
+		}
+		return Collections.<Header>singletonList(new RecordHeader(HEADER, value.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Parses the hops of a trace header.
+	 * @param header Value of the header
+	 * @return Hops of the trace, in order
+	 * @throws IllegalArgumentException If the header is malformed
+	 */
+	static List<Hop> parse(String header){
+		String[] parts = header.trim().split(";");
+		List<Hop> hops = new ArrayList<Hop>(parts.length-1);
+		for(int i = 1; i < parts.length; i++){
+			String[] fields = parts[i].split(" ");
+			if(fields.length != 3+HOP_STAGES)
+				throw new IllegalArgumentException("Malformed hop: "+parts[i]);
+			long[] stages = new long[HOP_STAGES];
+			for(int s = 0; s < HOP_STAGES; s++)
+				stages[s] = Long.parseLong(fields[3+s]);
+			hops.add(new Hop(decode(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), stages));
+		}
+		return hops;
+	}
+
+	private static int hops(String header){
+		int hops = 0;
+		for(int i = 0; i < header.length(); i++){
+			if(header.charAt(i) == ';')
+				hops++;
+		}
+		return hops;
+	}
+
+	private static String encode(String group){
+		try{
+			return URLEncoder.encode(group, "UTF-8");
+		}catch(UnsupportedEncodingException ex){
+			throw new IllegalStateException(ex);
+		}
+	}
+	private static String decode(String group){
+		try{
+			return URLDecoder.decode(group, "UTF-8");
+		}catch(UnsupportedEncodingException ex){
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static boolean recorderAvailable(){
+		try{
+			Class.forName("jdk.jfr.FlightRecorder");
+			StageEvent.enabled();
+			return true;
+		}catch(ClassNotFoundException | LinkageError ex){
+			return false;
+		}
+	}
+
+	/**
+	 * Step of a traced message through an agent, as written in the trace header.
+	 */
+	static class Hop {
+		final String group;
+		final long received;
+		final long sent;
+		final long[] stages;
+
+		Hop(String group, long received, long sent, long[] stages){
+			this.group = group;
+			this.received = received;
+			this.sent = sent;
+			this.stages = stages;
+		}
+	}
+}
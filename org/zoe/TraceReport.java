@@ -0,0 +1,167 @@
+package org.zoe;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Offline tool that rebuilds where the time went while a message was resolved by a chain of agents, either from the trace headers of the messages
+ * (see <code>{@link Agent#setTracing(double)}</code>) or from a Flight Recorder recording of the agents.
+ *
+ * Headers are read from a text file with one header value per line, optionally prefixed with <code>zoe-trace:</code>, e.g. as printed
+ * by a console consumer with headers. Every agent appends its hop to the header, so only the longest header of each trace is reported.
+ * For each hop, the report gives the transit time, from the moment the previous agent sent the message until this one started processing it
+ * (i.e., the time in the producer, in Kafka and waiting in the agent), followed by the time of each stage and the total time in the agent.
+ *
+ * Recordings, i.e. <code>.jfr</code> files, give the stages of the traced messages the same way, without transit times, and the statistics
+ * of the stages of every record, by agent group.
+ *
+ * Usage: <code>java org.zoe.TraceReport &lt;headers file | recording.jfr&gt;</code>
+ */
+public class TraceReport {
+	private static final String PREFIX = Trace.HEADER+":";
+
+	public static void main(String[] args) throws IOException{
+		if(args.length != 1){
+			System.err.println("Usage: java org.zoe.TraceReport <headers file | recording.jfr>");
+			System.exit(2);
+		}
+		Path file = Paths.get(args[0]);
+		if(file.toString().endsWith(".jfr"))
+			reportRecording(file, System.out);
+		else
+			reportHeaders(Files.readAllLines(file, StandardCharsets.UTF_8), System.out);
+	}
+
+	/**
+	 * Prints the latency breakdown of each trace.
+	 * @param headers Values of trace headers, one per line
+	 * @param out Where the report is printed
+	 */
+	public static void reportHeaders(List<String> headers, PrintStream out){
+		Map<String, List<Trace.Hop>> traces = new LinkedHashMap<String, List<Trace.Hop>>();
+		for(String line : headers){
+			line = line.trim();
+			int prefix = line.indexOf(PREFIX);
+			if(prefix >= 0)
+				line = line.substring(prefix+PREFIX.length()).trim();
+			int end = line.indexOf(';');
+			if(end <= 0)
+				continue;
+			List<Trace.Hop> hops;
+			try{
+				hops = Trace.parse(line);
+			}catch(IllegalArgumentException ex){
+				System.err.println("Skipping malformed header: "+line);
+				continue;
+			}
+			String id = line.substring(0, end);
+			List<Trace.Hop> known = traces.get(id);
+			if(known == null || known.size() < hops.size())
+				traces.put(id, hops);
+		}
+		for(Map.Entry<String, List<Trace.Hop>> e : traces.entrySet()){
+			List<Trace.Hop> hops = e.getValue();
+			Trace.Hop first = hops.get(0);
+			Trace.Hop last = hops.get(hops.size()-1);
+			out.printf("trace %s: %d hops, %d ms from the first reception to the last sending%n", e.getKey(), hops.size(), last.sent-first.received);
+			header(out, Trace.HOP_STAGES);
+			for(int i = 0; i < hops.size(); i++){
+				Trace.Hop hop = hops.get(i);
+				String transit = i == 0 ? "-" : Long.toString(hop.received-hops.get(i-1).sent);
+				row(out, i+1, hop.group, transit, hop.stages, 1000, Long.toString(hop.sent-hop.received));
+			}
+			out.println();
+		}
+	}
+
+	/**
+	 * Prints the stages of each traced message found in a recording, and the statistics of the stages of every record.
+	 * @param recording Flight Recorder recording
+	 * @param out Where the report is printed
+	 * @throws IOException If the recording cannot be read
+	 */
+	public static void reportRecording(Path recording, PrintStream out) throws IOException{
+		//Stages of each hop of each trace, in order of reception
+		Map<String, Map<String, long[]>> traces = new LinkedHashMap<String, Map<String, long[]>>();
+		Map<String, Map<String, LatencyHistogram>> statistics = new TreeMap<String, Map<String, LatencyHistogram>>();
+		for(RecordedEvent event : RecordingFile.readAllEvents(recording)){
+			if(!event.getEventType().getName().equals(StageEvent.NAME))
+				continue;
+			String group = event.getString("group");
+			String name = event.getString("stage");
+			long elapsed = event.getDuration("elapsed").toNanos();
+			statistics.computeIfAbsent(group, g -> new LinkedHashMap<String, LatencyHistogram>())
+					.computeIfAbsent(name, s -> new LatencyHistogram()).record(elapsed);
+			String trace = event.getString("trace");
+			int stage = stage(name);
+			if(trace == null || stage < 0)
+				continue;
+			//Hops are told apart by the record they come from
+			String hop = group+" "+event.getString("topic")+"-"+event.getInt("partition")+"@"+event.getLong("offset");
+			traces.computeIfAbsent(trace, t -> new LinkedHashMap<String, long[]>())
+					.computeIfAbsent(hop, h -> new long[Trace.STAGES.length])[stage] += elapsed;
+		}
+		for(Map.Entry<String, Map<String, long[]>> e : traces.entrySet()){
+			out.printf("trace %s: %d hops%n", e.getKey(), e.getValue().size());
+			header(out, Trace.STAGES.length);
+			int i = 0;
+			for(Map.Entry<String, long[]> hop : e.getValue().entrySet()){
+				long total = 0;
+				for(long stage : hop.getValue())
+					total += stage;
+				row(out, ++i, hop.getKey().substring(0, hop.getKey().lastIndexOf(' ')), "-", hop.getValue(), 1000000, millis(total, 1000000));
+			}
+			out.println();
+		}
+		for(Map.Entry<String, Map<String, LatencyHistogram>> e : statistics.entrySet()){
+			out.printf("group %s%n", e.getKey());
+			out.printf("  %-10s %10s %10s %10s %10s %10s%n", "stage", "count", "mean", "p50", "p99", "max");
+			for(Map.Entry<String, LatencyHistogram> stage : e.getValue().entrySet()){
+				LatencyHistogram h = stage.getValue();
+				out.printf("  %-10s %10d %10.3f %10.3f %10.3f %10.3f%n", stage.getKey(), h.count(), h.meanMillis(),
+						h.percentileMillis(50), h.percentileMillis(99), h.maxMillis());
+			}
+			out.println();
+		}
+	}
+
+	private static int stage(String name){
+		for(int i = 0; i < Trace.STAGES.length; i++){
+			if(Trace.STAGES[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	private static void header(PrintStream out, int stages){
+		out.printf("  %-4s %-20s %10s", "hop", "group", "transit");
+		for(int i = 0; i < stages; i++)
+			out.printf(" %10s", Trace.STAGES[i]);
+		out.printf(" %10s%n", "total");
+	}
+
+	/**
+	 * @param unit Number of units of the stages per millisecond
+	 */
+	private static void row(PrintStream out, int hop, String group, String transit, long[] stages, long unit, String total){
+		out.printf("  %-4d %-20s %10s", hop, group, transit);
+		for(long stage : stages)
+			out.printf(" %10s", millis(stage, unit));
+		out.printf(" %10s%n", total);
+	}
+
+	private static String millis(long value, long unit){
+		return String.format("%.3f", (double)value/unit);
+	}
+}
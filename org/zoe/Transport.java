@@ -0,0 +1,139 @@
+package org.zoe;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.json.JSONObject;
+
+/**
+ * Means by which an <code>{@link Agent}</code> receives and publishes messages: <code>{@link KafkaClient}</code> through Kafka, or
+ * <code>{@link InMemoryBus}</code> between agents of the same JVM.
+ *
+ * Records are received from topics, in partitions, as Kafka records. Every received record must eventually be either committed or ignored.
+ * Unless stated otherwise, methods are called from the thread of the agent.
+ */
+public interface Transport {
+	/**
+	 * Waits for the next records, for a short time.
+	 * @return Received records, which may be empty
+	 */
+	ConsumerRecords<String, byte[]> consume();
+
+	/**
+	 * Marks a record as processed. This method may be called from any thread.
+	 * @param record Processed record
+	 */
+	void commit(ConsumerRecord<String, byte[]> record);
+
+	/**
+	 * Marks a record as skipped. This method may be called from any thread.
+	 * @param record Skipped record
+	 */
+	void ignore(ConsumerRecord<String, byte[]> record);
+
+	/**
+	 * Publishes a message. This method may be called from any thread.
+	 * @param topic Topic where the message is published
+	 * @param key Key of the message, or null to use a random one
+	 * @param message Message to publish
+	 * @param headers Headers of the record, or null
+	 */
+	void send(String topic, String key, byte[] message, Iterable<Header> headers);
+
+	/**
+	 * Tells whether messages published through <code>{@link #send(String, String, JSONObject, Iterable)}</code> are carried as objects, without serializing them.
+	 * Agents then prefer publishing objects to publishing bytes. Transports that do not carry objects still accept them, serialized as JSON text.
+	 * @return Whether messages can be published as objects without serializing them
+	 */
+	default boolean carriesObjects(){
+		return false;
+	}
+
+	/**
+	 * Publishes a message as an object if the transport carries objects (see <code>{@link #carriesObjects()}</code>), or by default as JSON text,
+	 * through <code>{@link #send(String, String, byte[], Iterable)}</code>.
+	 * The message belongs to the transport from then on, and must not be modified. This method may be called from any thread.
+	 * @param topic Topic where the message is published
+	 * @param key Key of the message, or null to use a random one
+	 * @param message Message to publish
+	 * @param headers Headers of the record, or null
+	 */
+	default void send(String topic, String key, JSONObject message, Iterable<Header> headers){
+		send(topic, key, Util.jsonToBytes(message), headers);
+	}
+
+	/**
+	 * Gives the message of a record received as an object, which then does not need to be parsed. The message belongs to the receiver,
+	 * which may modify it, e.g. while resolving it in place. The value of the record may be serialized from that same message when it is read,
+	 * so it is only the message as received if it is read before the message is claimed: once this method has been called,
+	 * <code>{@link ConsumerRecord#value()}</code> is undefined, and may even fail while another thread modifies the message.
+	 * @param record Received record
+	 * @return Message of the record, or null if it has been received as bytes
+	 */
+	default JSONObject message(ConsumerRecord<String, byte[]> record){
+		return null;
+	}
+
+	/**
+	 * Subscribes to the given topics, replacing the current subscription.
+	 * @param topics Topics to subscribe to
+	 */
+	void subscribe(Collection<String> topics);
+
+	/**
+	 * Stops receiving records from the given partitions.
+	 * @param partitions Partitions to pause
+	 */
+	void pause(Collection<TopicPartition> partitions);
+
+	/**
+	 * Resumes receiving records from the given partitions.
+	 * @param partitions Partitions to resume
+	 */
+	void resume(Collection<TopicPartition> partitions);
+
+	/**
+	 * @return Whether messages are published and records committed in transactions
+	 */
+	default boolean isTransactional(){
+		return false;
+	}
+
+	/**
+	 * Aborts the open transaction, if any.
+	 */
+	default void abortTransaction(){}
+
+	/**
+	 * Gives how many records each partition is behind. This method may be called from any thread.
+	 * @return Lag of each partition, by partition (<code>topic-partition</code>)
+	 */
+	default Map<String, Long> lag(){
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * Sets a listener told when partitions are assigned to this consumer or taken away from it, e.g. by a rebalance of its group.
+	 * Before partitions are revoked, the listener is called first, so the records of those partitions still in progress can be finished,
+	 * and then what has been completed is committed. Records of revoked partitions committed or ignored afterwards are disregarded.
+	 * The listener is called from the thread that consumes, while consuming. Transports without partition assignment never call it.
+	 * @param listener Listener, or null
+	 */
+	default void setRebalanceListener(ConsumerRebalanceListener listener){}
+
+	/**
+	 * Makes a <code>{@link #consume()}</code> in progress, or the next one, return right away. This method may be called from any thread.
+	 */
+	default void wakeup(){}
+
+	/**
+	 * Commits what has been completed, publishes what is waiting to be sent and releases the resources of the transport.
+	 */
+	void close();
+}
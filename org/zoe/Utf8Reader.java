@@ -0,0 +1,115 @@
+package org.zoe;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * Reader that decodes UTF-8 straight from the bytes of a message, so that it can be parsed without copying it into a <code>String</code> first.
+ *
+ * Decoding is strict: invalid sequences, overlong encodings, encoded surrogates and code points beyond U+10FFFF are reported with a
+ * <code>{@link MalformedInputException}</code>, instead of being replaced. Marks are supported, as the JSON tokenizer needs them.
+ */
+class Utf8Reader extends Reader {
+	private final ByteBuffer bytes;
+	private final int limit;
+	private int pos;
+	//Low surrogate still to be read, or -1
+	private int low = -1;
+	private int markPos;
+	private int markLow = -1;
+
+	/**
+	 * @param bytes Bytes to decode, from their position to their limit. The position of the buffer is not modified
+	 */
+	Utf8Reader(ByteBuffer bytes){
+		this.bytes = bytes;
+		this.pos = bytes.position();
+		this.limit = bytes.limit();
+		this.markPos = pos;
+	}
+
+	@Override
+	public int read() throws IOException{
+		if(low != -1){
+			int c = low;
+			low = -1;
+			return c;
+		}
+		if(pos >= limit)
+			return -1;
+		int b = bytes.get(pos) & 0xFF;
+		if(b < 0x80){
+			pos++;
+			return b;
+		}
+		int length;
+		int cp;
+		int min;
+		if(b >= 0xC2 && b <= 0xDF){
+			length = 2;
+			cp = b & 0x1F;
+			min = 0x80;
+		}else if(b >= 0xE0 && b <= 0xEF){
+			length = 3;
+			cp = b & 0x0F;
+			min = 0x800;
+		}else if(b >= 0xF0 && b <= 0xF4){
+			length = 4;
+			cp = b & 0x07;
+			min = 0x10000;
+		}else{
+			throw new MalformedInputException(1);
+		}
+		if(pos+length > limit)
+			throw new MalformedInputException(limit-pos);
+		for(int i = 1; i < length; i++){
+			int c = bytes.get(pos+i) & 0xFF;
+			if((c & 0xC0) != 0x80)
+				throw new MalformedInputException(i);
+			cp = (cp << 6) | (c & 0x3F);
+		}
+		if(cp < min || cp > Character.MAX_CODE_POINT || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+			throw new MalformedInputException(length);
+		pos += length;
+		if(cp < 0x10000)
+			return cp;
+		low = Character.lowSurrogate(cp);
+		return Character.highSurrogate(cp);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException{
+		if(len == 0)
+			return 0;
+		int n = 0;
+		while(n < len){
+			int c = read();
+			if(c == -1)
+				break;
+			cbuf[off+n++] = (char)c;
+		}
+		return n == 0 ? -1 : n;
+	}
+
+	@Override
+	public boolean markSupported(){
+		return true;
+	}
+
+	@Override
+	public void mark(int readAheadLimit){
+		markPos = pos;
+		markLow = low;
+	}
+
+	@Override
+	public void reset(){
+		pos = markPos;
+		low = markLow;
+	}
+
+	@Override
+	public void close(){}
+}
@@ -0,0 +1,123 @@
+package org.zoe;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writer that encodes text as UTF-8 into a byte array that is reused from one message to the next, so that messages can be serialized
+ * without building a <code>String</code> of the whole message first. Unpaired surrogates are encoded as <code>?</code>, as <code>String.getBytes</code> does.
+ *
+ * Instances are meant to be reused by a single thread at a time; see <code>{@link #get()}</code>.
+ */
+class Utf8Writer extends Writer {
+	//Buffers grown beyond this size are not kept for the next message
+	private static final int MAX_KEPT = 1 << 20;
+	private static final ThreadLocal<Utf8Writer> WRITERS = ThreadLocal.withInitial(Utf8Writer::new);
+
+	private byte[] buf = new byte[1024];
+	private int len = 0;
+	//High surrogate waiting for its low surrogate, or 0
+	private char high = 0;
+	private boolean busy = false;
+
+	/**
+	 * Gives an empty writer, reusing the one of the current thread unless it is already being used.
+	 * Writers must be released with <code>{@link #release()}</code>.
+	 * @return Writer
+	 */
+	static Utf8Writer get(){
+		Utf8Writer writer = WRITERS.get();
+		if(writer.busy)
+			writer = new Utf8Writer();
+		writer.busy = true;
+		return writer;
+	}
+
+	@Override
+	public void write(int c){
+		char ch = (char)c;
+		if(high != 0){
+			char h = high;
+			high = 0;
+			if(Character.isLowSurrogate(ch)){
+				codePoint(Character.toCodePoint(h, ch));
+				return;
+			}
+			put('?');
+		}
+		if(ch < 0x80){
+			put(ch);
+		}else if(Character.isHighSurrogate(ch)){
+			high = ch;
+		}else if(Character.isLowSurrogate(ch)){
+			put('?');
+		}else{
+			codePoint(ch);
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len){
+		for(int i = off; i < off+len; i++)
+			write(cbuf[i]);
+	}
+
+	@Override
+	public void write(String str, int off, int len){
+		for(int i = off; i < off+len; i++)
+			write(str.charAt(i));
+	}
+
+	/**
+	 * @return Encoded text
+	 */
+	byte[] toByteArray(){
+		if(high != 0){
+			high = 0;
+			put('?');
+		}
+		return Arrays.copyOf(buf, len);
+	}
+
+	/**
+	 * Empties the writer, so that it can be used for the next message.
+	 */
+	void release(){
+		len = 0;
+		high = 0;
+		if(buf.length > MAX_KEPT)
+			buf = new byte[1024];
+		busy = false;
+	}
+
+	private void codePoint(int cp){
+		ensure(4);
+		if(cp < 0x800){
+			buf[len++] = (byte)(0xC0 | (cp >> 6));
+		}else if(cp < 0x10000){
+			buf[len++] = (byte)(0xE0 | (cp >> 12));
+			buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+		}else{
+			buf[len++] = (byte)(0xF0 | (cp >> 18));
+			buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+			buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+		}
+		buf[len++] = (byte)(0x80 | (cp & 0x3F));
+	}
+
+	private void put(char c){
+		ensure(1);
+		buf[len++] = (byte)c;
+	}
+
+	private void ensure(int n){
+		if(len+n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length*2, len+n));
+	}
+
+	@Override
+	public void flush(){}
+
+	@Override
+	public void close(){}
+}
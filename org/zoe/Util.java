@@ -1,7 +1,13 @@
 package org.zoe;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 /**
  * Some static utilities to manipulate intents, JSON files and byte streams.
  * 
@@ -10,13 +16,86 @@ import org.json.JSONObject;
  * @since 25th October, 2017
  */
 public class Util {
+	/**
+	 * Parses a message, as <code>{@link #parse(byte[])}</code> does, but returning an empty JSON if the message is malformed.
+	 * @param body Raw message
+	 * @return The message, or an empty JSON if it is malformed
+	 */
 	public static JSONObject bytesToJSON(byte[] body){
 		try{
-			return new JSONObject(new String(body));
-		}catch(JSONException ex){
+			return parse(body);
+		}catch(MalformedMessageException ex){
 			return new JSONObject();
 		}
 	}
+	/**
+	 * Parses a message, either as JSON text encoded in UTF-8 or, if it has been encoded in the binary format of <code>{@link Agent#setBinary(boolean)}</code>, as binary.
+	 * The text is decoded while it is parsed, without copying it into a <code>String</code>.
+	 * @param body Raw message
+	 * @return The message
+	 * @throws MalformedMessageException If the message is not a JSON object, or it is not valid UTF-8
+	 */
+	public static JSONObject parse(byte[] body) throws MalformedMessageException{
+		if(body == null)
+			throw new MalformedMessageException("Empty message");
+		return parse(ByteBuffer.wrap(body));
+	}
+	/**
+	 * Parses a message from the position to the limit of a buffer, as <code>{@link #parse(byte[])}</code> does. The position of the buffer is not modified.
+	 * @param body Raw message
+	 * @return The message
+	 * @throws MalformedMessageException If the message is not a JSON object, or it is not valid UTF-8
+	 */
+	public static JSONObject parse(ByteBuffer body) throws MalformedMessageException{
+		try{
+			if(BinaryCodec.isBinary(body))
+				return BinaryCodec.decode(body);
+			return new JSONObject(new JSONTokener(new Utf8Reader(body)));
+		}catch(JSONException ex){
+			if(ex.getCause() instanceof CharacterCodingException)
+				throw new MalformedMessageException("Invalid UTF-8", ex);
+			throw new MalformedMessageException(ex.getMessage(), ex);
+		}
+	}
+	/**
+	 * Writes a message as JSON text encoded in UTF-8. The text is encoded into a buffer that is reused by each thread, without building a <code>String</code> first.
+	 * @param json Message
+	 * @return Raw message
+	 */
+	public static byte[] jsonToBytes(JSONObject json){
+		Utf8Writer writer = Utf8Writer.get();
+		try{
+			json.write(writer);
+			return writer.toByteArray();
+		}finally{
+			writer.release();
+		}
+	}
+	/**
+	 * Copies a JSON, including every object and array nested in it.
+	 * @param json JSON to copy
+	 * @return Copy of the JSON
+	 */
+	public static JSONObject copy(JSONObject json){
+		JSONObject copy = new JSONObject();
+		for(String key : json.keySet()){
+			copy.put(key, copyValue(json.get(key)));
+		}
+		return copy;
+	}
+	private static Object copyValue(Object value){
+		if(value instanceof JSONObject)
+			return copy((JSONObject)value);
+		if(value instanceof JSONArray){
+			JSONArray arr = (JSONArray)value;
+			JSONArray copy = new JSONArray();
+			for(int i = 0; i < arr.length(); i++){
+				copy.put(copyValue(arr.get(i)));
+			}
+			return copy;
+		}
+		return value;
+	}
 	public static Intent jsonToIntent(JSONObject json) throws NotAnIntentException{
 		return new Intent(json);
 	}
@@ -24,24 +103,19 @@ public class Util {
 		return jsonToIntent(bytesToJSON(body));
 	}
 	public static byte[]  intentToBytes(Intent intent){
-		return intent.toString().getBytes();
+		return intent.toString().getBytes(StandardCharsets.UTF_8);
 	}
 	public static String[] sortAlphabetically(String[] arr){
 		//Insertion sort
 		String[] ordered = new String[arr.length];
-		for(int i = 1; i < arr.length; i++){
+		for(int i = 0; i < arr.length; i++){
+			String aux = arr[i];
 			int j = i-1;
-			while(j >= 0 && arr[i].compareTo(arr[j]) < 0)
+			while(j >= 0 && aux.compareTo(ordered[j]) < 0){
+				ordered[j+1] = ordered[j];
 				j--;
-			String aux = arr[i];
-			for(int k = j+1; k < i; k++){
-				aux = arr[k+1];
-				arr[k+1] = arr[k];
 			}
-			arr[j+1] = aux;
-		}
-		for(int i = 0; i < arr.length; i++){
-			ordered[i] = arr[i];
+			ordered[j+1] = aux;
 		}
 		return ordered;
 	}
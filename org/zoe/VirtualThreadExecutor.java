@@ -0,0 +1,90 @@
+package org.zoe;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Resolves every record on its own virtual thread, so blocking resolvers can run by the thousands on a few carrier threads,
+ * while resolved messages are still published, partition by partition, in offset order.
+ * 
+ * Records are resolved concurrently, but a resolved message is only published once the previous record of its partition has been published or ignored,
+ * so the output and the commits of each partition follow the same order as in the sequential loop. The number of resolutions running at the same time is capped.
+ * 
+ * Virtual threads are only available from Java 21 on. On older runtimes, a fixed pool of as many regular threads as resolutions may run at the same time
+ * is used instead, so records waiting for their turn do not hold a thread each.
+ * <code>{@link #submit(ConsumerRecord)}</code> must be called from the polling thread.
+ */
+class VirtualThreadExecutor {
+	private static final CompletableFuture<Object> DONE = CompletableFuture.completedFuture(null);
+
+	private final ExecutorService threads;
+	private final Semaphore permits;
+	private final BiFunction<ConsumerRecord<String, byte[]>, BooleanSupplier, CompletableFuture<Object>> resolve;
+	private final Predicate<Object> publish;
+	//Last record submitted of each partition
+	private final Map<TopicPartition, CompletableFuture<?>> tails = new HashMap<TopicPartition, CompletableFuture<?>>();
+
+	/**
+	 * @param maxConcurrent Maximum number of resolutions running at the same time
+	 * @param resolve Resolution of a record, given whether it has been abandoned. Its future gives the resolved message, or null if the record is to be ignored
+	 * @param publish Publication of a resolved message. Returns whether the record has been resolved
+	 */
+	VirtualThreadExecutor(int maxConcurrent, BiFunction<ConsumerRecord<String, byte[]>, BooleanSupplier, CompletableFuture<Object>> resolve, Predicate<Object> publish){
+		this.threads = newVirtualThreadPerTaskExecutor(maxConcurrent);
+		this.permits = new Semaphore(maxConcurrent);
+		this.resolve = resolve;
+		this.publish = publish;
+	}
+
+	/**
+	 * Starts resolving a record in a new thread.
+	 * @param record Record to process
+	 * @param abandoned Tells whether the record has been abandoned, in which case it is not published
+	 * @return Future telling whether the record has been resolved and published
+	 */
+	CompletableFuture<Boolean> submit(ConsumerRecord<String, byte[]> record, BooleanSupplier abandoned){
+		CompletableFuture<Object> resolved = CompletableFuture.supplyAsync(() -> {
+			permits.acquireUninterruptibly();
+			try{
+				return resolve.apply(record, abandoned);
+			}finally{
+				permits.release();
+			}
+		}, threads).thenCompose(f -> f);
+		TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+		//Failures of the previous record are reported by its own future, they must not prevent this one from being published
+		CompletableFuture<Object> previous = tails.getOrDefault(tp, DONE).handle((done, ex) -> null);
+		CompletableFuture<Boolean> published = resolved.thenCombine(previous, (message, done) -> !abandoned.getAsBoolean() && publish.test(message));
+		tails.put(tp, published);
+		return published;
+	}
+
+	void shutdown(){
+		threads.shutdown();
+	}
+
+	/**
+	 * @param maxConcurrent Number of threads of the pool used when there are no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor(int maxConcurrent){
+		try{
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(ReflectiveOperationException ex){
+			return Executors.newFixedThreadPool(maxConcurrent, r -> {
+				Thread t = new Thread(r, "zoe-resolver");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.zoe.bench;
+
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.json.JSONObject;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.zoe.Agent;
+import org.zoe.Intent;
+import org.zoe.IntentErrorException;
+import org.zoe.KafkaClient;
+import org.zoe.Resolver;
+
+/**
+ * Runs the benchmarks of the library and writes their results in JSON, so that they can be compared between releases.
+ *
+ * Usage: <code>java org.zoe.bench.Benchmarks [results file] [benchmark regex]</code>. Results are written to <code>jmh-result.json</code> by default.
+ */
+public class Benchmarks {
+	static final String INTENT = "bench";
+	static final long SEED = 42;
+
+	public static void main(String[] args) throws RunnerException{
+		Options options = new OptionsBuilder()
+				.include(args.length > 1 ? args[1] : Benchmarks.class.getPackage().getName()+".*Benchmark")
+				.resultFormat(ResultFormatType.JSON)
+				.result(args.length > 0 ? args[0] : "jmh-result.json")
+				.build();
+		new Runner(options).run();
+	}
+
+	/**
+	 * Builds an agent that never connects to Kafka: it is not subscribed to any broker, and the messages it sends are kept in the returned client.
+	 * The agent resolves the intent <code>{@value #INTENT}</code>, with a resolution that is itself an intent, so messages can be resolved over and over.
+	 * The resolver does not use the full message, so raw messages are resolved in their raw form.
+	 * @return Agent
+	 */
+	static Agent agent(DiscardingClient client){
+		Agent agent = new Agent(INTENT, client);
+		agent.addResolver(new Resolver(INTENT){
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException{
+				return new JSONObject().put("intent", INTENT).put("resolved", true);
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex){
+				return new JSONObject();
+			}
+			//Lets raw messages be resolved without parsing them
+			@Override
+			public boolean usesFullMessage(){
+				return false;
+			}
+		});
+		return agent;
+	}
+
+	/**
+	 * Client on top of Kafka's mocks, which keeps the last message sent instead of publishing it.
+	 */
+	static class DiscardingClient extends KafkaClient {
+		volatile byte[] last;
+
+		DiscardingClient(){
+			super(new MockConsumer<String, byte[]>(OffsetResetStrategy.LATEST),
+					new MockProducer<String, byte[]>(true, new StringSerializer(), new ByteArraySerializer()), INTENT);
+		}
+
+		@Override
+		public void send(String topic, String key, byte[] message, Iterable<Header> headers){
+			last = message;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.zoe.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zoe.Intent;
+import org.zoe.NotAnIntentException;
+
+/**
+ * Construction of an <code>{@link Intent}</code>, which copies the intent, by the size of the intent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntentBenchmark {
+	@Param({"4", "16", "64"})
+	int width;
+	@Param({"1", "3"})
+	int depth;
+
+	private JSONObject json;
+
+	@Setup
+	public void setup(){
+		json = new MessageGenerator(Benchmarks.SEED).message(depth, width, 8, MessageGenerator.Position.NONE, Benchmarks.INTENT);
+		json.put("intent", Benchmarks.INTENT);
+	}
+
+	@Benchmark
+	public Intent construct() throws NotAnIntentException{
+		return new Intent(json);
+	}
+}
@@ -0,0 +1,112 @@
+package org.zoe.bench;
+
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Seeded generator of synthetic messages, so that every run of the benchmarks resolves exactly the same messages.
+ *
+ * A message is a chain of nested objects (its spine), <code>depth</code> levels deep. Every level has <code>width</code> keys: the one
+ * continuing the spine, plain values of every JSON type and, if <code>arrayLength</code> is positive, an array of small objects.
+ * The intent is at the end of the spine, and the key of the spine sorts first, in the middle or last among the keys of each level,
+ * so that the search for the intent goes through none, half or all of the rest of the message before finding it.
+ */
+public class MessageGenerator {
+	/**
+	 * Where the intent is found in the order of the search.
+	 */
+	public enum Position { FIRST, MIDDLE, LAST, NONE }
+
+	private final Random random;
+
+	/**
+	 * @param seed Seed of the messages generated
+	 */
+	public MessageGenerator(long seed){
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param depth Number of nested levels, 1 or more
+	 * @param width Number of keys of each level, 1 or more
+	 * @param arrayLength Length of the array of each level, or 0 for no arrays
+	 * @param position Position of the intent, or <code>NONE</code> for a message without intents
+	 * @param intent Name of the intent
+	 * @return Message
+	 */
+	public JSONObject message(int depth, int width, int arrayLength, Position position, String intent){
+		if(depth < 1 || width < 1)
+			throw new IllegalArgumentException("Messages have at least one level and one key");
+		int spine = position == Position.FIRST ? 0 : position == Position.MIDDLE ? width/2 : width-1;
+		JSONObject json = new JSONObject();
+		JSONObject level = json;
+		for(int d = 0; d < depth; d++){
+			boolean last = d == depth-1;
+			JSONObject next = null;
+			for(int k = 0; k < width; k++){
+				String key = key(k);
+				if(k == spine && !last){
+					next = new JSONObject();
+					level.put(key, next);
+				}else if(k == (spine+1)%width && arrayLength > 0 && width > 1){
+					JSONArray arr = new JSONArray();
+					for(int i = 0; i < arrayLength; i++)
+						arr.put(new JSONObject().put("id", i).put("value", value(i)));
+					level.put(key, arr);
+				}else{
+					level.put(key, value(k));
+				}
+			}
+			if(last && position != Position.NONE){
+				JSONObject found = new JSONObject().put("intent", intent);
+				for(int k = 0; k < 4; k++)
+					found.put(key(k), value(k));
+				level.put(key(spine), found);
+			}
+			level = next;
+		}
+		return json;
+	}
+
+	/**
+	 * @param count Number of keys
+	 * @return Keys in random order
+	 */
+	public String[] keys(int count){
+		String[] keys = new String[count];
+		for(int i = 0; i < count; i++)
+			keys[i] = key(i);
+		for(int i = count-1; i > 0; i--){
+			int j = random.nextInt(i+1);
+			String aux = keys[i];
+			keys[i] = keys[j];
+			keys[j] = aux;
+		}
+		return keys;
+	}
+
+	private Object value(int k){
+		switch(k%5){
+		case 0:
+			return random.nextInt();
+		case 1:
+			return random.nextDouble();
+		case 2:
+			return random.nextBoolean();
+		case 3:
+			return JSONObject.NULL;
+		default:
+			StringBuilder text = new StringBuilder();
+			for(int i = 8+random.nextInt(24); i > 0; i--)
+				text.append((char)('a'+random.nextInt(26)));
+			return text.toString();
+		}
+	}
+
+	//Keys of the same width, so that they sort in the order of their index
+	private static String key(int k){
+		return String.format("k%04d", k);
+	}
+}
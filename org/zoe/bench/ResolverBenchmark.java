@@ -0,0 +1,88 @@
+package org.zoe.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zoe.Agent;
+import org.zoe.ErrorMessageException;
+import org.zoe.NoResolverException;
+import org.zoe.NotAnIntentException;
+
+/**
+ * Search and resolution of the intent of a message, both parsed and raw, by the shape of the message and the position of the intent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolverBenchmark {
+	@Param({"1", "4", "8"})
+	int depth;
+	@Param({"4", "16", "64"})
+	int width;
+	@Param({"0", "32"})
+	int arrayLength;
+	@Param({"FIRST", "LAST", "NONE"})
+	MessageGenerator.Position position;
+
+	private Agent agent;
+	private Agent shapeAgent;
+	private JSONObject json;
+	private byte[] raw;
+
+	@Setup
+	public void setup(){
+		agent = Benchmarks.agent(new Benchmarks.DiscardingClient());
+		shapeAgent = Benchmarks.agent(new Benchmarks.DiscardingClient());
+		shapeAgent.setShapeCache(16);
+		json = new MessageGenerator(Benchmarks.SEED).message(depth, width, arrayLength, position, Benchmarks.INTENT);
+		raw = json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The message is resolved in place; as its resolution is the same intent again, every iteration does the same work.
+	 */
+	@Benchmark
+	public Object resolveJson(){
+		try{
+			return agent.intentResolver(json);
+		}catch(NoResolverException | NotAnIntentException | ErrorMessageException ex){
+			return ex;
+		}
+	}
+
+	/**
+	 * Same as <code>{@link #resolveJson()}</code>, with the shape of the message remembered after the first iteration.
+	 */
+	@Benchmark
+	public Object resolveJsonShapes(){
+		try{
+			return shapeAgent.intentResolver(json);
+		}catch(NoResolverException | NotAnIntentException | ErrorMessageException ex){
+			return ex;
+		}
+	}
+
+	@Benchmark
+	public Object resolveRaw(){
+		try{
+			return agent.intentResolver(raw);
+		}catch(NoResolverException | NotAnIntentException | ErrorMessageException ex){
+			return ex;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.zoe.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zoe.Agent;
+
+/**
+ * Publication of a message by <code>{@link Agent#send(JSONObject)}</code>, i.e. its serialization, in both formats, without the producer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+	@Param({"2", "4", "8"})
+	int depth;
+	@Param({"16", "64"})
+	int width;
+	@Param({"false", "true"})
+	boolean binary;
+
+	private Benchmarks.DiscardingClient client;
+	private Agent agent;
+	private JSONObject json;
+
+	@Setup
+	public void setup(){
+		client = new Benchmarks.DiscardingClient();
+		agent = Benchmarks.agent(client);
+		agent.setBinary(binary);
+		json = new MessageGenerator(Benchmarks.SEED).message(depth, width, 16, MessageGenerator.Position.MIDDLE, Benchmarks.INTENT);
+	}
+
+	@Benchmark
+	public byte[] send(){
+		agent.send(json);
+		return client.last;
+	}
+}
@@ -0,0 +1,59 @@
+package org.zoe.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zoe.MalformedMessageException;
+import org.zoe.Util;
+
+/**
+ * Sorting of keys and parsing of messages, by the number of keys of each level of the message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+	@Param({"4", "16", "64", "256"})
+	int width;
+
+	private String[] keys;
+	private byte[] message;
+
+	@Setup
+	public void setup(){
+		MessageGenerator generator = new MessageGenerator(Benchmarks.SEED);
+		keys = generator.keys(width);
+		JSONObject json = generator.message(4, width, 16, MessageGenerator.Position.LAST, Benchmarks.INTENT);
+		message = json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public String[] sortAlphabetically(){
+		return Util.sortAlphabetically(keys);
+	}
+
+	@Benchmark
+	public JSONObject bytesToJSON(){
+		return Util.bytesToJSON(message);
+	}
+
+	@Benchmark
+	public JSONObject parse() throws MalformedMessageException{
+		return Util.parse(message);
+	}
+}
@@ -0,0 +1,93 @@
+package org.zoe.test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.BooleanSupplier;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.zoe.KafkaClient;
+
+/**
+ * Kafka clients without a broker, for the tests of agents on <code>{@link KafkaClient}</code>.
+ */
+public class MockClients {
+	public static final String TOPIC = KafkaClient.getTopic();
+	public static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+	/**
+	 * Consumer assigned to the first partition of the default topic, which ignores subscriptions but keeps the rebalance listener it is given,
+	 * so that rebalances can be simulated with <code>{@link #revoke(TopicPartition)}</code>.
+	 */
+	public static class Consumer extends MockConsumer<String, byte[]> {
+		private volatile ConsumerRebalanceListener listener;
+
+		public Consumer(){
+			super(OffsetResetStrategy.EARLIEST);
+			assign(Collections.singleton(PARTITION));
+			updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+		}
+
+		@Override
+		public synchronized void subscribe(Collection<String> topics){}
+
+		@Override
+		public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener){
+			this.listener = listener;
+		}
+
+		/**
+		 * Adds a message to the partition, from the thread that polls.
+		 * @param offset Offset of the message
+		 * @param message Message
+		 */
+		public void add(long offset, String message){
+			add(offset, message.getBytes(StandardCharsets.UTF_8));
+		}
+		/**
+		 * Adds a raw message to the partition, from the thread that polls.
+		 * @param offset Offset of the message
+		 * @param message Message, as bytes
+		 */
+		public void add(long offset, byte[] message){
+			schedulePollTask(() -> addRecord(new ConsumerRecord<String, byte[]>(TOPIC, PARTITION.partition(), offset, null, message)));
+		}
+
+		/**
+		 * Revokes a partition, from the thread that polls, as Kafka does in a rebalance.
+		 * @param partition Partition revoked
+		 */
+		public void revoke(TopicPartition partition){
+			schedulePollTask(() -> listener.onPartitionsRevoked(Collections.singleton(partition)));
+		}
+	}
+
+	/**
+	 * @return Producer completing every send right away
+	 */
+	public static MockProducer<String, byte[]> producer(){
+		return new MockProducer<String, byte[]>(true, new StringSerializer(), new ByteArraySerializer());
+	}
+
+	/**
+	 * Waits for a condition to hold.
+	 * @param condition Condition
+	 * @return Whether the condition holds, false if it did not within 5 seconds
+	 */
+	public static boolean await(BooleanSupplier condition) throws InterruptedException{
+		long deadline = System.currentTimeMillis()+5000;
+		while(!condition.getAsBoolean()){
+			if(System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+}
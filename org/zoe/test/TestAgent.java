@@ -2,11 +2,24 @@ package org.zoe.test;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.TimeoutException;
 
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.MockProducer;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
@@ -18,7 +31,7 @@ public class TestAgent {
 	
 	@BeforeEach
 	public void startAgent() throws IOException, TimeoutException{
-		testAgent = new Agent("test");
+		testAgent = new Agent("test", new InMemoryBus().connect("test"));
 	}
 	
 	/**
@@ -391,4 +404,589 @@ public class TestAgent {
 		fullIn.put("params", params0);
 		assertThrows(NoResolverException.class, () -> testAgent.intentResolver(fullIn));
 	}
+	/**
+	 * Resolving the raw bytes of a message with <code>{@link Agent#intentResolver(byte[])}</code> gives the same resolution as resolving the parsed message,
+	 * including the error added to the main message when the resolver fails.
+	 * @throws NoResolverException
+	 * @throws NotAnIntentException
+	 * @throws ErrorMessageException
+	 */
+	@Test
+	public void testRaw() throws NoResolverException, NotAnIntentException, ErrorMessageException {
+		testAgent.addResolver(new Resolver("a"){
+
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				JSONObject dummy = new JSONObject();
+				dummy.put("data", "ack");
+				return dummy;
+			}
+
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+			
+			@Override
+			public boolean usesFullMessage() {
+				return false;
+			}
+		});
+		testAgent.addResolver(new Resolver("c"){
+
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				throw new IntentErrorException("This is the error message.");
+			}
+
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				JSONObject dummy = new JSONObject();
+				dummy.put("dummy", "blah");
+				return dummy;
+			}
+			
+			@Override
+			public boolean usesFullMessage() {
+				return false;
+			}
+		});
+		
+		String[] inputs = {
+			"{\"intent\": \"b\", \"args\": {\"intent\": \"a\"}}",
+			"{\"data\": \"hey\", \"params\": [{\"intent\": \"a\"}, {\"intent\": \"b\"}]}",
+			"{\"zz\": {\"intent\": \"b\"}, \"c\": {\"intent\": \"a\"}, \"b\": {\"x!\": {\"intent\": \"b\"}}}",
+			"{\"intent\": \"b\", \"args\": {\"intent\": \"c\"}, \"error\": \"previous\"}"
+		};
+		for(String in : inputs){
+			String expected = testAgent.intentResolver(new JSONObject(in)).toString();
+			String output = new String(testAgent.intentResolver(in.getBytes()));
+			assertTrue(new JSONObject(expected).similar(new JSONObject(output)), output);
+		}
+	}
+	/**
+	 * Resolvers can be replaced and removed at runtime: after replacing one, intents are resolved by the new resolver, and after removing it, they are ignored.
+	 * @throws NoResolverException
+	 * @throws NotAnIntentException
+	 * @throws ErrorMessageException
+	 */
+	@Test
+	public void testReplace() throws NoResolverException, NotAnIntentException, ErrorMessageException {
+		testAgent.addResolver(new Resolver("a"){
+
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				JSONObject dummy = new JSONObject();
+				dummy.put("data", "old");
+				return dummy;
+			}
+
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		testAgent.replaceResolver(new Resolver("a"){
+
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				JSONObject dummy = new JSONObject();
+				dummy.put("data", "new");
+				return dummy;
+			}
+
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		
+		JSONObject fullIn = new JSONObject();
+		fullIn.put("intent", "a");
+		assertEquals("{\"data\":\"new\"}", testAgent.intentResolver(fullIn).toString());
+		
+		testAgent.removeResolver("a");
+		JSONObject fullIn2 = new JSONObject();
+		fullIn2.put("intent", "a");
+		assertThrows(NoResolverException.class, () -> testAgent.intentResolver(fullIn2));
+	}
+	/**
+	 * An <code>{@link AsyncResolver}</code> resolves intents like any other resolver, and a future completed with an <code>{@link IntentErrorException}</code>
+	 * turns the message into an error.
+	 * @throws NoResolverException
+	 * @throws NotAnIntentException
+	 * @throws ErrorMessageException
+	 */
+	@Test
+	public void testAsync() throws NoResolverException, NotAnIntentException, ErrorMessageException {
+		testAgent.addResolver(new AsyncResolver("a"){
+
+			@Override
+			public CompletableFuture<JSONObject> resolveAsync(Intent intent, JSONObject full) {
+				JSONObject dummy = new JSONObject();
+				dummy.put("data", "ack");
+				return CompletableFuture.supplyAsync(() -> dummy);
+			}
+
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		testAgent.addResolver(new AsyncResolver("b"){
+
+			@Override
+			public CompletableFuture<JSONObject> resolveAsync(Intent intent, JSONObject full) {
+				CompletableFuture<JSONObject> failed = new CompletableFuture<JSONObject>();
+				failed.completeExceptionally(new IntentErrorException("This is the error message."));
+				return failed;
+			}
+
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		
+		JSONObject fullIn = new JSONObject();
+		fullIn.put("intent", "a");
+		assertEquals("{\"data\":\"ack\"}", testAgent.intentResolver(fullIn).toString());
+		
+		JSONObject errorIn = new JSONObject();
+		errorIn.put("intent", "b");
+		assertEquals("{\"error\":\"This is the error message.\"}", testAgent.intentResolver(errorIn).toString());
+	}
+	/**
+	 * A cacheable resolver is only called once for intents with the same key, and the following ones are served from its cache.
+	 * @throws NoResolverException
+	 * @throws NotAnIntentException
+	 * @throws ErrorMessageException
+	 */
+	@Test
+	public void testCache() throws NoResolverException, NotAnIntentException, ErrorMessageException {
+		AtomicInteger calls = new AtomicInteger();
+		Resolver weather = new Resolver("weather"){
+
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				calls.incrementAndGet();
+				JSONObject dummy = new JSONObject();
+				dummy.put("data", "sunny in "+intent.getString("city"));
+				return dummy;
+			}
+
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		}.cacheable(ResolutionCache.fields("city"), 10, 1, TimeUnit.MINUTES);
+		testAgent.addResolver(weather);
+		
+		String[] cities = {"Madrid", "Madrid", "Leganes", "Madrid"};
+		for(String city : cities){
+			JSONObject fullIn = new JSONObject();
+			fullIn.put("intent", "weather");
+			fullIn.put("city", city);
+			assertEquals("{\"data\":\"sunny in "+city+"\"}", testAgent.intentResolver(fullIn).toString());
+		}
+		assertEquals(2, calls.get());
+		assertEquals(2, weather.getCache().getHits());
+		assertEquals(2, weather.getCache().getMisses());
+	}
+	/**
+	 * The statistics of each resolver count its resolutions and errors, and count the resolutions taken from its cache apart, without timing them.
+	 * @throws NoResolverException
+	 * @throws NotAnIntentException
+	 * @throws ErrorMessageException
+	 */
+	@Test
+	public void testResolverStatistics() throws NoResolverException, NotAnIntentException, ErrorMessageException {
+		for(String name : new String[]{"plain", "cached"}){
+			Resolver resolver = new Resolver(name){
+				@Override
+				public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+					if(intent.getInt("n") < 0)
+						throw new IntentErrorException("negative");
+					return new JSONObject().put("n", intent.getInt("n"));
+				}
+				@Override
+				public JSONObject getErrorObject(IntentErrorException ex) {
+					return new JSONObject();
+				}
+			};
+			testAgent.addResolver(name.equals("cached") ? resolver.cacheable(ResolutionCache.fields("n"), 10, 1, TimeUnit.MINUTES) : resolver);
+			for(int n : new int[]{1, 1, 2, -1, 1}){
+				try{
+					testAgent.intentResolver(new JSONObject().put("intent", name).put("n", n));
+				}catch(ErrorMessageException ex){
+					//Expected for negative numbers
+				}
+			}
+		}
+		ResolverStatistics plain = testAgent.getMetrics().getResolvers().get("plain");
+		assertEquals(5, plain.getResolutions());
+		assertEquals(1, plain.getErrors());
+		assertEquals(0, plain.getCacheHits());
+		ResolverStatistics cached = testAgent.getMetrics().getResolvers().get("cached");
+		assertEquals(3, cached.getResolutions());
+		assertEquals(1, cached.getErrors());
+		assertEquals(2, cached.getCacheHits());
+	}
+	/**
+	 * Messages are encoded and decoded as UTF-8 whatever the platform charset, and messages that are not valid UTF-8 are rejected instead of being replaced.
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testUtf8() throws MalformedMessageException {
+		JSONObject message = new JSONObject();
+		message.put("intent", "greet");
+		message.put("text", "\u00A1Hola, Le\u00F3n! \uD83D\uDE00");
+		byte[] bytes = Util.jsonToBytes(message);
+		assertEquals(message.toString(), new String(bytes, StandardCharsets.UTF_8));
+		assertEquals(message.toString(), Util.parse(bytes).toString());
+		
+		byte[] invalid = {'{', '"', 'a', '"', ':', '"', (byte)0xC3, '"', '}'};
+		assertThrows(MalformedMessageException.class, () -> Util.parse(invalid));
+		assertThrows(MalformedMessageException.class, () -> Util.parse("[]".getBytes(StandardCharsets.UTF_8)));
+	}
+	/**
+	 * Agents resolving raw messages (see <code>{@link Agent#setSpliceMode(boolean)}</code>) reject messages that are not valid UTF-8 as malformed,
+	 * as parsing them does, instead of splicing the resolution into them.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testUtf8Raw() throws InterruptedException {
+		MockClients.Consumer consumer = new MockClients.Consumer();
+		MockProducer<String, byte[]> producer = MockClients.producer();
+		List<MalformedMessageException> malformed = new ArrayList<MalformedMessageException>();
+		Agent agent = new Agent("raw", new KafkaClient(consumer, producer, "raw")){
+			@Override
+			public void onMalformed(ConsumerRecord<String, byte[]> record, MalformedMessageException ex){
+				synchronized(malformed){
+					malformed.add(ex);
+				}
+			}
+		};
+		agent.setSpliceMode(true);
+		agent.addResolver(new Resolver("a"){
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				return new JSONObject().put("a", "done");
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		//A lone continuation byte, a truncated sequence, an overlong slash, a surrogate and a code point beyond U+10FFFF
+		int[][] invalid = {{0x80}, {0xE2, 0x82}, {0xC0, 0xAF}, {0xED, 0xA0, 0x80}, {0xF4, 0x90, 0x80, 0x80}};
+		String valid = "{\"text\":\"\u00F1 \uD83D\uDE00\",\"x\":{\"intent\":\"a\"}}";
+		int offset = 0;
+		consumer.add(offset++, valid.getBytes(StandardCharsets.UTF_8));
+		for(int[] sequence : invalid){
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			message.write('{');
+			message.write('"');
+			message.write('t');
+			message.write('"');
+			message.write(':');
+			message.write('"');
+			for(int b : sequence)
+				message.write(b);
+			byte[] rest = "\",\"x\":{\"intent\":\"a\"}}".getBytes(StandardCharsets.UTF_8);
+			message.write(rest, 0, rest.length);
+			consumer.add(offset++, message.toByteArray());
+		}
+		agent.setDaemon(true);
+		agent.start();
+		try{
+			AgentMetrics metrics = agent.getMetrics();
+			int total = offset;
+			assertTrue(MockClients.await(() -> metrics.getRecordsPolled() == total && metrics.getRecordsMalformed() == invalid.length));
+			assertEquals(1, metrics.getMessagesSent());
+			synchronized(malformed){
+				for(MalformedMessageException ex : malformed)
+					assertTrue(ex.getMessage().endsWith("Invalid UTF-8"), ex.getMessage());
+			}
+			JSONObject resolved = new JSONObject(valid.replace("{\"intent\":\"a\"}", "{\"a\":\"done\"}"));
+			assertTrue(resolved.similar(new JSONObject(new String(producer.history().get(0).value(), StandardCharsets.UTF_8))));
+		}finally{
+			agent.shutdown();
+			agent.join(5000);
+		}
+	}
+	
+	/**
+	 * Agents connected to the same <code>{@link InMemoryBus}</code> resolve a message between them, each one resolving its own intent.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testInMemoryBus() throws InterruptedException {
+		InMemoryBus bus = new InMemoryBus();
+		Transport observer = bus.connect("observer");
+		for(String name : new String[]{"a", "b"}){
+			Agent agent = new Agent(name, bus.connect(name));
+			agent.addResolver(new Resolver(name){
+				@Override
+				public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+					return new JSONObject().put(name, intent.getInt("n")+1);
+				}
+				@Override
+				public JSONObject getErrorObject(IntentErrorException ex) {
+					return new JSONObject();
+				}
+			});
+			agent.setDaemon(true);
+			agent.start();
+		}
+		JSONObject message = new JSONObject("{\"x\":{\"intent\":\"b\",\"n\":1,\"y\":{\"intent\":\"a\",\"n\":1}}}");
+		bus.connect("client").send(KafkaClient.getTopic(), null, message, null);
+		
+		JSONObject resolved = null;
+		long deadline = System.currentTimeMillis()+5000;
+		while(resolved == null && System.currentTimeMillis() < deadline){
+			for(ConsumerRecord<String, byte[]> record : observer.consume()){
+				JSONObject json = observer.message(record);
+				if(json.getJSONObject("x").has("b"))
+					resolved = json;
+			}
+		}
+		assertEquals("{\"x\":{\"b\":2}}", resolved.toString());
+	}
+	
+	/**
+	 * Transports that only carry bytes publish the messages given as objects as JSON text.
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testSerializedObjects() throws MalformedMessageException {
+		MockProducer<String, byte[]> producer = MockClients.producer();
+		Transport transport = new KafkaClient(new MockClients.Consumer(), producer, "objects");
+		assertFalse(transport.carriesObjects());
+		JSONObject message = new JSONObject().put("intent", "a").put("text", "\u00A1Hola!");
+		transport.send(KafkaClient.getTopic(), "key", message, null);
+		assertEquals(1, producer.history().size());
+		assertEquals("key", producer.history().get(0).key());
+		assertEquals(message.toString(), new String(producer.history().get(0).value(), StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * A running agent stops once shut down, after closing its transport.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testShutdown() throws InterruptedException {
+		Agent agent = new Agent("shutdown", new InMemoryBus().connect("shutdown"));
+		agent.setDaemon(true);
+		agent.start();
+		agent.shutdown();
+		agent.join(5000);
+		assertFalse(agent.isAlive());
+	}
+	
+	/**
+	 * An agent remembering the shapes of messages resolves the same intents as an agent searching every message, for messages of the same shape and of similar ones.
+	 * @throws NotAnIntentException
+	 * @throws NoResolverException
+	 * @throws ErrorMessageException
+	 */
+	@Test
+	public void testShapeCache() throws NotAnIntentException, NoResolverException, ErrorMessageException {
+		Agent cached = new Agent("shapes", new InMemoryBus().connect("shapes"));
+		cached.setShapeCache(4);
+		for(Agent agent : new Agent[]{cached, testAgent}){
+			agent.addResolver(new Resolver("a"){
+				@Override
+				public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+					return new JSONObject().put("a", intent.getInt("n"));
+				}
+				@Override
+				public JSONObject getErrorObject(IntentErrorException ex) {
+					return new JSONObject();
+				}
+			});
+		}
+		String[] messages = {
+			"{\"x\":{\"intent\":\"a\",\"n\":1},\"y\":{\"intent\":\"a\",\"n\":2}}",
+			"{\"x\":{\"intent\":\"a\",\"n\":3},\"y\":{\"intent\":\"a\",\"n\":4}}",
+			"{\"x\":{\"intent\":1,\"n\":3},\"y\":{\"intent\":\"a\",\"n\":4}}",
+			"{\"x\":[{\"k\":1},{\"intent\":\"a\",\"n\":5}],\"y\":{\"intent\":\"a\",\"n\":6}}",
+			"{\"x\":[{\"k\":2},{\"intent\":\"a\",\"n\":7}],\"y\":{\"intent\":\"a\",\"n\":8}}",
+			"{\"x\":[{\"intent\":\"a\",\"n\":9},{\"k\":3}],\"y\":{\"intent\":\"a\",\"n\":10}}"
+		};
+		for(int i = 0; i < 3; i++){
+			for(String message : messages){
+				JSONObject expected = testAgent.intentResolver(new JSONObject(message));
+				assertEquals(expected.toString(), cached.intentResolver(new JSONObject(message)).toString());
+			}
+		}
+		assertThrows(ErrorMessageException.class, () -> cached.intentResolver(new JSONObject("{\"error\":\"e\",\"x\":{\"intent\":\"a\",\"n\":1}}")));
+		assertThrows(ErrorMessageException.class, () -> cached.intentResolver(new JSONObject("{\"error\":\"f\",\"x\":{\"intent\":\"a\",\"n\":2}}")));
+		assertThrows(NotAnIntentException.class, () -> cached.intentResolver(new JSONObject("{\"x\":{\"n\":1}}")));
+	}
+	
+	/**
+	 * Records abandoned when their partition is revoked are neither resolved nor published afterwards, whether they were running or waiting for a worker.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testAbandoned() throws InterruptedException {
+		for(int mode = 0; mode < 3; mode++){
+			MockClients.Consumer consumer = new MockClients.Consumer();
+			MockProducer<String, byte[]> producer = MockClients.producer();
+			Agent agent = new Agent("abandoned", new KafkaClient(consumer, producer, "abandoned"));
+			CountDownLatch release = new CountDownLatch(1);
+			AtomicInteger calls = new AtomicInteger();
+			//Sequential agents only run several records at once with asynchronous resolvers
+			if(mode == 0){
+				agent.addResolver(new AsyncResolver("a"){
+					@Override
+					public CompletableFuture<JSONObject> resolveAsync(Intent intent, JSONObject full) {
+						calls.incrementAndGet();
+						return CompletableFuture.supplyAsync(() -> resolveBlocking(release));
+					}
+					@Override
+					public JSONObject getErrorObject(IntentErrorException ex) {
+						return new JSONObject();
+					}
+				});
+			}else{
+				agent.addResolver(new Resolver("a"){
+					@Override
+					public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+						calls.incrementAndGet();
+						return resolveBlocking(release);
+					}
+					@Override
+					public JSONObject getErrorObject(IntentErrorException ex) {
+						return new JSONObject();
+					}
+				});
+			}
+			if(mode == 1)
+				agent.setWorkers(2);
+			else if(mode == 2)
+				agent.setVirtualThreads(1);
+			agent.setDrainTimeout(100);
+			agent.setDaemon(true);
+			agent.start();
+			for(int i = 0; i < 5; i++)
+				consumer.add(i, "{\"intent\":\"a\"}");
+			int started = mode == 0 ? 5 : 1;
+			assertTrue(MockClients.await(() -> calls.get() == started));
+			consumer.revoke(MockClients.PARTITION);
+			Thread.sleep(500);
+			release.countDown();
+			Thread.sleep(300);
+			agent.shutdown();
+			agent.join(5000);
+			assertEquals(started, calls.get());
+			assertTrue(producer.history().isEmpty());
+		}
+	}
+	
+	private static JSONObject resolveBlocking(CountDownLatch release){
+		try{
+			release.await();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+		return new JSONObject().put("a", "done");
+	}
+	
+	/**
+	 * An agent resolving sibling intents in parallel publishes the same messages as an agent resolving them one by one, stopping at the first error as well.
+	 * @throws InterruptedException
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testParallelSiblings() throws InterruptedException, MalformedMessageException {
+		String[] messages = {
+			"{\"a\":{\"intent\":\"x\",\"n\":1},\"b\":{\"intent\":\"x\",\"n\":2}}",
+			"{\"a\":{\"intent\":\"x\",\"n\":1,\"args\":{\"intent\":\"x\",\"n\":2}},\"c\":{\"intent\":\"x\",\"n\":3}}",
+			"{\"a\":{\"intent\":\"x\",\"n\":1},\"b\":{\"error\":\"e\"},\"c\":{\"intent\":\"x\",\"n\":3}}",
+			"{\"list\":[{\"intent\":\"x\",\"n\":1},{\"error\":\"e\"},{\"intent\":\"x\",\"n\":3}]}",
+			"{\"a\":{\"intent\":\"x\",\"n\":1},\"b\":{\"intent\":\"x\",\"n\":2,\"args\":{\"error\":\"e\"}},\"c\":{\"intent\":\"x\",\"n\":3}}"
+		};
+		for(String message : messages){
+			JSONObject sequential = resolveOnBus(message, agent -> agent.setMaxLocalSteps(100));
+			JSONObject parallel = resolveOnBus(message, agent -> {
+				agent.setMaxLocalSteps(100);
+				agent.setParallelSiblings(ForkJoinPool.commonPool());
+			});
+			assertTrue(sequential.similar(parallel), message+": "+sequential+" != "+parallel);
+		}
+	}
+	
+	/**
+	 * An agent resolving several intents of a message before publishing it stops at the limit, at an intent of another agent, and at an error.
+	 * @throws InterruptedException
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testMaxLocalSteps() throws InterruptedException, MalformedMessageException {
+		String three = "{\"a\":{\"intent\":\"x\",\"n\":1},\"b\":{\"intent\":\"x\",\"n\":2},\"c\":{\"intent\":\"x\",\"n\":3}}";
+		assertEquals(new JSONObject("{\"a\":{\"x\":10},\"b\":{\"intent\":\"x\",\"n\":2},\"c\":{\"intent\":\"x\",\"n\":3}}").toString(),
+				resolveOnBus(three, agent -> {}).toString());
+		assertEquals(new JSONObject("{\"a\":{\"x\":10},\"b\":{\"x\":20},\"c\":{\"intent\":\"x\",\"n\":3}}").toString(),
+				resolveOnBus(three, agent -> agent.setMaxLocalSteps(2)).toString());
+		assertEquals(new JSONObject("{\"a\":{\"x\":10},\"b\":{\"x\":20},\"c\":{\"x\":30}}").toString(),
+				resolveOnBus(three, agent -> agent.setMaxLocalSteps(10)).toString());
+
+		String foreign = "{\"a\":{\"intent\":\"x\",\"n\":1},\"b\":{\"intent\":\"y\",\"n\":2},\"c\":{\"intent\":\"x\",\"n\":3}}";
+		assertEquals(new JSONObject("{\"a\":{\"x\":10},\"b\":{\"intent\":\"y\",\"n\":2},\"c\":{\"intent\":\"x\",\"n\":3}}").toString(),
+				resolveOnBus(foreign, agent -> agent.setMaxLocalSteps(10)).toString());
+
+		String failing = "{\"a\":{\"intent\":\"x\",\"n\":-1},\"b\":{\"intent\":\"x\",\"n\":2}}";
+		JSONObject failed = resolveOnBus(failing, agent -> agent.setMaxLocalSteps(10));
+		assertEquals("negative", failed.getString("error"));
+		assertEquals("negative", failed.getJSONObject("a").getString("error"));
+		assertEquals(new JSONObject("{\"intent\":\"x\",\"n\":2}").toString(), failed.getJSONObject("b").toString());
+
+		assertThrows(IllegalArgumentException.class, () -> testAgent.setMaxLocalSteps(0));
+	}
+	
+	/**
+	 * Has an agent resolve a message on its own bus, as far as it can before publishing it. The agent resolves the intent <code>x</code>,
+	 * multiplying its <code>n</code> by 10, and fails for negative numbers.
+	 * @param setup Configuration of the agent
+	 * @return The message published by the agent
+	 */
+	private static JSONObject resolveOnBus(String message, java.util.function.Consumer<Agent> setup) throws InterruptedException, MalformedMessageException {
+		InMemoryBus bus = new InMemoryBus();
+		Transport observer = bus.connect("observer");
+		Agent agent = new Agent("x", bus.connect("x"));
+		agent.addResolver(new Resolver("x"){
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				if(intent.getInt("n") < 0)
+					throw new IntentErrorException("negative");
+				return new JSONObject().put("x", intent.getInt("n")*10);
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		setup.accept(agent);
+		agent.setDaemon(true);
+		agent.start();
+		try{
+			bus.connect("client").send(KafkaClient.getTopic(), null, message.getBytes(StandardCharsets.UTF_8), null);
+			List<ConsumerRecord<String, byte[]>> received = new ArrayList<ConsumerRecord<String, byte[]>>();
+			long deadline = System.currentTimeMillis()+5000;
+			while(received.size() < 2 && System.currentTimeMillis() < deadline){
+				for(ConsumerRecord<String, byte[]> record : observer.consume())
+					received.add(record);
+			}
+			//The agent may have received its own message and published it again meanwhile
+			assertTrue(received.size() >= 2);
+			ConsumerRecord<String, byte[]> published = received.get(1);
+			JSONObject json = observer.message(published);
+			return json != null ? json : Util.parse(published.value());
+		}finally{
+			agent.shutdown();
+			agent.join(5000);
+		}
+	}
 }
@@ -0,0 +1,222 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+public class TestAgentHost {
+	private MockClients.Consumer consumer;
+	private MockProducer<String, byte[]> producer;
+	private AgentHost host;
+	private List<Agent> agents;
+
+	@BeforeEach
+	public void startHost(){
+		consumer = new MockClients.Consumer();
+		producer = MockClients.producer();
+		host = new AgentHost(group -> consumer, producer);
+		agents = new ArrayList<Agent>();
+	}
+
+	@AfterEach
+	public void closeHost() throws InterruptedException{
+		for(Agent agent : agents){
+			agent.shutdown();
+			agent.join(5000);
+		}
+		host.close();
+	}
+
+	/**
+	 * Creates a hosted agent of the group "g" that records the offsets it receives, resolving the given intent, and blocking in its resolver until released.
+	 */
+	private Recording agent(String intent, CountDownLatch entered, CountDownLatch release){
+		Recording agent = host.agent("g", Recording::new);
+		agent.addResolver(new Resolver(intent){
+			@Override
+			public JSONObject resolve(Intent i, JSONObject full) throws IntentErrorException {
+				entered.countDown();
+				try{
+					release.await();
+				}catch(InterruptedException ex){
+					Thread.currentThread().interrupt();
+				}
+				return new JSONObject().put(intent, "done");
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		agents.add(agent);
+		return agent;
+	}
+	private Recording agent(String intent){
+		return agent(intent, new CountDownLatch(1), new CountDownLatch(0));
+	}
+
+	/**
+	 * Agents of the same group each receive the records with the intents they resolve.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testDispatchByIntent() throws InterruptedException {
+		Recording a = agent("a");
+		Recording b = agent("b");
+		a.start();
+		b.start();
+		for(int i = 0; i < 6; i++)
+			consumer.add(i, "{\"x\":{\"intent\":\""+(i%2 == 0 ? "a" : "b")+"\"}}");
+		assertTrue(MockClients.await(() -> a.offsets().size()+b.offsets().size() == 6));
+		assertEquals(Arrays.asList(0L, 2L, 4L), a.offsets());
+		assertEquals(Arrays.asList(1L, 3L, 5L), b.offsets());
+		assertTrue(MockClients.await(() -> producer.history().size() == 6));
+	}
+
+	/**
+	 * Records no agent of the group can resolve, and records without intent or malformed, go to the first agent of the group.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testFallback() throws InterruptedException {
+		Recording a = agent("a");
+		Recording b = agent("b");
+		a.start();
+		b.start();
+		consumer.add(0, "{\"x\":{\"intent\":\"c\"}}");
+		consumer.add(1, "{\"x\":1}");
+		consumer.add(2, "{\"intent\":");
+		consumer.add(3, "{\"x\":{\"intent\":\"b\"}}");
+		assertTrue(MockClients.await(() -> b.offsets().size() == 1));
+		assertTrue(MockClients.await(() -> a.offsets().size() == 3));
+		assertEquals(Arrays.asList(0L, 1L, 2L), a.offsets());
+		assertEquals(Collections.singletonList(3L), b.offsets());
+	}
+
+	/**
+	 * Records waiting for an agent that is closed are handed to the other agents of the group.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testReturned() throws InterruptedException {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Recording a = agent("a", entered, release);
+		Recording b = agent("a");
+		a.start();
+		b.start();
+		consumer.add(0, "{\"intent\":\"a\"}");
+		entered.await();
+		for(int i = 1; i < 6; i++)
+			consumer.add(i, "{\"intent\":\"a\"}");
+		//The records are queued for the first agent, which is busy
+		Thread.sleep(300);
+		assertTrue(b.offsets().isEmpty());
+		a.shutdown();
+		release.countDown();
+		a.join(5000);
+		assertFalse(a.isAlive());
+		assertTrue(MockClients.await(() -> b.offsets().size() == 5));
+		assertEquals(Collections.singletonList(0L), a.offsets());
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), b.offsets());
+	}
+
+	/**
+	 * A partition is paused while any agent of the group has it paused.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testPause() throws InterruptedException {
+		Transport a = agent("a").getTransport();
+		Transport b = agent("b").getTransport();
+		a.pause(Collections.singleton(MockClients.PARTITION));
+		assertTrue(MockClients.await(() -> consumer.paused().contains(MockClients.PARTITION)));
+		b.pause(Collections.singleton(MockClients.PARTITION));
+		a.resume(Collections.singleton(MockClients.PARTITION));
+		Thread.sleep(300);
+		assertTrue(consumer.paused().contains(MockClients.PARTITION));
+		b.resume(Collections.singleton(MockClients.PARTITION));
+		assertTrue(MockClients.await(() -> consumer.paused().isEmpty()));
+	}
+
+	/**
+	 * The partition of the records an agent cannot keep up with is paused until the agent catches up, and no record is lost meanwhile.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testBackpressure() throws InterruptedException {
+		Recording a = agent("a");
+		consumer.schedulePollTask(() -> {
+			for(int i = 0; i < 3000; i++)
+				consumer.addRecord(new ConsumerRecord<String, byte[]>(MockClients.TOPIC, 0, i, null, "{\"intent\":\"a\"}".getBytes()));
+		});
+		assertTrue(MockClients.await(() -> consumer.paused().contains(MockClients.PARTITION)));
+		a.start();
+		assertTrue(MockClients.await(() -> a.offsets().size() == 3000));
+		assertTrue(MockClients.await(() -> consumer.paused().isEmpty()));
+		for(int i = 0; i < 3000; i++)
+			assertEquals(i, (long)a.offsets().get(i));
+	}
+
+	/**
+	 * Records of a revoked partition that are still waiting for an agent are dropped, and the agent is told of the revocation.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRevocation() throws InterruptedException {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Recording a = agent("a", entered, release);
+		a.setDrainTimeout(100);
+		a.start();
+		consumer.add(0, "{\"intent\":\"a\"}");
+		entered.await();
+		for(int i = 1; i < 6; i++)
+			consumer.add(i, "{\"intent\":\"a\"}");
+		Thread.sleep(300);
+		consumer.revoke(MockClients.PARTITION);
+		Thread.sleep(300);
+		release.countDown();
+		assertTrue(MockClients.await(() -> consumer.committed(MockClients.PARTITION) != null));
+		assertEquals(1, consumer.committed(MockClients.PARTITION).offset());
+		Thread.sleep(300);
+		assertEquals(Collections.singletonList(0L), a.offsets());
+	}
+
+	/**
+	 * Agent recording the offsets of the records it receives.
+	 */
+	public static class Recording extends Agent {
+		private final List<Long> offsets = Collections.synchronizedList(new ArrayList<Long>());
+
+		public Recording(String group, Transport transport){
+			super(group, transport);
+		}
+
+		@Override
+		public void onReception(ConsumerRecord<String, byte[]> record){
+			offsets.add(record.offset());
+		}
+
+		public List<Long> offsets(){
+			synchronized(offsets){
+				return new ArrayList<Long>(offsets);
+			}
+		}
+	}
+}
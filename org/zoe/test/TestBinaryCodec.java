@@ -0,0 +1,265 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+/**
+ * Messages published in the binary format (see <code>{@link Agent#setBinary(boolean)}</code>) and read back with <code>{@link Util#parse(byte[])}</code>.
+ */
+public class TestBinaryCodec {
+	private static final byte MAGIC = (byte)0xFF;
+	private static final byte VERSION = 1;
+	private static final byte NULL = 0;
+	private static final byte STRING = 5;
+	private static final byte OBJECT = 6;
+	private static final byte ARRAY = 7;
+	//Index of the key "intent" in the table of keys
+	private static final byte INTENT = 0;
+
+	private MockProducer<String, byte[]> producer;
+	private Agent agent;
+
+	@BeforeEach
+	public void createAgent(){
+		producer = MockClients.producer();
+		agent = new Agent("binary", new KafkaClient(new MockClients.Consumer(), producer, "binary"));
+		agent.setBinary(true);
+	}
+
+	private byte[] encode(JSONObject json){
+		agent.send(json);
+		List<byte[]> sent = new ArrayList<byte[]>();
+		producer.history().forEach(record -> sent.add(record.value()));
+		byte[] message = sent.get(sent.size()-1);
+		assertEquals(MAGIC, message[0]);
+		return message;
+	}
+
+	/**
+	 * Every kind of value is read back as it was published.
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testRoundTrip() throws MalformedMessageException {
+		JSONObject message = new JSONObject();
+		message.put("intent", "a");
+		message.put("error", "failed");
+		message.put("null", JSONObject.NULL);
+		message.put("true", true);
+		message.put("false", false);
+		message.put("int", -1);
+		message.put("intMax", Integer.MAX_VALUE);
+		message.put("intMin", Integer.MIN_VALUE);
+		message.put("long", 1L << 40);
+		message.put("longMax", Long.MAX_VALUE);
+		message.put("longMin", Long.MIN_VALUE);
+		message.put("double", 0.1);
+		message.put("doubleMin", Double.MIN_VALUE);
+		message.put("doubleLarge", -1.5e300);
+		message.put("bigInteger", new BigInteger("123456789012345678901234567890"));
+		message.put("bigDecimal", new BigDecimal("3.14159265358979323846264338327950288"));
+		message.put("empty", "");
+		message.put("text", "\u00A1Hola, Le\u00F3n! \uD83D\uDE00");
+		JSONObject decoded = Util.parse(encode(message));
+		assertEquals(message.length(), decoded.length());
+		for(String key : message.keySet())
+			assertEquals(message.get(key), decoded.get(key), key);
+	}
+
+	/**
+	 * Nested objects and arrays are read back as they were published, with the keys of every object, repeated or not.
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testNested() throws MalformedMessageException {
+		JSONObject message = new JSONObject("{\"x\":{\"intent\":\"a\",\"args\":[[1,[2,[]]],{\"x\":[]},{\"intent\":\"b\",\"error\":null}]},\"args\":{}}");
+		assertTrue(message.similar(Util.parse(encode(message))));
+
+		JSONArray deep = new JSONArray();
+		JSONObject nested = new JSONObject().put("deep", deep);
+		for(int i = 0; i < 100; i++){
+			JSONArray inner = new JSONArray();
+			deep.put(inner);
+			deep = inner;
+		}
+		assertTrue(nested.similar(Util.parse(encode(nested))));
+	}
+
+	/**
+	 * Floats are published as doubles, and read back as doubles.
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testFloat() throws MalformedMessageException {
+		JSONObject decoded = Util.parse(encode(new JSONObject().put("f", 1.5f)));
+		assertEquals(Double.valueOf(1.5), decoded.get("f"));
+	}
+
+	/**
+	 * Truncated messages, lengths beyond the end of the message, trailing bytes, invalid UTF-8 and nesting too deep are rejected.
+	 */
+	@Test
+	public void testMalformed() {
+		byte[] message = encode(new JSONObject("{\"intent\":\"a\",\"n\":[1,2.5,\"b\",{\"k\":true}]}"));
+		for(int length = 1; length < message.length; length++)
+			assertMalformed(Arrays.copyOf(message, length));
+		assertMalformed(Arrays.copyOf(message, message.length+1));
+
+		//{"intent": "a"}, with a length of 100 for a string of 1 byte
+		assertMalformed(new byte[]{MAGIC, VERSION, 0, OBJECT, 1, INTENT, STRING, 100, 'a'});
+		//A table of keys longer than the message
+		assertMalformed(new byte[]{MAGIC, VERSION, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x7F, OBJECT, 0});
+		//{"intent": "\xC3"}
+		assertMalformed(new byte[]{MAGIC, VERSION, 0, OBJECT, 1, INTENT, STRING, 1, (byte)0xC3});
+		//An unknown tag
+		assertMalformed(new byte[]{MAGIC, VERSION, 0, OBJECT, 1, INTENT, 42});
+
+		//{"intent": [[[...]]]}, nested far deeper than any message
+		ByteArrayOutputStream deep = new ByteArrayOutputStream();
+		deep.write(MAGIC);
+		deep.write(VERSION);
+		deep.write(0);
+		deep.write(OBJECT);
+		deep.write(1);
+		deep.write(INTENT);
+		for(int i = 0; i < 100000; i++){
+			deep.write(ARRAY);
+			deep.write(1);
+		}
+		deep.write(NULL);
+		assertMalformed(deep.toByteArray());
+	}
+
+	private static void assertMalformed(byte[] message){
+		MalformedMessageException ex = assertThrows(MalformedMessageException.class, () -> Util.parse(message));
+		assertTrue(ex.getCause() instanceof JSONException);
+	}
+
+	/**
+	 * Agents publishing binary messages and agents publishing JSON text resolve a message between them, each one reading the format of the other.
+	 * @throws InterruptedException
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testMixedChain() throws InterruptedException, MalformedMessageException {
+		InMemoryBus bus = new InMemoryBus();
+		Transport observer = bus.connect("observer");
+		for(String name : new String[]{"a", "b"}){
+			//The bus would carry the messages as objects, so they are published serialized instead
+			Agent agent = new Agent(name, new Serialized(bus.connect(name)));
+			agent.setBinary(name.equals("a"));
+			agent.addResolver(new Resolver(name){
+				@Override
+				public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+					return new JSONObject().put(name, intent.getInt("n")+1);
+				}
+				@Override
+				public JSONObject getErrorObject(IntentErrorException ex) {
+					return new JSONObject();
+				}
+			});
+			agent.setDaemon(true);
+			agent.start();
+		}
+		byte[] message = "{\"x\":{\"intent\":\"b\",\"n\":1,\"y\":{\"intent\":\"a\",\"n\":1}}}".getBytes(StandardCharsets.UTF_8);
+		bus.connect("client").send(KafkaClient.getTopic(), null, message, null);
+
+		List<byte[]> received = new ArrayList<byte[]>();
+		long deadline = System.currentTimeMillis()+5000;
+		while(received.size() < 3 && System.currentTimeMillis() < deadline){
+			for(ConsumerRecord<String, byte[]> record : observer.consume())
+				received.add(record.value());
+		}
+		assertEquals(3, received.size());
+		assertEquals(MAGIC, received.get(1)[0]);
+		assertTrue(new JSONObject("{\"x\":{\"intent\":\"b\",\"n\":1,\"y\":{\"a\":2}}}").similar(Util.parse(received.get(1))));
+		assertEquals((byte)'{', received.get(2)[0]);
+		assertEquals("{\"x\":{\"b\":2}}", Util.parse(received.get(2)).toString());
+	}
+
+	/**
+	 * Transport that only publishes serialized messages.
+	 */
+	private static class Serialized implements Transport {
+		private final Transport transport;
+
+		Serialized(Transport transport){
+			this.transport = transport;
+		}
+
+		@Override
+		public ConsumerRecords<String, byte[]> consume(){
+			return transport.consume();
+		}
+
+		@Override
+		public void commit(ConsumerRecord<String, byte[]> record){
+			transport.commit(record);
+		}
+
+		@Override
+		public void ignore(ConsumerRecord<String, byte[]> record){
+			transport.ignore(record);
+		}
+
+		@Override
+		public void send(String topic, String key, byte[] message, Iterable<Header> headers){
+			transport.send(topic, key, message, headers);
+		}
+
+		@Override
+		public void subscribe(Collection<String> topics){
+			transport.subscribe(topics);
+		}
+
+		@Override
+		public void pause(Collection<TopicPartition> partitions){
+			transport.pause(partitions);
+		}
+
+		@Override
+		public void resume(Collection<TopicPartition> partitions){
+			transport.resume(partitions);
+		}
+
+		@Override
+		public Map<String, Long> lag(){
+			return transport.lag();
+		}
+
+		@Override
+		public void setRebalanceListener(ConsumerRebalanceListener listener){
+			transport.setRebalanceListener(listener);
+		}
+
+		@Override
+		public void close(){
+			transport.close();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+/**
+ * Large fields taken out of messages into a <code>{@link MappedFileBlobStore}</code> (see <code>{@link Agent#setClaimCheck(BlobStore, int)}</code>),
+ * and claimed back by resolvers (see <code>{@link Intent#claim(String)}</code>).
+ */
+public class TestClaimCheck {
+	private static final int THRESHOLD = 10;
+
+	private Path dir;
+	private MappedFileBlobStore store;
+	private MockProducer<String, byte[]> producer;
+	private Agent agent;
+
+	@BeforeEach
+	public void createStore() throws IOException{
+		dir = Files.createTempDirectory("zoe-blobs");
+		store = new MappedFileBlobStore(dir);
+		producer = MockClients.producer();
+		agent = new Agent("claims", new KafkaClient(new MockClients.Consumer(), producer, "claims"));
+		agent.setClaimCheck(store, THRESHOLD);
+		agent.addResolver(new Resolver("read"){
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				return new JSONObject().put("text", intent.claim("text"));
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+	}
+
+	@AfterEach
+	public void deleteStore() throws IOException{
+		try(Stream<Path> files = Files.walk(dir)){
+			for(Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(file);
+		}
+	}
+
+	private JSONObject send(JSONObject json) throws MalformedMessageException{
+		agent.send(json);
+		return Util.parse(producer.history().get(producer.history().size()-1).value());
+	}
+
+	private List<Path> stored() throws IOException{
+		try(Stream<Path> files = Files.walk(dir)){
+			return files.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Fields are taken out from the threshold on, counted in UTF-8 bytes.
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testThreshold() throws MalformedMessageException {
+		JSONObject sent = send(new JSONObject()
+				.put("below", "123456789")
+				.put("at", "1234567890")
+				.put("wide", "\u00F1\u00F1\u00F1\u00F1\u00F1")
+				.put("narrow", "\u00F1\u00F1\u00F1\u00F1"));
+		assertEquals("123456789", sent.get("below"));
+		assertEquals(10, sent.getJSONObject("at").getInt("size"));
+		assertEquals(10, sent.getJSONObject("wide").getInt("size"));
+		assertEquals("\u00F1\u00F1\u00F1\u00F1", sent.get("narrow"));
+	}
+
+	/**
+	 * The message given to the agent is not modified, even in the objects and arrays holding large fields.
+	 * @throws MalformedMessageException
+	 */
+	@Test
+	public void testCopyOnWrite() throws MalformedMessageException {
+		String large = "a large enough field";
+		JSONObject message = new JSONObject("{\"intent\":\"read\",\"x\":{\"text\":\""+large+"\",\"n\":1},\"list\":[\"short\",\""+large+"\"]}");
+		JSONObject before = new JSONObject(message.toString());
+		JSONObject sent = send(message);
+		assertTrue(before.similar(message));
+		assertTrue(sent.getJSONObject("x").get("text") instanceof JSONObject);
+		assertEquals(1, sent.getJSONObject("x").getInt("n"));
+		assertEquals("short", sent.getJSONArray("list").get(0));
+		assertTrue(sent.getJSONArray("list").get(1) instanceof JSONObject);
+	}
+
+	/**
+	 * Fields with the same content are stored once, under the same reference.
+	 * @throws MalformedMessageException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDedup() throws MalformedMessageException, IOException {
+		String large = "a large enough field";
+		JSONObject first = send(new JSONObject().put("a", large).put("b", large));
+		JSONObject second = send(new JSONObject().put("c", large));
+		assertTrue(first.getJSONObject("a").similar(first.getJSONObject("b")));
+		assertTrue(first.getJSONObject("a").similar(second.getJSONObject("c")));
+		assertEquals(1, stored().size());
+	}
+
+	/**
+	 * Contents are read back as they were stored, and no temporary file is left behind.
+	 * @throws IOException
+	 */
+	@Test
+	public void testStore() throws IOException {
+		String hash = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+		byte[] content = "test".getBytes(StandardCharsets.UTF_8);
+		store.put(hash, content);
+		store.put(hash, content);
+		assertEquals("test", StandardCharsets.UTF_8.decode(store.get(hash)).toString());
+		List<Path> files = stored();
+		assertEquals(1, files.size());
+		assertEquals(hash, files.get(0).getFileName().toString());
+		assertThrows(IOException.class, () -> store.get("0000"));
+		assertThrows(IllegalArgumentException.class, () -> store.put("../x", content));
+	}
+
+	/**
+	 * Resolvers claim the content of fields taken out, and fail to claim contents that are not stored.
+	 * @throws MalformedMessageException
+	 * @throws NoResolverException
+	 * @throws NotAnIntentException
+	 * @throws ErrorMessageException
+	 */
+	@Test
+	public void testClaim() throws MalformedMessageException, NoResolverException, NotAnIntentException, ErrorMessageException {
+		String large = "a large enough field";
+		JSONObject sent = send(new JSONObject().put("intent", "read").put("text", large));
+		JSONObject missing = new JSONObject(sent.toString());
+		missing.getJSONObject("text").put("claim!", "0000");
+		assertEquals(large, agent.intentResolver(sent).getString("text"));
+		assertEquals("short", agent.intentResolver(new JSONObject().put("intent", "read").put("text", "short")).getString("text"));
+		assertThrows(UncheckedIOException.class, () -> agent.intentResolver(missing));
+	}
+}
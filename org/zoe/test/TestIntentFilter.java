@@ -0,0 +1,70 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+/**
+ * Messages discarded before being parsed because they cannot hold any intent of the agent, as counted by <code>{@link AgentMetrics#getRecordsFiltered()}</code>.
+ */
+public class TestIntentFilter {
+
+	/**
+	 * Intents in quoted text, of other agents, quoted or with a name that is not a string are discarded, while intents of the agent are kept,
+	 * even when their keys or names are escaped, or written in the lenient syntax the parser accepts.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testFilter() throws InterruptedException {
+		MockClients.Consumer consumer = new MockClients.Consumer();
+		MockProducer<String, byte[]> producer = MockClients.producer();
+		Agent agent = new Agent("filter", new KafkaClient(consumer, producer, "filter"));
+		agent.addResolver(new Resolver("a"){
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				return new JSONObject().put("a", "done");
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		});
+		String[] resolved = {
+			"{\"intent\":\"a\"}",
+			"{\"x\" : { \"intent\" :\n\"a\" }}",
+			"{\"int\\u0065nt\":\"a\"}",
+			"{\"intent\":\"\\u0061\"}",
+			"{'intent':'a'}",
+			"{intent:a}",
+			"{\"intent\":'a'}"
+		};
+		String[] discarded = {
+			"{\"text\":\"\\\"intent\\\":\\\"a\\\"\"}",
+			"{\"text\":\"say \\\"intent\\\" : \\\"a\\\" \",\"intent\":\"b\"}",
+			"{\"intent!\":\"a\"}",
+			"{\"intent\":1,\"a\":\"intent\"}"
+		};
+		int offset = 0;
+		for(String message : resolved)
+			consumer.add(offset++, message);
+		for(String message : discarded)
+			consumer.add(offset++, message);
+		agent.setDaemon(true);
+		agent.start();
+		try{
+			AgentMetrics metrics = agent.getMetrics();
+			int total = offset;
+			assertTrue(MockClients.await(() -> metrics.getRecordsPolled() == total && metrics.getMessagesSent() == resolved.length));
+			assertEquals(discarded.length, metrics.getRecordsFiltered());
+			assertEquals(resolved.length, metrics.getRecordsParsed());
+		}finally{
+			agent.shutdown();
+			agent.join(5000);
+		}
+	}
+}
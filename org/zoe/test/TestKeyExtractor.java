@@ -0,0 +1,74 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+/**
+ * Keys of published messages taken from a field of the message (see <code>{@link KeyExtractor#path(String)}</code>).
+ */
+public class TestKeyExtractor {
+	private final KeyExtractor extractor = KeyExtractor.path("user/conversation_id");
+
+	/**
+	 * Gives the key of a message, both parsed and raw, checking that both agree.
+	 */
+	private String key(String message){
+		String key = extractor.key(new JSONObject(message));
+		assertEquals(key, extractor.key(message.getBytes(StandardCharsets.UTF_8)), message);
+		return key;
+	}
+
+	/**
+	 * String values are used as they are, and any other value as its JSON text.
+	 */
+	@Test
+	public void testValues() {
+		assertEquals("c1", key("{\"user\":{\"conversation_id\":\"c1\"}}"));
+		assertEquals("c\"1\u00F1", key("{\"user\":{\"x\":[1,{}],\"conversation_id\":\"c\\\"1\\u00F1\"}}"));
+		assertEquals("42", key("{\"user\":{\"conversation_id\":42}}"));
+		assertEquals("true", key("{\"user\":{\"conversation_id\":true}}"));
+		assertEquals("{\"a\":1}", key("{\"user\":{\"conversation_id\":{\"a\":1}}}"));
+		assertEquals("[1,2]", key("{\"user\":{\"conversation_id\":[1,2]}}"));
+	}
+
+	/**
+	 * Messages without the field, with a null value, or with something other than an object along the path have no key.
+	 */
+	@Test
+	public void testMissing() {
+		assertNull(key("{}"));
+		assertNull(key("{\"conversation_id\":\"c1\"}"));
+		assertNull(key("{\"user\":{}}"));
+		assertNull(key("{\"user\":{\"conversation\":\"c1\"}}"));
+		assertNull(key("{\"user\":{\"conversation_id\":null}}"));
+		assertNull(key("{\"user\":null}"));
+		assertNull(key("{\"user\":\"c1\"}"));
+		assertNull(key("{\"user\":[{\"conversation_id\":\"c1\"}]}"));
+		assertNull(key("{\"user\":{\"x\":{\"conversation_id\":\"c1\"}}}"));
+		assertThrows(IllegalArgumentException.class, () -> KeyExtractor.path(""));
+	}
+
+	/**
+	 * Agents publish messages with the key of the extractor, or with a random key when the message has none.
+	 */
+	@Test
+	public void testAgent() {
+		MockProducer<String, byte[]> producer = MockClients.producer();
+		Agent agent = new Agent("keys", new KafkaClient(new MockClients.Consumer(), producer, "keys"));
+		agent.setKeyExtractor(extractor);
+		agent.send(new JSONObject("{\"user\":{\"conversation_id\":\"c1\"}}"));
+		agent.send(new JSONObject("{\"user\":{}}"));
+		assertEquals("c1", producer.history().get(0).key());
+		assertNotNull(producer.history().get(1).key());
+	}
+}
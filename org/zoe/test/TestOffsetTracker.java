@@ -0,0 +1,113 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+/**
+ * Offsets committed by a <code>{@link KafkaClient}</code> as records are completed, on a mock consumer.
+ */
+public class TestOffsetTracker {
+	private MockClients.Consumer consumer;
+	private KafkaClient client;
+	private int failures;
+
+	@BeforeEach
+	public void createClient(){
+		failures = 0;
+		consumer = new MockClients.Consumer(){
+			@Override
+			public synchronized void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets, OffsetCommitCallback callback){
+				if(failures > 0){
+					failures--;
+					callback.onComplete(offsets, new KafkaException("Commit failed"));
+					return;
+				}
+				super.commitAsync(offsets, callback);
+			}
+		};
+		client = new KafkaClient(consumer, MockClients.producer(), "offsets");
+		client.setCommitInterval(0, 1);
+	}
+
+	private List<ConsumerRecord<String, byte[]>> poll(long from, long to){
+		//This thread is the one polling
+		for(long offset = from; offset < to; offset++)
+			consumer.addRecord(new ConsumerRecord<String, byte[]>(MockClients.TOPIC, 0, offset, null, "{}".getBytes()));
+		List<ConsumerRecord<String, byte[]>> records = new ArrayList<ConsumerRecord<String, byte[]>>();
+		for(ConsumerRecord<String, byte[]> record : client.consume())
+			records.add(record);
+		assertEquals(to-from, records.size());
+		return records;
+	}
+
+	private Long committed(){
+		//Completed offsets are committed before polling
+		client.consume();
+		OffsetAndMetadata committed = consumer.committed(MockClients.PARTITION);
+		return committed == null ? null : committed.offset();
+	}
+
+	/**
+	 * Only the contiguous run of completed records is committed, whatever the order in which they are completed.
+	 */
+	@Test
+	public void testWatermark(){
+		List<ConsumerRecord<String, byte[]>> records = poll(0, 5);
+		client.commit(records.get(2));
+		client.ignore(records.get(1));
+		client.commit(records.get(4));
+		assertNull(committed());
+		client.commit(records.get(0));
+		assertEquals(3, (long)committed());
+		client.commit(records.get(3));
+		assertEquals(5, (long)committed());
+	}
+
+	/**
+	 * Offsets whose asynchronous commit has failed are committed again.
+	 */
+	@Test
+	public void testCommitRetry(){
+		List<ConsumerRecord<String, byte[]>> records = poll(0, 2);
+		failures = 1;
+		client.commit(records.get(0));
+		client.commit(records.get(1));
+		assertNull(committed());
+		assertEquals(2, (long)committed());
+	}
+
+	/**
+	 * Records of a revoked partition completed after the revocation are not committed, until records of the partition are polled again.
+	 */
+	@Test
+	public void testRevocation(){
+		List<ConsumerRecord<String, byte[]>> records = poll(0, 3);
+		client.commit(records.get(0));
+		assertEquals(1, (long)committed());
+		consumer.revoke(MockClients.PARTITION);
+		client.consume();
+		client.commit(records.get(1));
+		client.commit(records.get(2));
+		assertEquals(1, (long)committed());
+
+		records = poll(3, 5);
+		client.commit(records.get(1));
+		assertEquals(1, (long)committed());
+		client.commit(records.get(0));
+		assertEquals(5, (long)committed());
+	}
+}
@@ -0,0 +1,94 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+/**
+ * Messages routed to the topic of their next intent (see <code>{@link Agent#setRouting(boolean, boolean)}</code>).
+ */
+public class TestRouting {
+
+	/**
+	 * Topics of intents are named after the default topic and the intent, without characters not allowed in topic names, and within the maximum length.
+	 */
+	@Test
+	public void testTopicOf() {
+		String topic = KafkaClient.getTopic();
+		assertEquals(topic+".greet", KafkaClient.topicOf("greet"));
+		assertEquals(topic+".a-b_c.D9", KafkaClient.topicOf("a-b_c.D9"));
+		assertEquals(topic+".say_hello__now_", KafkaClient.topicOf("say hello/\u00F1now!"));
+		char[] name = new char[300];
+		Arrays.fill(name, 'x');
+		String truncated = KafkaClient.topicOf(new String(name));
+		assertEquals(249, truncated.length());
+		assertTrue(truncated.startsWith(topic+".xxx"));
+	}
+
+	/**
+	 * A routing agent reads the topics of its resolvers, and follows the resolvers added and removed while it runs.
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testResubscribe() throws InterruptedException {
+		Set<String> subscription = Collections.synchronizedSet(new HashSet<String>());
+		MockClients.Consumer consumer = new MockClients.Consumer(){
+			@Override
+			public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener){
+				super.subscribe(topics, listener);
+				synchronized(subscription){
+					subscription.clear();
+					subscription.addAll(topics);
+				}
+			}
+		};
+		Agent agent = new Agent("routing", new KafkaClient(consumer, MockClients.producer(), "routing"));
+		agent.setRouting(true, false);
+		agent.addResolver(resolver("a"));
+		agent.setDaemon(true);
+		agent.start();
+		try{
+			assertTrue(MockClients.await(() -> subscription.equals(topics("a"))));
+			agent.addResolver(resolver("b c"));
+			assertTrue(MockClients.await(() -> subscription.equals(topics("a", "b c"))));
+			agent.removeResolver("a");
+			assertTrue(MockClients.await(() -> subscription.equals(topics("b c"))));
+			agent.removeResolver("b c");
+			assertTrue(MockClients.await(() -> subscription.equals(Collections.singleton(KafkaClient.getTopic()))));
+		}finally{
+			agent.shutdown();
+			agent.join(5000);
+		}
+	}
+
+	private static Set<String> topics(String... intents){
+		Set<String> topics = new HashSet<String>();
+		for(String intent : intents)
+			topics.add(KafkaClient.topicOf(intent));
+		return topics;
+	}
+
+	private static Resolver resolver(String name){
+		return new Resolver(name){
+			@Override
+			public JSONObject resolve(Intent intent, JSONObject full) throws IntentErrorException {
+				return new JSONObject();
+			}
+			@Override
+			public JSONObject getErrorObject(IntentErrorException ex) {
+				return new JSONObject();
+			}
+		};
+	}
+}
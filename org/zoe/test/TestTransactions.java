@@ -0,0 +1,135 @@
+package org.zoe.test;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.zoe.*;
+
+/**
+ * Records and their output committed atomically by a transactional <code>{@link KafkaClient}</code> (see <code>{@link KafkaClient#setTransactional(String)}</code>),
+ * on a mock consumer and a mock producer.
+ */
+public class TestTransactions {
+	private MockClients.Consumer consumer;
+	private MockProducer<String, byte[]> producer;
+	private KafkaClient client;
+	private int failures;
+
+	@BeforeEach
+	public void createClient(){
+		failures = 0;
+		consumer = new MockClients.Consumer();
+		producer = new MockProducer<String, byte[]>(true, new StringSerializer(), new ByteArraySerializer()){
+			@Override
+			public void commitTransaction(){
+				if(failures > 0){
+					failures--;
+					throw new KafkaException("Commit failed");
+				}
+				super.commitTransaction();
+			}
+		};
+		client = new KafkaClient(consumer, producer, "transactions");
+		client.setTransactional("transactions");
+		client.setCommitInterval(0, 1);
+	}
+
+	private List<ConsumerRecord<String, byte[]>> poll(long from, long to){
+		//This thread is the one polling
+		for(long offset = from; offset < to; offset++)
+			consumer.addRecord(new ConsumerRecord<String, byte[]>(MockClients.TOPIC, 0, offset, null, "{}".getBytes()));
+		List<ConsumerRecord<String, byte[]>> records = new ArrayList<ConsumerRecord<String, byte[]>>();
+		for(ConsumerRecord<String, byte[]> record : client.consume())
+			records.add(record);
+		assertEquals(to-from, records.size());
+		return records;
+	}
+
+	private void process(List<ConsumerRecord<String, byte[]>> records){
+		for(ConsumerRecord<String, byte[]> record : records){
+			client.send(MockClients.TOPIC, null, "{}".getBytes(), null);
+			client.commit(record);
+		}
+		//Completed transactions are committed before polling
+		client.consume();
+	}
+
+	private Long committed(){
+		List<Map<String, Map<TopicPartition, OffsetAndMetadata>>> history = producer.consumerGroupOffsetsHistory();
+		if(history.isEmpty())
+			return null;
+		return history.get(history.size()-1).get("transactions").get(MockClients.PARTITION).offset();
+	}
+
+	/**
+	 * The output and the offsets of the records are committed together, once every polled record is completed.
+	 */
+	@Test
+	public void testCommit(){
+		List<ConsumerRecord<String, byte[]>> records = poll(0, 2);
+		client.send(MockClients.TOPIC, null, "{}".getBytes(), null);
+		client.commit(records.get(0));
+		client.consume();
+		assertFalse(producer.transactionCommitted());
+		assertTrue(producer.history().isEmpty());
+
+		client.commit(records.get(1));
+		client.consume();
+		assertTrue(producer.transactionCommitted());
+		assertEquals(1, producer.history().size());
+		assertEquals(2, (long)committed());
+	}
+
+	/**
+	 * A transaction that fails to commit is aborted: its output is discarded, its offsets are not committed,
+	 * and the partition is rewound to the first record of the transaction, so that the records are processed again.
+	 */
+	@Test
+	public void testAbort(){
+		process(poll(0, 2));
+		assertEquals(2, (long)committed());
+		assertEquals(2, producer.history().size());
+
+		failures = 1;
+		process(poll(2, 5));
+		assertTrue(producer.transactionAborted());
+		assertEquals(2, producer.history().size());
+		assertEquals(2, (long)committed());
+		assertEquals(2, consumer.position(MockClients.PARTITION));
+
+		process(poll(2, 5));
+		assertTrue(producer.transactionCommitted());
+		assertEquals(5, producer.history().size());
+		assertEquals(5, (long)committed());
+	}
+
+	/**
+	 * Closing the client with records still in process aborts the transaction instead of committing the output of part of them.
+	 */
+	@Test
+	public void testClose(){
+		List<ConsumerRecord<String, byte[]>> records = poll(0, 2);
+		client.send(MockClients.TOPIC, null, "{}".getBytes(), null);
+		client.commit(records.get(0));
+		client.close();
+		assertTrue(producer.transactionAborted());
+		assertTrue(producer.history().isEmpty());
+		assertNull(committed());
+	}
+}